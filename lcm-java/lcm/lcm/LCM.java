@@ -28,6 +28,8 @@ public class LCM
         String  regex;
         Pattern pat;
         LCMSubscriber lcsub;
+        String dispatchName;
+        LatencyHistogram dispatchNanos; // null unless dispatch is timed
     }
 
     ArrayList<SubscriptionRecord> subscriptions = new ArrayList<SubscriptionRecord>();
@@ -41,6 +43,16 @@ public class LCM
 
     LCMDataOutputStream encodeBuffer = new LCMDataOutputStream(new byte[1024]);
 
+    Metrics metrics = new Metrics();
+
+    // whether to time each subscriber's handling of each message; see
+    // getMetrics()
+    boolean timeDispatch = Boolean.getBoolean("lcm.dispatch_timing");
+
+    // how many subscriptions share each dispatch histogram, which is
+    // removed with the last of them; guarded by 'subscriptions'.
+    HashMap<String,Integer> dispatchRefs = new HashMap<String,Integer>();
+
     /** Create a new LCM object, connecting to one or more URLs. If
      * no URL is specified, the environment variable LCM_DEFAULT_URL is
      * used. If that environment variable is not defined, then the
@@ -48,6 +60,14 @@ public class LCM
      **/
     public LCM(String... urls) throws IOException
     {
+        metrics.gauge("lcm.subscriptions", new Metrics.Gauge() {
+            public long get() {
+                synchronized (subscriptions) {
+                    return subscriptions.size();
+                }
+            }
+        });
+
         if (urls.length==0) {
             urls = new String[] { getDefaultURL() };
         }
@@ -94,6 +114,16 @@ public class LCM
         return singleton;
     }
 
+    /** Returns the metrics of this instance and its providers. The
+     * time each subscriber spends handling a message is recorded only
+     * if the system property lcm.dispatch_timing is "true" when the
+     * instance is created, since reading the clock twice per message
+     * and subscriber is not free. **/
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
     /** Return the number of subscriptions. **/
     public int getNumSubscriptions()
     {
@@ -140,6 +170,7 @@ public class LCM
         throws IOException
     {
         if (this.closed) throw new IllegalStateException();
+        metrics.channel(channel).published(length);
         for (Provider p : providers)
             p.publish(channel, data, offset, length);
     }
@@ -155,13 +186,20 @@ public class LCM
         srec.regex = regex;
         srec.pat = Pattern.compile(regex);
         srec.lcsub = sub;
-
         synchronized(this) {
             for (Provider p : providers)
                 p.subscribe (regex);
         }
 
         synchronized(subscriptions) {
+            if (timeDispatch) {
+                String subName = (sub == null) ? "null" : sub.getClass().getName();
+                srec.dispatchName = "subscriber."+subName+"."+regex+".dispatch_nanos";
+                srec.dispatchNanos = metrics.histogram(srec.dispatchName);
+                Integer refs = dispatchRefs.get(srec.dispatchName);
+                dispatchRefs.put(srec.dispatchName, (refs == null) ? 1 : refs + 1);
+            }
+
             subscriptions.add(srec);
 
             for (String channel : subscriptionsMap.keySet()) {
@@ -199,6 +237,7 @@ public class LCM
                 if ((sub == null || sr.lcsub == sub) &&
                     (regex == null || sr.regex.equals(regex))) {
                     it.remove();
+                    releaseDispatchHistogram(sr);
                 }
             }
 
@@ -216,6 +255,23 @@ public class LCM
         }
     }
 
+    /** Removes the dispatch histogram of a cancelled subscription if
+     * no other subscription shares it. The caller must hold the lock
+     * on 'subscriptions'. **/
+    void releaseDispatchHistogram(SubscriptionRecord srec)
+    {
+        if (srec.dispatchName == null)
+            return;
+
+        int refs = dispatchRefs.get(srec.dispatchName) - 1;
+        if (refs > 0) {
+            dispatchRefs.put(srec.dispatchName, refs);
+        } else {
+            dispatchRefs.remove(srec.dispatchName);
+            metrics.remove(srec.dispatchName);
+        }
+    }
+
     /** Not for use by end users. Provider back ends call this method
      * when they receive a message. The subscribers that match the
      * channel name are synchronously notified.
@@ -223,25 +279,56 @@ public class LCM
     public void receiveMessage(String channel, byte data[], int offset, int length)
     {
         if (this.closed) throw new IllegalStateException();
-        synchronized (subscriptions) {
-            ArrayList<SubscriptionRecord> srecs = subscriptionsMap.get(channel);
-
-            if (srecs == null) {
-                // must build this list!
-                srecs = new ArrayList<SubscriptionRecord>();
-                subscriptionsMap.put(channel, srecs);
+        metrics.channel(channel).received(length);
 
-                for (SubscriptionRecord srec : subscriptions) {
-                    if (srec.pat.matcher(channel).matches())
-                        srecs.add(srec);
+        synchronized (subscriptions) {
+            for (SubscriptionRecord srec : getSubscriptions(channel)) {
+                if (srec.dispatchNanos == null) {
+                    srec.lcsub.messageReceived(this,
+                                               channel,
+                                               new LCMDataInputStream(data, offset, length));
+                    continue;
                 }
-            }
 
-            for (SubscriptionRecord srec : srecs) {
+                long t0 = System.nanoTime();
                 srec.lcsub.messageReceived(this,
                                            channel,
                                            new LCMDataInputStream(data, offset, length));
+                srec.dispatchNanos.record(System.nanoTime() - t0);
+            }
+        }
+    }
+
+    /** Returns the subscriptions that match 'channel'. The caller
+     * must hold the lock on 'subscriptions'. **/
+    ArrayList<SubscriptionRecord> getSubscriptions(String channel)
+    {
+        ArrayList<SubscriptionRecord> srecs = subscriptionsMap.get(channel);
+
+        if (srecs == null) {
+            // must build this list!
+            srecs = new ArrayList<SubscriptionRecord>();
+            subscriptionsMap.put(channel, srecs);
+
+            for (SubscriptionRecord srec : subscriptions) {
+                if (srec.pat.matcher(channel).matches())
+                    srecs.add(srec);
+            }
+        }
+        return srecs;
+    }
+
+    /** Returns the number of subscriptions that match 'channel' and
+     * whose subscribers are LCMAcknowledgingSubscribers. **/
+    int getNumAcknowledgingSubscriptions(String channel)
+    {
+        synchronized (subscriptions) {
+            int n = 0;
+            for (SubscriptionRecord srec : getSubscriptions(channel)) {
+                if (srec.lcsub instanceof LCMAcknowledgingSubscriber)
+                    n++;
             }
+            return n;
         }
     }
 
@@ -0,0 +1,15 @@
+package lcm.lcm;
+
+/**
+ * A subscriber that finishes its work on a message only after
+ * messageReceived() has returned, e.g., on another thread.
+ *
+ * During lock-step replay of a log (a file:// URL with lockstep=true),
+ * the replay waits for such a subscriber to acknowledge each message
+ * it receives, by publishing on the replay's acknowledgement channel
+ * (LCM_REPLAY_ACK by default) once it is done with the message. Other
+ * subscribers are done with a message once messageReceived() returns.
+ */
+public interface LCMAcknowledgingSubscriber extends LCMSubscriber
+{
+}
@@ -1,20 +1,44 @@
 package lcm.lcm;
 
 import java.io.*;
+import java.util.*;
+import java.util.regex.*;
 
 import lcm.logging.*;
+import lcm.util.*;
 
 public class LogFileProvider implements Provider
 {
     LCM lcm;
-    Log log;
+    Log log; // write mode
+    MergedLog logs; // read mode: one or more logs, merged by timestamp
 
     double speed; // how fast do we play? <=0 for "as fast as possible"
     double delay; // how many seconds to delay before starting to play? (crude race-condition hack)
     boolean verbose; // report actual speed periodically
     double skip; // skip a fraction of the log file [0, 1.0]
+    long spinus; // busy-wait for this many microseconds before releasing each event
+    int readahead; // size of the read-ahead buffers in bytes (0 to read synchronously)
+    long offsets[]; // microseconds to add to the timestamps of each log (null for none)
+
+    ReplayFilter filter = new ReplayFilter();
+
+    // Lock-step replay: an event is released only once the event
+    // 'pipeline' events before it has been handled, so that at most
+    // 'pipeline' events are in progress. Subscribers are done with an event when
+    // messageReceived() returns, except for LCMAcknowledgingSubscribers,
+    // which acknowledge each event by publishing on 'ackChannel'.
+    boolean lockstep;
+    int pipeline;
+    String ackChannel;
+    Object ackLock = new Object();
+    long released; // number of events released
+    long expected; // number of acknowledgements owed for those events
+    long owed[]; // 'expected' after each of the last 'pipeline' events released
+    long acked; // number of acknowledgements received
 
     boolean writemode;
+    int blocksize; // write a block-compressed log with blocks of this many bytes? (0 for a plain log)
     long nanotime_start;
     long utime_start;
 
@@ -30,14 +54,59 @@ public class LogFileProvider implements Provider
         delay = up.get("delay", 0.5);
         verbose = up.get("verbose", false);
         skip = up.get("skip", 0.0); // skip this fraction of the log file.
+        spinus = up.get("spin_us", (int) (ReplayClock.DEFAULT_SPIN_NANOS/1000));
         writemode = up.get("mode", "r").equals("w");
+        blocksize = up.get("block_size", 0);
+        readahead = up.get("read_ahead", Log.DEFAULT_READ_AHEAD_SIZE);
+
+        // Several logs can be replayed together by separating their
+        // paths with commas, e.g. file:///a.lcm,/b.lcm?offsets=0,-1500
+        String logPaths[] = new String[] { logPath };
+        if (!writemode && logPath.indexOf(',') >= 0 && !new File(logPath).exists())
+            logPaths = logPath.split(",");
+
+        // include/exclude are regexes over the logged channel names;
+        // rename maps logged names to replayed names, e.g.
+        // rename=POSE:POSE_OLD,IMAGE:IMAGE_LEFT
+        String include = up.get("include");
+        String exclude = up.get("exclude");
+        if (include != null)
+            filter.include = Pattern.compile(include);
+        if (exclude != null)
+            filter.exclude = Pattern.compile(exclude);
+
+        String renameString = up.get("rename");
+        if (renameString != null) {
+            for (String rename : renameString.split(",")) {
+                String toks[] = rename.split(":");
+                if (toks.length != 2)
+                    throw new IllegalArgumentException("LogFileProvider: bad rename '"+rename+"'");
+                filter.renames.put(toks[0].trim(), toks[1].trim());
+            }
+        }
+
+        lockstep = up.get("lockstep", false);
+        pipeline = Math.max(1, up.get("pipeline", 1));
+        ackChannel = up.get("ack_channel", "LCM_REPLAY_ACK");
+        owed = new long[pipeline];
+
+        String offsetsString = up.get("offsets");
+        if (offsetsString != null) {
+            String toks[] = offsetsString.split(",");
+            if (toks.length != logPaths.length)
+                throw new IllegalArgumentException("LogFileProvider: "+logPaths.length+" logs but "+toks.length+" offsets");
+            offsets = new long[toks.length];
+            for (int i = 0; i < toks.length; i++)
+                offsets[i] = Long.parseLong(toks[i].trim());
+        }
 
         if(writemode) {
-            log = new Log(logPath, "rw");
+            log = new Log(logPath, "rw", blocksize);
             nanotime_start = System.nanoTime();
             utime_start = System.currentTimeMillis() * 1000;
         } else {
-            log = new Log(logPath, "r");
+            logs = new MergedLog(logPaths, offsets, readahead);
+            logs.setChannelFilter(filter);
             reader = new ReaderThread();
             reader.start();
         }
@@ -46,11 +115,25 @@ public class LogFileProvider implements Provider
     boolean publishWarned = false;
     public synchronized void publish(String channel, byte data[], int offset, int length)
     {
+        if (!writemode && lockstep && channel.equals(ackChannel)) {
+            // an acknowledgement carries an optional int32 count.
+            int count = 1;
+            if (length == 4)
+                count = ((data[offset]&0xff)<<24) | ((data[offset+1]&0xff)<<16) |
+                    ((data[offset+2]&0xff)<<8) | (data[offset+3]&0xff);
+            synchronized (ackLock) {
+                acked += count;
+                ackLock.notifyAll();
+            }
+            return;
+        }
+
         if(!writemode) {
             if (publishWarned)
                 return;
             System.err.println("LogFileProvider opened in read mode, no publishing allowed.");
             publishWarned = true;
+            return;
         }
 
         Log.Event event = new Log.Event();
@@ -66,8 +149,15 @@ public class LogFileProvider implements Provider
         }
     }
 
-    public synchronized void subscribe(String channel) { }
-    public void unsubscribe(String channel) { }
+    public synchronized void subscribe(String channel)
+    {
+        filter.subscribe(channel);
+    }
+
+    public void unsubscribe(String channel)
+    {
+        filter.unsubscribe(channel);
+    }
 
     public synchronized void close() {
         if (reader != null) {
@@ -79,10 +169,14 @@ public class LogFileProvider implements Provider
         }
         reader = null;
         try {
-            log.close();
+            if (log != null)
+                log.close();
+            if (logs != null)
+                logs.close();
         } catch (IOException ex) {
         }
         log = null;
+        logs = null;
     }
 
     class ReaderThread extends Thread
@@ -105,58 +199,145 @@ public class LogFileProvider implements Provider
 
         void runEx() throws IOException, InterruptedException
         {
-            log.seekPositionFraction(skip);
-
             while (lcm.getNumSubscriptions()==0)
                 Thread.sleep(10);
 
             Thread.sleep((int) (delay*1000));
 
-            long lastLocalUtime = System.nanoTime()/1000;
+            // (re)read the first events only now, since the filter
+            // skips channels that nobody had subscribed to before.
+            logs.seekPositionFraction(skip);
+
+            // events are released at absolute deadlines computed from
+            // their recorded offsets, so that timing errors do not
+            // accumulate over the replay.
+            ReplayClock clock = new ReplayClock(speed, spinus*1000L);
+
+            long verboseLastNanos = System.nanoTime();
+            long verboseLastEventUtime = -1;
             long lastEventUtime = -1;
-            double delayAccumulator = 0; // how long do we need to delay in real time?
 
-            double verboseAccumulator = 0;
-            long   verboseLastEventUtime = -1;
+            // events are dispatched synchronously, so event objects
+            // (and their data buffers) can be recycled, except in
+            // lock-step mode: LCMAcknowledgingSubscribers may still be
+            // reading an event on another thread when the next is read.
+            Log.Event ev;
 
             while (true) {
-                Log.Event ev = log.readNext();
-
-                // how much time elapsed when the log was recorded?
-                // we have to wait some fraction of the time...
-                if (lastEventUtime > 0) {
-                    double dt = (ev.utime - lastEventUtime) / 1000000.0;
-                    if (dt > 0 && speed > 0)
-                        delayAccumulator += dt / speed;
+                try {
+                    ev = logs.readNext(!lockstep);
+                } catch (EOFException ex) {
+                    if (verbose) {
+                        System.err.printf("LogFile: end of log, %s\n%s",
+                                          clock.getLatenessSummary(),
+                                          clock.getLatenessPercentileString());
+                    }
+                    return;
                 }
-                lastEventUtime = ev.utime;
 
-                // subtract any clock time that has elapsed.
-                long localUtime = System.nanoTime()/1000;
-                double dt = (localUtime - lastLocalUtime)/1000000.0;
-                lastLocalUtime = localUtime;
-                delayAccumulator -= dt;
-                verboseAccumulator += dt;
+                clock.waitFor(ev.utime);
+                lastEventUtime = ev.utime;
 
                 // spit out some info at 1Hz
-                if (verboseAccumulator > 1.0 && verbose) {
+                long nanos = System.nanoTime();
+                double verboseDt = (nanos - verboseLastNanos)/1.0E9;
+                if (verboseDt > 1.0 && verbose) {
                     double eventDt = (lastEventUtime - verboseLastEventUtime)/1000000.0;
                     verboseLastEventUtime = lastEventUtime;
-                    System.err.printf("LogFile: rate = %8.3f, position = %8.3f %%\n",
-                                      eventDt/verboseAccumulator,
-                                      log.getPositionFraction()*100.0);
-                    verboseAccumulator = 0;
+                    System.err.printf("LogFile: rate = %8.3f, position = %8.3f %%, %s\n",
+                                      eventDt/verboseDt,
+                                      logs.getPositionFraction()*100.0,
+                                      clock.getLatenessSummary());
+                    verboseLastNanos = nanos;
                 }
 
-                // sleep if necessary.
-                if (delayAccumulator > 0.001) {
-                    int ms = (int) (delayAccumulator*1000);
-                    Thread.sleep(ms);
+                // in lock-step mode, wait until the event released
+                // 'pipeline' events ago has been acknowledged by the
+                // subscribers that receive it.
+                if (lockstep) {
+                    int acks = lcm.getNumAcknowledgingSubscriptions(ev.channel);
+                    synchronized (ackLock) {
+                        int slot = (int) (released % pipeline);
+                        if (released >= pipeline) {
+                            while (acked < owed[slot])
+                                ackLock.wait();
+                        }
+                        expected += acks;
+                        owed[slot] = expected;
+                        released++;
+                    }
                 }
 
                 // dispatch the message
-                lcm.receiveMessage(ev.channel, ev.data, 0, ev.data.length);
+                lcm.receiveMessage(ev.channel, ev.data, 0, ev.dataLength);
             }
         }
     }
+
+    /** Decides, from its channel alone, whether each logged event is
+     * replayed and under what name. Events that are excluded, or
+     * that no subscription would receive, are skipped by the log
+     * reader without copying their payloads. Decisions are cached
+     * per channel until the subscriptions change. **/
+    static class ReplayFilter implements Log.ChannelFilter
+    {
+        Pattern include;
+        Pattern exclude;
+        HashMap<String,String> renames = new HashMap<String,String>();
+
+        ArrayList<String> regexes = new ArrayList<String>();
+        ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+
+        // logged channel => replayed channel, or null if skipped
+        HashMap<String,String> decisions = new HashMap<String,String>();
+
+        public synchronized String filter(String channel)
+        {
+            String out = decisions.get(channel);
+            if (out != null || decisions.containsKey(channel))
+                return out;
+
+            out = decide(channel);
+            decisions.put(channel, out);
+            return out;
+        }
+
+        String decide(String channel)
+        {
+            if (include != null && !include.matcher(channel).matches())
+                return null;
+            if (exclude != null && exclude.matcher(channel).matches())
+                return null;
+
+            String out = renames.get(channel);
+            if (out == null)
+                out = channel;
+
+            for (Pattern pat : patterns) {
+                if (pat.matcher(out).matches())
+                    return out;
+            }
+            return null;
+        }
+
+        synchronized void subscribe(String regex)
+        {
+            regexes.add(regex);
+            patterns.add(Pattern.compile(regex));
+            decisions.clear();
+        }
+
+        synchronized void unsubscribe(String regex)
+        {
+            // a null regex cancels an unknown set of subscriptions, so
+            // conservatively keep replaying everything.
+            int idx = (regex == null) ? -1 : regexes.indexOf(regex);
+            if (idx < 0)
+                return;
+
+            regexes.remove(idx);
+            patterns.remove(idx);
+            decisions.clear();
+        }
+    }
 }
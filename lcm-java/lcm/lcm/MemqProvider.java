@@ -20,6 +20,12 @@ public class MemqProvider implements Provider
         this.lcm = lcm;
 
         this.queue = new LinkedBlockingQueue<Message>();
+        lcm.getMetrics().gauge("memq.queue_depth", new Metrics.Gauge() {
+            public long get() {
+                return queue.size();
+            }
+        });
+
         reader = new ReaderThread();
         reader.start();
     }
@@ -0,0 +1,247 @@
+package lcm.lcm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import lcm.util.LatencyHistogram;
+
+/**
+ * A registry of named counters, gauges and histograms describing an
+ * LCM instance and its providers. Each {@link LCM} has one, which
+ * counts the messages and bytes published and received on every
+ * channel and, if enabled (see {@link LCM#getMetrics}), the time each
+ * subscriber spends handling a message; providers add their own
+ * metrics, e.g., queue depths, fragment reassembly and reconnects.
+ *
+ * Histograms are {@link LatencyHistogram}s. Counters and histograms
+ * are striped with LongAdder, so updating them from many threads
+ * neither contends nor allocates. Gauges are sampled only when the
+ * metrics are read. Metrics are read by
+ * visiting the registry (see {@link #visit}), which is how exporters
+ * such as {@link MetricsJMXExporter} and {@link MetricsPublisher}
+ * work; other monitoring systems can be attached the same way.
+ *
+ * Names are dotted paths. Per-channel metrics are named
+ * "channel.NAME.publish.count", "channel.NAME.publish.bytes",
+ * "channel.NAME.receive.count" and "channel.NAME.receive.bytes".
+ **/
+public class Metrics
+{
+    /** A monotonically increasing count. **/
+    public static class Counter
+    {
+        LongAdder adder = new LongAdder();
+
+        public void increment()
+        {
+            adder.increment();
+        }
+
+        public void add(long n)
+        {
+            adder.add(n);
+        }
+
+        public long get()
+        {
+            return adder.sum();
+        }
+    }
+
+    /** A value that is sampled when the metrics are read. **/
+    public interface Gauge
+    {
+        public long get();
+    }
+
+    /** The traffic on one channel. **/
+    public static class ChannelMetrics
+    {
+        public final Counter publishCount, publishBytes;
+        public final Counter receiveCount, receiveBytes;
+
+        ChannelMetrics(Metrics m, String channel)
+        {
+            String prefix = "channel."+channel+".";
+            publishCount = m.counter(prefix+"publish.count");
+            publishBytes = m.counter(prefix+"publish.bytes");
+            receiveCount = m.counter(prefix+"receive.count");
+            receiveBytes = m.counter(prefix+"receive.bytes");
+        }
+
+        public void published(int bytes)
+        {
+            publishCount.increment();
+            publishBytes.add(bytes);
+        }
+
+        public void received(int bytes)
+        {
+            receiveCount.increment();
+            receiveBytes.add(bytes);
+        }
+    }
+
+    /** Receives each metric when the registry is visited. **/
+    public interface Visitor
+    {
+        public void counter(String name, Counter c);
+        public void gauge(String name, Gauge g);
+        public void histogram(String name, LatencyHistogram h);
+    }
+
+    // sorted, so that exporters list related metrics together.
+    ConcurrentSkipListMap<String,Object> metrics = new ConcurrentSkipListMap<String,Object>();
+
+    ConcurrentHashMap<String,ChannelMetrics> channels = new ConcurrentHashMap<String,ChannelMetrics>();
+
+    /** Returns the counter with the given name, creating it if
+     * necessary. **/
+    public Counter counter(String name)
+    {
+        return get(name, Counter.class);
+    }
+
+    /** Returns the histogram with the given name, creating it if
+     * necessary. **/
+    public LatencyHistogram histogram(String name)
+    {
+        return get(name, LatencyHistogram.class);
+    }
+
+    /** Registers a gauge, replacing any metric with the same name. **/
+    public void gauge(String name, Gauge g)
+    {
+        metrics.put(name, g);
+    }
+
+    public void remove(String name)
+    {
+        metrics.remove(name);
+    }
+
+    <T> T get(String name, Class<T> cls)
+    {
+        Object m = metrics.get(name);
+        if (m == null) {
+            Object created = (cls == Counter.class) ? new Counter() : new LatencyHistogram();
+            m = metrics.putIfAbsent(name, created);
+            if (m == null)
+                m = created;
+        }
+
+        if (!cls.isInstance(m))
+            throw new IllegalArgumentException("Metrics: "+name+" is not a "+cls.getSimpleName());
+        return cls.cast(m);
+    }
+
+    /** Returns the metrics of a channel. **/
+    public ChannelMetrics channel(String channel)
+    {
+        ChannelMetrics cm = channels.get(channel);
+        if (cm == null) {
+            ChannelMetrics created = new ChannelMetrics(this, channel);
+            cm = channels.putIfAbsent(channel, created);
+            if (cm == null)
+                cm = created;
+        }
+        return cm;
+    }
+
+    /** Calls the visitor for each metric, in order of name. **/
+    public void visit(Visitor v)
+    {
+        for (Map.Entry<String,Object> e : metrics.entrySet()) {
+            Object m = e.getValue();
+            if (m instanceof Counter)
+                v.counter(e.getKey(), (Counter) m);
+            else if (m instanceof Gauge)
+                v.gauge(e.getKey(), (Gauge) m);
+            else
+                v.histogram(e.getKey(), (LatencyHistogram) m);
+        }
+    }
+
+    /** The entries that snapshot() flattens each histogram into. **/
+    static final String HISTOGRAM_FIELDS[] = { "count", "mean", "p50", "p99", "max" };
+
+    static long readHistogram(LatencyHistogram h, String field)
+    {
+        if (field.equals("count"))
+            return h.getCount();
+        if (field.equals("mean"))
+            return (long) h.getMean();
+        if (field.equals("p50"))
+            return h.getValueAtPercentile(0.5);
+        if (field.equals("p99"))
+            return h.getValueAtPercentile(0.99);
+        return h.getMax();
+    }
+
+    /** Reads every metric, flattening each histogram into
+     * "name.count", "name.mean", "name.p50", "name.p99" and
+     * "name.max" entries. **/
+    public SortedMap<String,Long> snapshot()
+    {
+        final TreeMap<String,Long> values = new TreeMap<String,Long>();
+        visit(new Visitor() {
+            public void counter(String name, Counter c) {
+                values.put(name, c.get());
+            }
+            public void gauge(String name, Gauge g) {
+                values.put(name, g.get());
+            }
+            public void histogram(String name, LatencyHistogram h) {
+                for (String field : HISTOGRAM_FIELDS)
+                    values.put(name+"."+field, readHistogram(h, field));
+            }
+        });
+        return values;
+    }
+
+    /** Returns the names of the entries of snapshot(), without reading
+     * any metric. **/
+    public SortedSet<String> snapshotNames()
+    {
+        TreeSet<String> names = new TreeSet<String>();
+        for (Map.Entry<String,Object> e : metrics.entrySet()) {
+            if (e.getValue() instanceof LatencyHistogram) {
+                for (String field : HISTOGRAM_FIELDS)
+                    names.add(e.getKey()+"."+field);
+            } else {
+                names.add(e.getKey());
+            }
+        }
+        return names;
+    }
+
+    /** Reads one entry of snapshot() without reading any other metric,
+     * or returns null if there is no such entry. **/
+    public Long read(String name)
+    {
+        Object m = metrics.get(name);
+        if (m instanceof Counter)
+            return ((Counter) m).get();
+        if (m instanceof Gauge)
+            return ((Gauge) m).get();
+
+        int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return null;
+        m = metrics.get(name.substring(0, dot));
+        String field = name.substring(dot + 1);
+        if (!(m instanceof LatencyHistogram) || !Arrays.asList(HISTOGRAM_FIELDS).contains(field))
+            return null;
+        return readHistogram((LatencyHistogram) m, field);
+    }
+
+    /** A snapshot in a line-oriented text format, "name value". **/
+    public String toText()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,Long> e : snapshot().entrySet())
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,94 @@
+package lcm.lcm;
+
+import java.lang.management.*;
+import java.util.*;
+import javax.management.*;
+
+/**
+ * Exposes a {@link Metrics} registry as a read-only JMX MBean, so that
+ * it can be browsed with jconsole or collected by any JMX agent. Each
+ * counter and gauge is an attribute of type long; each histogram is
+ * flattened into several attributes as by {@link Metrics#snapshot}.
+ * The set of attributes grows as metrics are created, e.g., when
+ * traffic appears on a new channel.
+ *
+ * <pre>
+ *   MetricsJMXExporter.register(lcm.getMetrics(), "lcm:type=LCM,name=main");
+ * </pre>
+ **/
+public class MetricsJMXExporter implements DynamicMBean
+{
+    Metrics metrics;
+    ObjectName name;
+
+    public MetricsJMXExporter(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Registers a registry with the platform MBean server.
+     *
+     * @param name the JMX object name, e.g., "lcm:type=LCM,name=main"
+     */
+    public static MetricsJMXExporter register(Metrics metrics, String name) throws JMException
+    {
+        MetricsJMXExporter exporter = new MetricsJMXExporter(metrics);
+        exporter.name = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(exporter, exporter.name);
+        return exporter;
+    }
+
+    /** Removes the MBean from the platform MBean server. **/
+    public void unregister() throws JMException
+    {
+        if (name != null)
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        name = null;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        Long v = metrics.read(attribute);
+        if (v == null)
+            throw new AttributeNotFoundException(attribute);
+        return v;
+    }
+
+    public AttributeList getAttributes(String attributes[])
+    {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Long v = metrics.read(a);
+            if (v != null)
+                list.add(new Attribute(a, v));
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException(attribute.getName()+" is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object params[], String signature[]) throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo()
+    {
+        ArrayList<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (String a : metrics.snapshotNames())
+            attrs.add(new MBeanAttributeInfo(a, "long", a, true, false, false));
+
+        return new MBeanInfo(getClass().getName(), "LCM metrics",
+                             attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+                             null, null, null);
+    }
+}
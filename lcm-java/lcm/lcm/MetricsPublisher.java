@@ -0,0 +1,100 @@
+package lcm.lcm;
+
+import java.io.*;
+
+/**
+ * Periodically publishes a {@link Metrics} registry on an LCM
+ * channel, so that any LCM process can monitor another. The message
+ * is the text of {@link Metrics#toText}, encoded as UTF-8 and
+ * preceded by a "utime N" line with the time of the snapshot in
+ * microseconds.
+ *
+ * The registry may belong to the LCM instance the messages are
+ * published on, in which case the metrics include their own channel.
+ *
+ * The channel is not LCM-typed: its messages have no fingerprint and
+ * no lcmtype describes them, so lcm-spy cannot decode them and counts
+ * them as errors, and loggers record the text like any other message.
+ * Nothing publishes metrics unless a MetricsPublisher is created, so
+ * processes that do should choose a channel their loggers and spies
+ * are told to ignore.
+ **/
+public class MetricsPublisher
+{
+    public static final String DEFAULT_CHANNEL = "LCM_METRICS";
+
+    Metrics metrics;
+    LCM lcm;
+    String channel;
+    long periodMillis;
+
+    PublisherThread thread;
+
+    /** Publishes the metrics of 'lcm' on it once a second. **/
+    public MetricsPublisher(LCM lcm)
+    {
+        this(lcm.getMetrics(), lcm, DEFAULT_CHANNEL, 1.0);
+    }
+
+    /**
+     * @param metrics the registry to publish
+     * @param lcm the instance to publish on
+     * @param channel the channel to publish on
+     * @param hz how often to publish
+     */
+    public MetricsPublisher(Metrics metrics, LCM lcm, String channel, double hz)
+    {
+        this.metrics = metrics;
+        this.lcm = lcm;
+        this.channel = channel;
+        this.periodMillis = Math.max(1, (long) (1000/hz));
+
+        thread = new PublisherThread();
+        thread.start();
+    }
+
+    /** Publishes a snapshot of the metrics now. **/
+    public void publish() throws IOException
+    {
+        String text = "utime "+(System.currentTimeMillis()*1000)+"\n"+metrics.toText();
+        byte data[] = text.getBytes("UTF-8");
+        lcm.publish(channel, data, 0, data.length);
+    }
+
+    /** Stops publishing. **/
+    public void close()
+    {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    class PublisherThread extends Thread
+    {
+        PublisherThread()
+        {
+            super("MetricsPublisher");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            while (true) {
+                try {
+                    Thread.sleep(periodMillis);
+                    publish();
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (IOException ex) {
+                    System.err.println("MetricsPublisher: "+ex);
+                } catch (IllegalStateException ex) {
+                    // the LCM instance has been closed.
+                    return;
+                }
+            }
+        }
+    }
+}
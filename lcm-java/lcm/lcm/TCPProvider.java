@@ -22,6 +22,8 @@ public class TCPProvider implements Provider
 
     TCPThread tcp;
 
+    Metrics.Counter connects, reconnects, connectFailures, publishesDropped;
+
     public static final int MAGIC_SERVER = 0x287617fa; // first word sent by server
     public static final int MAGIC_CLIENT = 0x287617fb; // first word sent by client
     public static final int VERSION = 0x0100;    // what version do we implement?
@@ -35,6 +37,18 @@ public class TCPProvider implements Provider
     {
         this.lcm = lcm;
 
+        Metrics m = lcm.getMetrics();
+        connects = m.counter("tcpq.connects");
+        reconnects = m.counter("tcpq.reconnects");
+        connectFailures = m.counter("tcpq.connect_failures");
+        publishesDropped = m.counter("tcpq.publishes_dropped");
+        m.gauge("tcpq.connected", new Metrics.Gauge() {
+            public long get() {
+                TCPThread t = tcp;
+                return (t != null && t.outs != null) ? 1 : 0;
+            }
+        });
+
         String addrport[] = up.get("network", DEFAULT_NETWORK).split(":");
         if (addrport.length == 1) {
             inetAddr = InetAddress.getByName(addrport[0]);
@@ -147,7 +161,7 @@ public class TCPProvider implements Provider
         Socket sock;
         DataInputStream ins;
         OutputStream outs;
-        boolean exit = false;
+        volatile boolean exit = false;
         int serverVersion;
 
         TCPThread()
@@ -159,8 +173,10 @@ public class TCPProvider implements Provider
             // if our connection is dead or not yet up, we just drop
             // this message.  (subscribes will be setup again when the
             // connection comes back up).
-            if (outs == null)
+            if (outs == null) {
+                publishesDropped.increment();
                 return;
+            }
 
             outs.write(b);
             outs.flush();
@@ -226,7 +242,12 @@ public class TCPProvider implements Provider
 
                         serverVersion = ins.readInt();
 
+                        if (connects.get() > 0)
+                            reconnects.increment();
+                        connects.increment();
+
                     } catch (IOException ex) {
+                        connectFailures.increment();
                         System.err.println("lcm.TCPProvider: Unable to connect to "+inetAddr+":"+inetPort);
                         safeSleep(500);
 
@@ -263,12 +284,15 @@ public class TCPProvider implements Provider
 
         void close()
         {
+            // set first, so that the read loop does not reconnect when
+            // the socket is closed under it.
+            exit = true;
+
             try {
-                sock.close();
+                if (sock != null)
+                    sock.close();
             } catch (IOException ex) {
             }
-
-            exit = true;
         }
 
         OutputStream getOutputStream()
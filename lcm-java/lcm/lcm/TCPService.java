@@ -6,6 +6,7 @@ import java.util.*;
 import java.util.concurrent.locks.*;
 import java.util.regex.*;
 import java.nio.*;
+import javax.management.*;
 
 public class TCPService
 {
@@ -15,36 +16,75 @@ public class TCPService
     ArrayList<ClientThread> clients = new ArrayList<ClientThread>();
     ReadWriteLock clients_lock = new ReentrantReadWriteLock();
 
-    int bytesCount = 0;
+    Metrics metrics = new Metrics();
+    Metrics.Counter messagesRelayed = metrics.counter("tcpservice.messages_relayed");
+    Metrics.Counter bytesRelayed = metrics.counter("tcpservice.bytes_relayed");
+    Metrics.Counter messagesSent = metrics.counter("tcpservice.messages_sent");
+    MetricsJMXExporter jmx;
 
     public TCPService(int port) throws IOException
     {
+        this(port, true);
+    }
+
+    /**
+     * Runs the hub until the calling thread is interrupted.
+     *
+     * @param verbose print the relayed data rate once a second
+     */
+    public TCPService(int port, boolean verbose) throws IOException
+    {
+        metrics.gauge("tcpservice.clients", new Metrics.Gauge() {
+            public long get() {
+                return clients.size();
+            }
+        });
+
         serverSocket = new ServerSocket(port);
         //	sock.setReuseAddress(true);
         //	sock.setLoopbackMode(false); // true *disables* loopback
 
+        // the constructor runs the hub, so this is the only way to
+        // reach its metrics.
+        try {
+            jmx = MetricsJMXExporter.register(metrics, "lcm:type=TCPService,port="+port);
+        } catch (JMException ex) {
+            System.err.println("TCPService: cannot register metrics: "+ex);
+        }
+
         acceptThread = new AcceptThread();
-        acceptThread.start();
+        try {
+            acceptThread.start();
 
-        long inittime = System.currentTimeMillis();
-        long starttime = System.currentTimeMillis();
-        while (!Thread.interrupted()) {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                break;
+            long inittime = System.currentTimeMillis();
+            long starttime = System.currentTimeMillis();
+            long lastBytes = 0;
+            while (!Thread.interrupted()) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                long endtime = System.currentTimeMillis();
+                double dt = (endtime - starttime) / 1000.0;
+                starttime = endtime;
+                long bytes = bytesRelayed.get();
+                if (verbose)
+                    System.out.printf("%10.3f : %10.1f kB/s, %d clients\n",(endtime - inittime)/1000.0, (bytes - lastBytes)/1024.0/dt, clients.size());
+                lastBytes = bytes;
             }
-            long endtime = System.currentTimeMillis();
-            double dt = (endtime - starttime) / 1000.0;
-            starttime = endtime;
-            System.out.printf("%10.3f : %10.1f kB/s, %d clients\n",(endtime - inittime)/1000.0, bytesCount/1024.0/dt, clients.size());
-            bytesCount = 0;
+        } finally {
+            // interrupt signal received
+            closeResources();
         }
-        // interrupt signal received
-        closeResources();
     }
 
     private void closeResources() throws IOException {
+        try {
+            if (jmx != null)
+                jmx.unregister();
+        } catch (JMException ex) {
+        }
         acceptThread.interrupt();
         serverSocket.close();
         synchronized(clients) {
@@ -140,7 +180,8 @@ public class TCPService
 
                         TCPService.this.relay(channel, data);
 
-                        bytesCount += channellen + datalen + 8;
+                        messagesRelayed.increment();
+                        bytesRelayed.add(channellen + datalen + 8);
                     } else if(type == TCPProvider.MESSAGE_TYPE_SUBSCRIBE) {
                         int channellen = ins.readInt();
                         byte channel[] = new byte[channellen];
@@ -204,6 +245,7 @@ public class TCPService
                             outs.writeInt(data.length);
                             outs.write(data);
                             outs.flush();
+                            messagesSent.increment();
                             return;
                         }
                     }
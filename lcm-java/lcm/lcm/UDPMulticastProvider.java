@@ -33,6 +33,10 @@ public class UDPMulticastProvider implements Provider
 
     LCM lcm;
 
+    Metrics.Counter packetsSent, sendErrors, packetsReceived, badPackets;
+    Metrics.Counter fragmentsReceived, messagesReassembled;
+    Metrics.Counter incompleteMessagesDropped, orphanFragments, invalidFragments;
+
     InetAddress inetAddr;
     int         inetPort;
 
@@ -46,6 +50,23 @@ public class UDPMulticastProvider implements Provider
     {
         this.lcm = lcm;
 
+        Metrics m = lcm.getMetrics();
+        packetsSent = m.counter("udpm.packets_sent");
+        sendErrors = m.counter("udpm.send_errors");
+        packetsReceived = m.counter("udpm.packets_received");
+        badPackets = m.counter("udpm.bad_packets");
+        fragmentsReceived = m.counter("udpm.fragments.received");
+        messagesReassembled = m.counter("udpm.fragments.messages_reassembled");
+        incompleteMessagesDropped = m.counter("udpm.fragments.incomplete_messages_dropped");
+        orphanFragments = m.counter("udpm.fragments.orphans");
+        invalidFragments = m.counter("udpm.fragments.invalid");
+        m.gauge("udpm.fragments.buffers", new Metrics.Gauge() {
+            public long get() {
+                HashMap<SocketAddress, FragmentBuffer> bufs = fragBufs;
+                return bufs == null ? 0 : bufs.size();
+            }
+        });
+
         String addrport[] = up.get("network", DEFAULT_NETWORK).split(":");
 
         inetAddr = InetAddress.getByName(addrport[0]);
@@ -78,6 +99,7 @@ public class UDPMulticastProvider implements Provider
         try {
             publishEx(channel, data, offset, length);
         } catch (Exception ex) {
+            sendErrors.increment();
             System.err.println("ex: "+ex);
         }
     }
@@ -125,6 +147,7 @@ public class UDPMulticastProvider implements Provider
             outs.write(data, offset, length);
 
             sock.send(new DatagramPacket(outs.getBuffer(), 0, outs.size(), inetAddr, inetPort));
+            packetsSent.increment();
 
         } else {
             int nfragments = payload_size / FRAGMENTATION_THRESHOLD;
@@ -157,6 +180,7 @@ public class UDPMulticastProvider implements Provider
 
             byte[] b = bouts.toByteArray();
             sock.send(new DatagramPacket(b, 0, b.length, inetAddr, inetPort));
+            packetsSent.increment();
 
             fragment_offset += firstfrag_datasize;
 
@@ -175,6 +199,7 @@ public class UDPMulticastProvider implements Provider
 
                 b = bouts.toByteArray();
                 sock.send(new DatagramPacket(b, 0, b.length, inetAddr, inetPort));
+                packetsSent.increment();
 
                 fragment_offset += fraglen;
             }
@@ -261,11 +286,15 @@ public class UDPMulticastProvider implements Provider
             int data_start = 0;
             int frag_size = payload.length;
 
+            fragmentsReceived.increment();
+
             SocketAddress from = packet.getSocketAddress();
             FragmentBuffer fbuf = fragBufs.get(from);
 
             if (fbuf != null && ((fbuf.msgSeqNumber != msgSeqNumber) ||
                                  (fbuf.data_size != msg_size))) {
+                // the sender has moved on before we got every fragment.
+                incompleteMessagesDropped.increment();
                 fragBufs.remove(fbuf.from);
                 fbuf = null;
             }
@@ -290,10 +319,12 @@ public class UDPMulticastProvider implements Provider
 
             if (null == fbuf) {
                 // TODO
+                orphanFragments.increment();
                 return;
             }
 
             if (fragment_offset + frag_size > fbuf.data_size) {
+                invalidFragments.increment();
                 System.err.println ("LC: dropping invalid fragment");
                 fragBufs.remove (fbuf.from);
                 return;
@@ -308,6 +339,7 @@ public class UDPMulticastProvider implements Provider
             }
 
             if (0 == fbuf.fragments_remaining) {
+                messagesReassembled.increment();
                 lcm.receiveMessage(fbuf.channel, fbuf.data, 0, fbuf.data_size);
                 fragBufs.remove (fbuf.from);
             }
@@ -318,6 +350,7 @@ public class UDPMulticastProvider implements Provider
             LCMDataInputStream ins = new LCMDataInputStream(packet.getData(),
                                                             packet.getOffset(),
                                                             packet.getLength());
+            packetsReceived.increment();
 
             int magic = ins.readInt();
             if (magic == MAGIC_SHORT) {
@@ -325,6 +358,7 @@ public class UDPMulticastProvider implements Provider
             } else if (magic == MAGIC_LONG) {
                 handleFragment(packet, ins);
             } else {
+                badPackets.increment();
                 System.err.println("bad magic: " + Integer.toHexString(magic));
                 return;
             }
@@ -1,12 +1,19 @@
 package lcm.logging;
 
 import java.io.*;
+import java.util.*;
+import java.util.zip.*;
 
 import lcm.util.*;
 import lcm.lcm.*;
 
 /**
  * A class for reading and writing LCM log files.
+ *
+ * Logs can be stored either as a plain sequence of events, or in a
+ * block-compressed container where events are grouped into
+ * independently compressed blocks. The container is detected
+ * automatically when reading, and both kinds support seeking.
  */
 public class Log
 {
@@ -18,6 +25,47 @@ public class Log
     /** Used to count the number of messages written so far. **/
     long numMessagesWritten = 0;
 
+    /** Default amount of uncompressed event data per block of a
+     * block-compressed log. **/
+    public static final int DEFAULT_BLOCK_SIZE = 4*1024*1024;
+
+    /** Number of bytes skipped while searching for event records. **/
+    long skippedBytes = 0;
+
+    /** File offset of the record returned by the last readNext()
+     * (for block-compressed logs, the offset of its block). **/
+    long lastEventOffset = -1;
+
+    /** A read-ahead buffer size suitable for sequential playback. **/
+    public static final int DEFAULT_READ_AHEAD_SIZE = 1024*1024;
+
+    /** Block index of a block-compressed log; null for plain logs. **/
+    LogBlockIndex blockIndex;
+
+    // block-compressed reading state. blockData holds the inflated
+    // contents of block 'loadedBlock'; the read position is
+    // (block, blockPos).
+    Inflater inflater;
+    byte     compressedData[];
+    byte     blockData[];
+    int      loadedBlock = -1;
+    int      block = -1;
+    int      blockLength;
+    int      blockPos;
+
+    // scratch space for channel names, which are shorter than 256 bytes.
+    byte     channelBuffer[] = new byte[256];
+    ChannelCache channelCache = new ChannelCache();
+
+    // block-compressed writing state.
+    int      blockSize;
+    Deflater deflater;
+    LCMDataOutputStream writeBuffer;
+    int      writeBlockEvents;
+    long     writeBlockFirstEventNumber;
+    long     writeBlockFirstUtime;
+    long     writeBlockLastUtime;
+
     /**
      * Represents a single received LCM message.
      */
@@ -38,12 +86,35 @@ public class Log
          */
         public byte   data[];
 
+        /**
+         * Number of valid bytes at the start of data. Events read with
+         * {@link Log#readNext(Log.Event)} may have a data array that is
+         * larger than the message; otherwise this equals data.length.
+         * If zero, data.length is used when the event is written.
+         */
+        public int    dataLength;
+
         /**
          * Channel on which the message was received.
          */
         public String channel;
     }
 
+    /**
+     * Selects and renames events by channel while a log is read. The
+     * channel of each record is examined before its payload is
+     * copied, so rejected events cost little more than a seek.
+     */
+    public interface ChannelFilter
+    {
+        /**
+         * @param channel the channel on which the event was logged
+         * @return the channel on which to deliver the event, or null
+         * to skip it
+         */
+        public String filter(String channel);
+    }
+
     /**
      * Opens a log file for reading or writing.
      *
@@ -53,9 +124,50 @@ public class Log
      */
     public Log(String path, String mode) throws IOException
     {
+        this(path, mode, 0);
+    }
+
+    /**
+     * Opens a log file for reading or writing, optionally writing a
+     * block-compressed log.
+     *
+     * @param path the filename to open
+     * @param mode Specifies the access mode, must be one of "r", "rw",
+     * "rws", or "rwd".  See {@link java.io.RandomAccessFile#RandomAccessFile RandomAccessFile} for more detail.
+     * @param blockSize if positive, events written to the log are
+     * grouped into compressed blocks of approximately this many bytes
+     * (see {@link #DEFAULT_BLOCK_SIZE}), at most 16 MB. If zero,
+     * existing logs are read in whichever format they were written
+     * in, and new events are written uncompressed.
+     */
+    public Log(String path, String mode, int blockSize) throws IOException
+    {
+        if (blockSize > LogBlockIndex.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Log: block size "+blockSize+" is larger than "+
+                                               LogBlockIndex.MAX_BLOCK_SIZE);
+
         this.path = path;
         raf = new BufferedRandomAccessFile(path, mode);
         //raf = new RandomAccessFile(path, mode);
+
+        if (blockSize > 0) {
+            this.blockSize = blockSize;
+            blockIndex = new LogBlockIndex();
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            writeBuffer = new LCMDataOutputStream(blockSize + 65536);
+            LogBlockIndex.writeFileHeader(raf);
+        } else if (LogBlockIndex.detect(raf)) {
+            blockIndex = LogBlockIndex.read(raf);
+        }
+    }
+
+    /**
+     * Returns true if the log is stored in the block-compressed
+     * container.
+     */
+    public boolean isBlockCompressed()
+    {
+        return blockIndex != null;
     }
 
     /**
@@ -67,11 +179,29 @@ public class Log
         return path;
     }
 
+    /**
+     * Enables read-ahead for a log opened in "r" mode: while one
+     * buffer of the file is being read, the next one is fetched on a
+     * background thread. This smooths out sequential playback on slow
+     * or high-latency storage.
+     *
+     * @param bufferSize the size of each of the two read buffers, in
+     * bytes (see {@link #DEFAULT_READ_AHEAD_SIZE})
+     */
+    public synchronized void enableReadAhead(int bufferSize) throws IOException
+    {
+        raf.enableReadAhead(bufferSize);
+    }
+
     /**
      * Flush any unwritten data to the underlying file descriptor.
      **/
-    public void flush() throws IOException
+    public synchronized void flush() throws IOException
     {
+        // a block-compressed log can only flush whole blocks, so
+        // frequent flushes result in small blocks.
+        if (writeBuffer != null)
+            writeBlock();
         raf.flush();
     }
 
@@ -82,19 +212,57 @@ public class Log
      */
     public synchronized Event readNext() throws IOException
     {
-        int magic = 0;
-        Event e = new Event();
+        return readNext(null);
+    }
+
+    /**
+     * Reads the next event in the log file into an existing event
+     * object, to avoid allocating a new event for every message. The
+     * event's data array is reused if it is large enough to hold the
+     * message, so only the first {@link Event#dataLength} bytes are
+     * valid. Any previous contents of the event are overwritten, so
+     * callers must not hold on to its data once they read the next
+     * event.
+     *
+     * @param reuse an event previously returned by readNext, or null
+     * to allocate a new event
+     * @return the event that was read, which is 'reuse' if that was
+     * not null
+     * @throws java.io.EOFException if the end of the file has been reached.
+     */
+    public synchronized Event readNext(Event reuse) throws IOException
+    {
+        return readNext(reuse, null);
+    }
+
+    /**
+     * Reads the next event accepted by 'filter', skipping the
+     * payloads of all other events without copying them. The
+     * returned event's channel is the name returned by the filter.
+     *
+     * @param reuse an event previously returned by readNext, or null
+     * to allocate a new event
+     * @param filter selects and renames events, or null to read every
+     * event
+     * @throws java.io.EOFException if the end of the file has been reached.
+     */
+    public synchronized Event readNext(Event reuse, ChannelFilter filter) throws IOException
+    {
+        if (blockIndex != null)
+            return readNextFromBlock(reuse, filter);
+
+        Event e = (reuse != null) ? reuse : new Event();
         int channellen = 0, datalen = 0;
+        String channel;
 
         while (true)
         {
-            int v = raf.readByte()&0xff;
-
-            magic = (magic<<8) | v;
-
-            if (magic != LOG_MAGIC)
-                continue;
+            // find the next sync word, then confirm it by checking
+            // that the header fields are plausible.
+            skippedBytes += raf.skipToInt(LOG_MAGIC);
 
+            lastEventOffset = raf.getFilePointer();
+            raf.readInt();
             e.eventNumber = raf.readLong();
             e.utime       = raf.readLong();
 
@@ -104,26 +272,225 @@ public class Log
             if (channellen <= 0 || datalen <= 0 || channellen >= 256 || datalen >= 2147483647) {
                 System.out.printf("Bad log event eventnumber = 0x%08x utime = 0x%08x channellen = 0x%08x datalen=0x%08x\n",
                                   e.eventNumber, e.utime, channellen, datalen);
+                // the false candidate's first byte is skipped, too.
+                skippedBytes++;
+                raf.seek(lastEventOffset + 1);
+                continue;
+            }
+
+            raf.readFully(channelBuffer, 0, channellen);
+            channel = channelCache.get(channelBuffer, 0, channellen);
+            if (filter != null && (channel = filter.filter(channel)) == null) {
+                raf.seek(raf.getFilePointer() + datalen);
                 continue;
             }
             break;
         }
 
-        byte bchannel[] = new byte[channellen];
-        e.data = new byte[datalen];
+        e.channel = channel;
 
-        raf.readFully(bchannel);
-        e.channel = new String(bchannel);
-        raf.readFully(e.data);
+        if (reuse == null || e.data == null || e.data.length < datalen)
+            e.data = new byte[datalen];
+        raf.readFully(e.data, 0, datalen);
+        e.dataLength = datalen;
 
         return e;
     }
 
+    /** Reads the next event from the current block of a
+     * block-compressed log, moving on to later blocks as each one is
+     * exhausted. Events never span blocks, so resynchronization
+     * after a seek happens within the block. **/
+    Event readNextFromBlock(Event reuse, ChannelFilter filter) throws IOException
+    {
+        Event e = (reuse != null) ? reuse : new Event();
+
+        while (true) {
+            if (block < 0 || blockPos >= blockLength) {
+                if (block + 1 >= blockIndex.nblocks)
+                    throw new EOFException("EOF");
+                loadBlock(block + 1);
+            }
+
+            int idx = BufferedRandomAccessFile.indexOfInt(blockData, blockPos, blockLength, LOG_MAGIC);
+            if (idx < 0 || blockLength - idx < 28) {
+                skippedBytes += blockLength - blockPos;
+                blockPos = blockLength;
+                continue;
+            }
+            skippedBytes += idx - blockPos;
+            blockPos = idx + 4;
+
+            e.eventNumber = getLong(blockData, blockPos);
+            e.utime       = getLong(blockData, blockPos + 8);
+
+            int channellen = getInt(blockData, blockPos + 16);
+            int datalen    = getInt(blockData, blockPos + 20);
+
+            if (channellen <= 0 || datalen <= 0 || channellen >= 256 ||
+                blockLength - blockPos - 24 < channellen + (long) datalen) {
+                System.out.printf("Bad log event eventnumber = 0x%08x utime = 0x%08x channellen = 0x%08x datalen=0x%08x\n",
+                                  e.eventNumber, e.utime, channellen, datalen);
+                skippedBytes++;
+                blockPos = idx + 1;
+                continue;
+            }
+
+            lastEventOffset = blockIndex.offsets[block];
+            blockPos += 24;
+            String channel = channelCache.get(blockData, blockPos, channellen);
+            blockPos += channellen;
+            if (filter != null && (channel = filter.filter(channel)) == null) {
+                blockPos += datalen;
+                continue;
+            }
+
+            e.channel = channel;
+            if (reuse == null || e.data == null || e.data.length < datalen)
+                e.data = new byte[datalen];
+            System.arraycopy(blockData, blockPos, e.data, 0, datalen);
+            e.dataLength = datalen;
+            blockPos += datalen;
+
+            return e;
+        }
+    }
+
+    /** Makes block b the current block, inflating it unless it is
+     * already loaded, and positions at its start. **/
+    void loadBlock(int b) throws IOException
+    {
+        int len = blockIndex.uncompressedLengths[b];
+
+        if (b != loadedBlock) {
+            if (inflater == null)
+                inflater = new Inflater();
+            if (blockData == null || blockData.length < len)
+                blockData = new byte[len];
+
+            loadedBlock = -1;
+            compressedData = blockIndex.inflate(raf, inflater, b, compressedData, blockData);
+            loadedBlock = b;
+        }
+
+        block = b;
+        blockLength = len;
+        blockPos = 0;
+    }
+
+    /** Positions a block-compressed log at the start of block b
+     * without inflating it. **/
+    void seekBlock(int b)
+    {
+        block = b - 1;
+        blockLength = 0;
+        blockPos = 0;
+    }
+
+    /** A small direct-mapped cache of channel names keyed by their
+     * encoded bytes. Logs typically contain a modest number of
+     * channels, so most events find their name here instead of
+     * decoding a new String. **/
+    static class ChannelCache
+    {
+        static final int SIZE = 256; // must be power of two!
+
+        byte   keys[][] = new byte[SIZE][];
+        String values[] = new String[SIZE];
+
+        String get(byte b[], int offset, int len)
+        {
+            int h = len;
+            for (int i = 0; i < len; i++)
+                h = 31*h + b[offset + i];
+            int slot = (h ^ (h>>>16)) & (SIZE - 1);
+
+            byte k[] = keys[slot];
+            if (k != null && k.length == len) {
+                int i = 0;
+                while (i < len && k[i] == b[offset + i])
+                    i++;
+                if (i == len)
+                    return values[slot];
+            }
+
+            String s = new String(b, offset, len);
+            keys[slot] = Arrays.copyOfRange(b, offset, offset + len);
+            values[slot] = s;
+            return s;
+        }
+    }
+
+    static int getInt(byte b[], int offset)
+    {
+        return ((b[offset]&0xff)<<24) | ((b[offset+1]&0xff)<<16) |
+            ((b[offset+2]&0xff)<<8) | (b[offset+3]&0xff);
+    }
+
+    static long getLong(byte b[], int offset)
+    {
+        return (((long) getInt(b, offset))<<32) | (getInt(b, offset + 4)&0xffffffffL);
+    }
+
+    /**
+     * Returns the number of bytes that have been skipped while
+     * searching for the start of an event, e.g., after seeking into
+     * the middle of an event or when the log is corrupt.
+     */
+    public synchronized long getSkippedBytes()
+    {
+        return skippedBytes;
+    }
+
     public synchronized double getPositionFraction() throws IOException
     {
+        if (blockIndex != null) {
+            if (block < 0)
+                return LogBlockIndex.FILE_HEADER_SIZE/((double) raf.length());
+
+            // interpolate within the compressed extent of the block
+            long start = blockIndex.offsets[block];
+            long end = blockIndex.blockEnd(block);
+            double within = blockLength > 0 ? blockPos/((double) blockLength) : 1.0;
+            return (start + within*(end - start))/((double) raf.length());
+        }
+
         return raf.getFilePointer()/((double) raf.length());
     }
 
+    /** Returns a token for the current read position, which {@link
+     * #seekMark} restores exactly (unlike position fractions, which
+     * are approximate for block-compressed logs). **/
+    synchronized long getMark() throws IOException
+    {
+        if (blockIndex != null) {
+            // a block with no loaded data means "at the end of 'block'"
+            int pos = (blockLength == 0) ? -1 : blockPos;
+            return (((long) (block + 1))<<32) | (pos&0xffffffffL);
+        }
+
+        return raf.getFilePointer();
+    }
+
+    synchronized void seekMark(long mark) throws IOException
+    {
+        if (blockIndex != null) {
+            int b = (int) (mark>>>32) - 1;
+            int pos = (int) mark;
+            if (b < 0 || pos < 0) {
+                block = b;
+                blockLength = 0;
+                blockPos = 0;
+            } else {
+                loadBlock(b);
+                blockPos = pos;
+            }
+            return;
+        }
+
+        raf.seek(mark);
+    }
+
     /**
      * Seek to a position in the log file, specified by a fraction.
      *
@@ -131,9 +498,112 @@ public class Log
      */
     public synchronized void seekPositionFraction(double frac) throws IOException
     {
+        if (blockIndex != null) {
+            seekBlockOffset((long) (raf.length()*frac));
+            return;
+        }
+
         raf.seek((long) (raf.length()*frac));
     }
 
+    /** Positions the log at its first event at or after 'utime',
+     * assuming that timestamps are non-decreasing, or at the end if
+     * there is none. **/
+    synchronized void seekToUtime(long utime) throws IOException
+    {
+        // a block-compressed log's index leads straight to the block;
+        // otherwise, bisect on file position for the last position
+        // whose next event is before 'utime'...
+        if (!seekBlockByUtime(utime)) {
+            double lo = 0, hi = 1;
+            for (int iter = 0; iter < 30 && hi - lo > 1.0E-9; iter++) {
+                double mid = (lo + hi)/2;
+                seekPositionFraction(mid);
+                Event e;
+                try {
+                    e = readNext();
+                } catch (EOFException ex) {
+                    e = null;
+                }
+                if (e == null || e.utime >= utime)
+                    hi = mid;
+                else
+                    lo = mid;
+            }
+            seekPositionFraction(lo);
+        }
+
+        // ... then scan forward to the exact event.
+        Event e = null;
+        while (true) {
+            long mark = getMark();
+            try {
+                e = readNext(e);
+            } catch (EOFException ex) {
+                seekMark(mark);
+                return;
+            }
+            if (e.utime >= utime) {
+                seekMark(mark);
+                return;
+            }
+        }
+    }
+
+    /** Returns the length of the log file in bytes. **/
+    synchronized long length() throws IOException
+    {
+        return raf.length();
+    }
+
+    /** If the log is block-compressed, positions it at the start of
+     * the last block that starts before 'utime', from which a forward
+     * scan finds the first event at or after 'utime' if timestamps are
+     * non-decreasing, and returns true. The block index records each
+     * block's first timestamp, so no block is inflated. Returns false,
+     * without moving, for a plain log. **/
+    synchronized boolean seekBlockByUtime(long utime) throws IOException
+    {
+        if (blockIndex == null)
+            return false;
+
+        // an event at 'utime' may end the block before the first one
+        // that starts at 'utime'.
+        int b = blockIndex.findBlockByUtime(Math.max(utime, Long.MIN_VALUE + 1) - 1);
+        block = b - 1;
+        blockLength = 0;
+        blockPos = 0;
+        return true;
+    }
+
+    /** Positions a block-compressed log at the (interpolated)
+     * uncompressed position corresponding to a file offset. Only the
+     * block containing that offset is inflated. **/
+    void seekBlockOffset(long offset) throws IOException
+    {
+        if (blockIndex.nblocks == 0 || offset < blockIndex.offsets[0]) {
+            block = -1;
+            blockLength = 0;
+            blockPos = 0;
+            return;
+        }
+
+        int b = blockIndex.findBlockByOffset(offset);
+        long start = blockIndex.offsets[b];
+        long end = blockIndex.blockEnd(b);
+
+        if (offset >= end) {
+            // past the last block: position at its end without inflating it.
+            block = b;
+            blockLength = 0;
+            blockPos = 0;
+            return;
+        }
+
+        loadBlock(b);
+        blockPos = (int) (blockLength*((offset - start)/((double) (end - start))));
+    }
+
     /**
      * Writes an event to the log file. The user is responsible for
      * filling in the eventNumber field, which should be sequentially
@@ -142,15 +612,47 @@ public class Log
     public synchronized void write(Event e) throws IOException
     {
         byte[] channelb = e.channel.getBytes();
+        int datalen = (e.dataLength > 0 && e.dataLength <= e.data.length) ? e.dataLength : e.data.length;
+
+        if (blockIndex != null) {
+            if (writeBuffer == null)
+                throw new IOException("Cannot append to existing block-compressed log "+path);
+
+            // readers reject blocks larger than this
+            long recordLength = 24 + channelb.length + (long) datalen;
+            if (writeBuffer.size() + recordLength > LogBlockIndex.MAX_UNCOMPRESSED_LENGTH)
+                writeBlock();
+            if (recordLength > LogBlockIndex.MAX_UNCOMPRESSED_LENGTH)
+                throw new IOException("Event of "+datalen+" bytes is too large for a block-compressed log");
+
+            if (writeBlockEvents == 0) {
+                writeBlockFirstEventNumber = e.eventNumber;
+                writeBlockFirstUtime = e.utime;
+            }
+            writeBlockLastUtime = e.utime;
+            writeBlockEvents++;
+
+            writeBuffer.writeInt(LOG_MAGIC);
+            writeBuffer.writeLong(e.eventNumber);
+            writeBuffer.writeLong(e.utime);
+            writeBuffer.writeInt(channelb.length);
+            writeBuffer.writeInt(datalen);
+            writeBuffer.write(channelb, 0, channelb.length);
+            writeBuffer.write(e.data, 0, datalen);
+
+            if (writeBuffer.size() >= blockSize)
+                writeBlock();
+            return;
+        }
 
         raf.writeInt(LOG_MAGIC);
         raf.writeLong(e.eventNumber);
         raf.writeLong(e.utime);
         raf.writeInt(channelb.length);
-        raf.writeInt(e.data.length);
+        raf.writeInt(datalen);
 
         raf.write(channelb, 0, channelb.length);
-        raf.write(e.data, 0, e.data.length);
+        raf.write(e.data, 0, datalen);
     }
 
     /** A convenience method for write. It internally manages the
@@ -170,11 +672,60 @@ public class Log
         numMessagesWritten++;
     }
 
+    /** Compresses any buffered events into a new block and appends
+     * it to the file. **/
+    void writeBlock() throws IOException
+    {
+        if (writeBlockEvents == 0)
+            return;
+
+        int len = writeBuffer.size();
+        if (compressedData == null)
+            compressedData = new byte[len/2 + 1024];
+
+        deflater.reset();
+        deflater.setInput(writeBuffer.getBuffer(), 0, len);
+        deflater.finish();
+
+        int clen = 0;
+        while (!deflater.finished()) {
+            if (clen == compressedData.length)
+                compressedData = Arrays.copyOf(compressedData, compressedData.length*2);
+            clen += deflater.deflate(compressedData, clen, compressedData.length - clen);
+        }
+
+        long offset = raf.getFilePointer();
+        raf.writeInt(LogBlockIndex.BLOCK_MAGIC);
+        raf.writeLong(writeBlockFirstEventNumber);
+        raf.writeLong(writeBlockFirstUtime);
+        raf.writeLong(writeBlockLastUtime);
+        raf.writeInt(writeBlockEvents);
+        raf.writeInt(len);
+        raf.writeInt(clen);
+        raf.write(compressedData, 0, clen);
+
+        blockIndex.add(offset, writeBlockFirstEventNumber, writeBlockFirstUtime,
+                       writeBlockLastUtime, writeBlockEvents, len, clen);
+
+        writeBuffer.reset();
+        writeBlockEvents = 0;
+    }
+
     /**
      * Closes the log file and releases and system resources used by it.
      */
     public synchronized void close() throws IOException
     {
+        if (writeBuffer != null) {
+            writeBlock();
+            blockIndex.writeTrailer(raf);
+            writeBuffer = null;
+        }
+        if (deflater != null)
+            deflater.end();
+        if (inflater != null)
+            inflater.end();
+
         raf.close();
     }
 }
@@ -0,0 +1,297 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import lcm.util.*;
+
+/**
+ * Layout constants and the block index of a block-compressed log
+ * file. A block-compressed log starts with a file header, followed by
+ * a sequence of independently deflated blocks. The uncompressed
+ * contents of each block are ordinary LOG_MAGIC event records, and
+ * an event never spans two blocks. On close, the writer appends a
+ * copy of the index and a fixed-size trailer pointing at it; files
+ * without a trailer (e.g., a crashed writer) are indexed by walking
+ * the block headers instead.
+ **/
+class LogBlockIndex
+{
+    static final int FILE_MAGIC  = 0xEDA1DB01;
+    static final int BLOCK_MAGIC = 0xEDA1DB02;
+    static final int INDEX_MAGIC = 0xEDA1DB03;
+
+    static final int VERSION = 1;
+    static final int CODEC_DEFLATE = 1;
+
+    /** magic, version, codec **/
+    static final int FILE_HEADER_SIZE = 12;
+
+    /** magic, first event number, first utime, last utime, number
+     * of events, uncompressed length, compressed length **/
+    static final int BLOCK_HEADER_SIZE = 40;
+
+    /** block offset, first event number, first utime, last utime,
+     * number of events, uncompressed length, compressed length **/
+    static final int INDEX_ENTRY_SIZE = 44;
+
+    /** index offset, magic **/
+    static final int TRAILER_SIZE = 12;
+
+    /** The largest block size a writer accepts. **/
+    static final int MAX_BLOCK_SIZE = 16*1024*1024;
+
+    /** The largest uncompressed block a reader accepts, so that a
+     * damaged index or block header cannot make it allocate an
+     * arbitrary amount of memory; a writer never writes a larger one. **/
+    static final int MAX_UNCOMPRESSED_LENGTH = 16*MAX_BLOCK_SIZE;
+
+    int      nblocks;
+    long     offsets[] = new long[16];   // file offset of each block header
+    long     firstEventNumbers[] = new long[16];
+    long     firstUtimes[] = new long[16];
+    long     lastUtimes[] = new long[16];
+    int      numEvents[] = new int[16];
+    int      uncompressedLengths[] = new int[16];
+    int      compressedLengths[] = new int[16];
+
+    /** File offset just past the last block. **/
+    long     dataEnd = FILE_HEADER_SIZE;
+
+    void add(long offset, long firstEventNumber, long firstUtime, long lastUtime,
+             int nevents, int uncompressedLength, int compressedLength)
+    {
+        if (nblocks == offsets.length) {
+            int newlen = offsets.length*2;
+            offsets = Arrays.copyOf(offsets, newlen);
+            firstEventNumbers = Arrays.copyOf(firstEventNumbers, newlen);
+            firstUtimes = Arrays.copyOf(firstUtimes, newlen);
+            lastUtimes = Arrays.copyOf(lastUtimes, newlen);
+            numEvents = Arrays.copyOf(numEvents, newlen);
+            uncompressedLengths = Arrays.copyOf(uncompressedLengths, newlen);
+            compressedLengths = Arrays.copyOf(compressedLengths, newlen);
+        }
+
+        offsets[nblocks] = offset;
+        firstEventNumbers[nblocks] = firstEventNumber;
+        firstUtimes[nblocks] = firstUtime;
+        lastUtimes[nblocks] = lastUtime;
+        numEvents[nblocks] = nevents;
+        uncompressedLengths[nblocks] = uncompressedLength;
+        compressedLengths[nblocks] = compressedLength;
+        nblocks++;
+
+        dataEnd = offset + BLOCK_HEADER_SIZE + compressedLength;
+    }
+
+    /** File offset of the first byte after block i. **/
+    long blockEnd(int i)
+    {
+        return offsets[i] + BLOCK_HEADER_SIZE + compressedLengths[i];
+    }
+
+    /** Returns the last block whose header starts at or before
+     * 'offset', or 0 if there is none. **/
+    int findBlockByOffset(long offset)
+    {
+        int lo = 0, hi = nblocks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** Returns the last block whose first event is at or before
+     * 'utime', or 0 if there is none. **/
+    int findBlockByUtime(long utime)
+    {
+        int lo = 0, hi = nblocks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firstUtimes[mid] <= utime)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** Returns true if the file begins with a block-compressed
+     * header. The file position is left just past the header if so,
+     * and at zero otherwise. **/
+    static boolean detect(BufferedRandomAccessFile raf) throws IOException
+    {
+        raf.seek(0);
+        if (raf.length() >= FILE_HEADER_SIZE && raf.readInt() == FILE_MAGIC) {
+            int version = raf.readInt();
+            int codec = raf.readInt();
+            if (version != VERSION || codec != CODEC_DEFLATE)
+                throw new IOException(String.format("Unsupported block-compressed log (version %d, codec %d)",
+                                                    version, codec));
+            return true;
+        }
+        raf.seek(0);
+        return false;
+    }
+
+    static void writeFileHeader(BufferedRandomAccessFile raf) throws IOException
+    {
+        raf.writeInt(FILE_MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(CODEC_DEFLATE);
+    }
+
+    /** Loads the index from the trailer if there is a valid one;
+     * otherwise, rebuilds it by walking the block headers. **/
+    static LogBlockIndex read(BufferedRandomAccessFile raf) throws IOException
+    {
+        LogBlockIndex idx = readTrailer(raf);
+        if (idx == null)
+            idx = scanBlocks(raf);
+        return idx;
+    }
+
+    static LogBlockIndex readTrailer(BufferedRandomAccessFile raf) throws IOException
+    {
+        long length = raf.length();
+        if (length < FILE_HEADER_SIZE + TRAILER_SIZE)
+            return null;
+
+        raf.seek(length - TRAILER_SIZE);
+        long indexOffset = raf.readLong();
+        if (raf.readInt() != INDEX_MAGIC)
+            return null;
+        if (indexOffset < FILE_HEADER_SIZE || indexOffset + 8 > length - TRAILER_SIZE)
+            return null;
+
+        raf.seek(indexOffset);
+        if (raf.readInt() != INDEX_MAGIC)
+            return null;
+        int n = raf.readInt();
+        if (n < 0 || indexOffset + 8 + INDEX_ENTRY_SIZE*(long) n != length - TRAILER_SIZE)
+            return null;
+
+        LogBlockIndex idx = new LogBlockIndex();
+        for (int i = 0; i < n; i++) {
+            long offset = raf.readLong();
+            long firstEventNumber = raf.readLong();
+            long firstUtime = raf.readLong();
+            long lastUtime = raf.readLong();
+            int nevents = raf.readInt();
+            int uncompressedLength = raf.readInt();
+            int compressedLength = raf.readInt();
+
+            // the blocks lie in order between the file header and the
+            // index; if not, the index is damaged, so walk the blocks.
+            if (!isValidBlock(idx.dataEnd, indexOffset, offset, nevents,
+                              uncompressedLength, compressedLength))
+                return null;
+
+            idx.add(offset, firstEventNumber, firstUtime, lastUtime, nevents,
+                    uncompressedLength, compressedLength);
+        }
+        return idx;
+    }
+
+    /** Whether a block that starts at 'offset', at or after 'start',
+     * ends by 'limit' and has plausible lengths. **/
+    static boolean isValidBlock(long start, long limit, long offset, int nevents,
+                                int uncompressedLength, int compressedLength)
+    {
+        return offset >= start && nevents >= 0 &&
+            uncompressedLength >= 0 && uncompressedLength <= MAX_UNCOMPRESSED_LENGTH &&
+            compressedLength >= 0 && offset + BLOCK_HEADER_SIZE + (long) compressedLength <= limit;
+    }
+
+    static LogBlockIndex scanBlocks(BufferedRandomAccessFile raf) throws IOException
+    {
+        LogBlockIndex idx = new LogBlockIndex();
+        long length = raf.length();
+        long offset = FILE_HEADER_SIZE;
+
+        while (offset + BLOCK_HEADER_SIZE <= length) {
+            raf.seek(offset);
+            if (raf.readInt() != BLOCK_MAGIC)
+                break;
+
+            long firstEventNumber = raf.readLong();
+            long firstUtime = raf.readLong();
+            long lastUtime = raf.readLong();
+            int nevents = raf.readInt();
+            int uncompressedLength = raf.readInt();
+            int compressedLength = raf.readInt();
+
+            // a partially-written or damaged block marks the end of
+            // usable data.
+            if (!isValidBlock(offset, length, offset, nevents,
+                              uncompressedLength, compressedLength))
+                break;
+
+            idx.add(offset, firstEventNumber, firstUtime, lastUtime, nevents,
+                    uncompressedLength, compressedLength);
+            offset = idx.dataEnd;
+        }
+
+        return idx;
+    }
+
+    /** Appends the index and trailer at the current file position,
+     * which must be dataEnd. **/
+    void writeTrailer(BufferedRandomAccessFile raf) throws IOException
+    {
+        long indexOffset = raf.getFilePointer();
+
+        raf.writeInt(INDEX_MAGIC);
+        raf.writeInt(nblocks);
+        for (int i = 0; i < nblocks; i++) {
+            raf.writeLong(offsets[i]);
+            raf.writeLong(firstEventNumbers[i]);
+            raf.writeLong(firstUtimes[i]);
+            raf.writeLong(lastUtimes[i]);
+            raf.writeInt(numEvents[i]);
+            raf.writeInt(uncompressedLengths[i]);
+            raf.writeInt(compressedLengths[i]);
+        }
+
+        raf.writeLong(indexOffset);
+        raf.writeInt(INDEX_MAGIC);
+    }
+
+    /** Reads and inflates block i into 'dest', which must hold at
+     * least uncompressedLengths[i] bytes. 'scratch' receives the
+     * compressed bytes and is grown as necessary; the (possibly new)
+     * scratch buffer is returned. **/
+    byte[] inflate(BufferedRandomAccessFile raf, Inflater inflater, int i,
+                   byte scratch[], byte dest[]) throws IOException
+    {
+        int clen = compressedLengths[i];
+        if (scratch == null || scratch.length < clen)
+            scratch = new byte[clen];
+
+        raf.seek(offsets[i] + BLOCK_HEADER_SIZE);
+        raf.readFully(scratch, 0, clen);
+
+        inflater.reset();
+        inflater.setInput(scratch, 0, clen);
+        try {
+            int pos = 0, len = uncompressedLengths[i];
+            while (pos < len) {
+                int n = inflater.inflate(dest, pos, len - pos);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                pos += n;
+            }
+            if (pos != len)
+                throw new IOException("Truncated log block at offset "+offsets[i]);
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt log block at offset "+offsets[i]+": "+ex.getMessage());
+        }
+
+        return scratch;
+    }
+}
@@ -25,23 +25,86 @@ public class LogDiagnostic
         }
     }
 
+    /** How many ranges the log is split into; each range's
+     * diagnostics are held until it is printed. **/
+    static final int MAX_RANGES = 1024;
+
     public static void main_ex(String args[]) throws IOException
     {
-        Log log = new Log(args[0], "r");
+        LogScanner scanner = new LogScanner(args[0]);
+
+        // ranges of the log are checked in parallel; each range's
+        // diagnostics are printed, in file order, as soon as it and the
+        // ranges before it are done.
+        Printer printer = new Printer();
+        try {
+            scanner.ranges(MAX_RANGES).parallelStream()
+                .map(LogDiagnostic::diagnose)
+                .forEachOrdered(printer::print);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            scanner.close();
+        }
+    }
+
+    static Diagnostics diagnose(Spliterator<Log.Event> range)
+    {
+        Diagnostics d = new Diagnostics();
+        range.forEachRemaining(d::accept);
+        return d;
+    }
 
+    /** Prints the diagnostics of each range in turn, checking the gap
+     * from the end of the range before; only where that range ended
+     * is kept. **/
+    static class Printer
+    {
         long last_utime = 0;
 
-        while (true) {
-            Log.Event e = log.readNext();
+        void print(Diagnostics d)
+        {
+            if (d.last_utime == 0)
+                return;
 
-            long dutime = e.utime - last_utime;
-            if (dutime < 0 && last_utime != 0)
-                System.out.printf("%15d Negative utime (%10d)\n", e.utime, dutime);
-            if (dutime > 1000000)
-                System.out.printf("%15d Large utime    (%10d)\n", e.utime, dutime);
+            if (last_utime != 0) {
+                ArrayList<String> seam = new ArrayList<String>();
+                Diagnostics.check(d.first_utime, last_utime, seam);
+                for (String msg : seam)
+                    System.out.print(msg);
+            }
+            for (String msg : d.messages)
+                System.out.print(msg);
+            System.out.flush();
+
+            last_utime = d.last_utime;
+        }
+    }
+
+    /** The diagnostics for a contiguous run of events. **/
+    static class Diagnostics
+    {
+        long first_utime = 0;
+        long last_utime = 0;
+        ArrayList<String> messages = new ArrayList<String>();
+
+        void accept(Log.Event e)
+        {
+            if (last_utime == 0)
+                first_utime = e.utime;
+            else
+                check(e.utime, last_utime, messages);
 
             last_utime = e.utime;
         }
 
+        static void check(long utime, long last_utime, ArrayList<String> messages)
+        {
+            long dutime = utime - last_utime;
+            if (dutime < 0)
+                messages.add(String.format("%15d Negative utime (%10d)\n", utime, dutime));
+            if (dutime > 1000000)
+                messages.add(String.format("%15d Large utime    (%10d)\n", utime, dutime));
+        }
     }
 }
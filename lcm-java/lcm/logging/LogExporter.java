@@ -0,0 +1,373 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Copies regions of a log into new log files in the background. Any
+ * number of regions, each with its own output file and channel
+ * filter, are exported in a single pass over the input.
+ *
+ * The export runs as a pipeline of three threads connected by
+ * bounded queues of event batches: a reader that decodes events from
+ * the input, a filter stage that selects and renames the events for
+ * each region, and a writer that appends them to the output logs.
+ * Progress can be polled or observed with a listener, and the export
+ * can be cancelled; the outputs of a cancelled or failed export are
+ * deleted.
+ **/
+public class LogExporter
+{
+    /** Events per batch passed between the stages. **/
+    static final int BATCH_SIZE = 256;
+
+    /** Batches buffered between two stages. **/
+    static final int QUEUE_DEPTH = 16;
+
+    /** A run of consecutive events, with the input position at which
+     * each started, and the events selected for each region. **/
+    static class Batch
+    {
+        Log.Event events[] = new Log.Event[BATCH_SIZE];
+        double    positions[] = new double[BATCH_SIZE];
+        int       n;
+        ArrayList<ArrayList<Log.Event>> outputs;
+    }
+
+    /** Marks the end of the stream of batches. **/
+    static final Batch END = new Batch();
+
+    /** A part of the input log, written to its own output file. **/
+    public static class Region
+    {
+        double startFraction;
+        double endFraction;
+        String outputPath;
+        Log.ChannelFilter filter;
+
+        /**
+         * @param startFraction the position in the input, as a fraction
+         * of its length, of the first event to export
+         * @param endFraction the events starting before this position
+         * are exported
+         * @param outputPath the log file to write
+         * @param filter selects and renames the events to export, or
+         * null to export every event unchanged
+         */
+        public Region(double startFraction, double endFraction, String outputPath,
+                      Log.ChannelFilter filter)
+        {
+            this.startFraction = startFraction;
+            this.endFraction = endFraction;
+            this.outputPath = outputPath;
+            this.filter = filter;
+        }
+    }
+
+    /** Receives progress notifications on the exporter's threads. **/
+    public interface Listener
+    {
+        /** Called periodically with the fraction [0, 1] of the work
+         * done. **/
+        public void exportProgress(LogExporter exporter, double fraction);
+
+        /** Called once when the export has finished.
+         *
+         * @param error the error that stopped the export, or null if it
+         * completed or was cancelled
+         **/
+        public void exportFinished(LogExporter exporter, IOException error);
+    }
+
+    String inputPath;
+    Region regions[];
+    Listener listener;
+
+    double startFraction, endFraction;
+
+    BlockingQueue<Batch> readQueue = new ArrayBlockingQueue<Batch>(QUEUE_DEPTH);
+    BlockingQueue<Batch> writeQueue = new ArrayBlockingQueue<Batch>(QUEUE_DEPTH);
+
+    volatile boolean cancelled;
+    volatile double progress;
+    volatile IOException error;
+    CountDownLatch finished = new CountDownLatch(1);
+
+    Thread threads[];
+
+    /**
+     * @param inputPath the log to export from
+     * @param regions the regions to export
+     * @param listener notified of progress, or null
+     */
+    public LogExporter(String inputPath, List<Region> regions, Listener listener)
+    {
+        if (regions.isEmpty())
+            throw new IllegalArgumentException("LogExporter: no regions");
+
+        this.inputPath = inputPath;
+        this.regions = regions.toArray(new Region[regions.size()]);
+        this.listener = listener;
+
+        startFraction = 1;
+        endFraction = 0;
+        for (Region r : this.regions) {
+            startFraction = Math.min(startFraction, r.startFraction);
+            endFraction = Math.max(endFraction, r.endFraction);
+        }
+    }
+
+    /** Starts the export threads. **/
+    public synchronized void start()
+    {
+        if (threads != null)
+            return;
+
+        threads = new Thread[] { new ReaderThread(), new FilterThread(), new WriterThread() };
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Stops the export as soon as possible. Partially written outputs
+     * are deleted. **/
+    public void cancel()
+    {
+        cancelled = true;
+
+        Thread ts[];
+        synchronized (this) {
+            ts = threads;
+        }
+        if (ts != null) {
+            for (Thread t : ts)
+                t.interrupt();
+        }
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public boolean isDone()
+    {
+        return finished.getCount() == 0;
+    }
+
+    /** Returns the fraction [0, 1] of the input range read so far. **/
+    public double getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * Waits for the export to finish.
+     *
+     * @return true if the export completed, false if it was cancelled
+     * @throws IOException if the export failed
+     */
+    public boolean waitFor() throws IOException, InterruptedException
+    {
+        finished.await();
+        if (error != null)
+            throw error;
+        return !cancelled;
+    }
+
+    /** Records the first error and stops the other stages. Each stage
+     * reports any exception here, including a RuntimeException from a
+     * filter, a listener or a corrupt record, so that no stage is left
+     * waiting for one that has died. **/
+    void fail(IOException ex)
+    {
+        synchronized (this) {
+            if (error == null)
+                error = ex;
+        }
+        cancel();
+    }
+
+    class ReaderThread extends Thread
+    {
+        ReaderThread()
+        {
+            super("LogExporter reader");
+        }
+
+        public void run()
+        {
+            Log log = null;
+            try {
+                log = new Log(inputPath, "r");
+                log.enableReadAhead(Log.DEFAULT_READ_AHEAD_SIZE);
+                log.seekPositionFraction(startFraction);
+
+                double range = Math.max(endFraction - startFraction, 1.0E-9);
+                double reported = 0;
+                Batch batch = new Batch();
+
+                while (!cancelled) {
+                    double pos = log.getPositionFraction();
+                    if (pos >= endFraction)
+                        break;
+
+                    Log.Event e;
+                    try {
+                        e = log.readNext();
+                    } catch (EOFException ex) {
+                        break;
+                    }
+
+                    batch.events[batch.n] = e;
+                    batch.positions[batch.n] = pos;
+                    batch.n++;
+
+                    if (batch.n == BATCH_SIZE) {
+                        readQueue.put(batch);
+                        batch = new Batch();
+
+                        progress = Math.min(1, (pos - startFraction)/range);
+                        if (listener != null && progress - reported >= 0.001) {
+                            listener.exportProgress(LogExporter.this, progress);
+                            reported = progress;
+                        }
+                    }
+                }
+
+                if (batch.n > 0)
+                    readQueue.put(batch);
+                readQueue.put(END);
+            } catch (InterruptedException ex) {
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(new IOException(ex));
+            } finally {
+                try {
+                    if (log != null)
+                        log.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    class FilterThread extends Thread
+    {
+        FilterThread()
+        {
+            super("LogExporter filter");
+        }
+
+        public void run()
+        {
+            try {
+                while (true) {
+                    Batch batch = readQueue.take();
+                    if (batch != END)
+                        filter(batch);
+                    writeQueue.put(batch);
+                    if (batch == END)
+                        break;
+                }
+            } catch (InterruptedException ex) {
+            } catch (RuntimeException ex) {
+                fail(new IOException(ex));
+            }
+        }
+
+        void filter(Batch batch)
+        {
+            batch.outputs = new ArrayList<ArrayList<Log.Event>>(regions.length);
+
+            for (Region r : regions) {
+                ArrayList<Log.Event> out = new ArrayList<Log.Event>();
+
+                for (int i = 0; i < batch.n; i++) {
+                    double pos = batch.positions[i];
+                    if (pos < r.startFraction || pos >= r.endFraction)
+                        continue;
+
+                    Log.Event e = batch.events[i];
+                    String channel = (r.filter == null) ? e.channel : r.filter.filter(e.channel);
+                    if (channel == null || channel.length() == 0)
+                        continue;
+
+                    if (!channel.equals(e.channel)) {
+                        // the payload is shared; only the channel differs.
+                        Log.Event renamed = new Log.Event();
+                        renamed.eventNumber = e.eventNumber;
+                        renamed.utime = e.utime;
+                        renamed.channel = channel;
+                        renamed.data = e.data;
+                        renamed.dataLength = e.dataLength;
+                        e = renamed;
+                    }
+                    out.add(e);
+                }
+
+                batch.outputs.add(out);
+            }
+        }
+    }
+
+    class WriterThread extends Thread
+    {
+        WriterThread()
+        {
+            super("LogExporter writer");
+        }
+
+        public void run()
+        {
+            Log logs[] = new Log[regions.length];
+
+            try {
+                for (int i = 0; i < regions.length; i++)
+                    logs[i] = new Log(regions[i].outputPath, "rw");
+
+                while (true) {
+                    Batch batch = writeQueue.take();
+                    if (batch == END)
+                        break;
+
+                    for (int i = 0; i < regions.length; i++) {
+                        for (Log.Event e : batch.outputs.get(i))
+                            logs[i].write(e);
+                    }
+                }
+            } catch (InterruptedException ex) {
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(new IOException(ex));
+            }
+
+            for (Log log : logs) {
+                try {
+                    if (log != null)
+                        log.close();
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+
+            if (cancelled) {
+                for (Region r : regions)
+                    new File(r.outputPath).delete();
+            } else {
+                progress = 1;
+            }
+
+            try {
+                if (listener != null)
+                    listener.exportFinished(LogExporter.this, error);
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+import lcm.lcm.*;
+
+/**
+ * Remote control of a {@link LogPlaybackEngine} over LCM. Commands
+ * are received on a control channel, and the engine's state is
+ * published on a status channel. By default, both are on the LCM
+ * instance that the log is played onto, and the engine then plays no
+ * recorded events onto them; since anyone who can publish on that
+ * LCM network can then control the player, a separate LCM instance,
+ * e.g., one on a private multicast group with ttl=0, can be used
+ * instead.
+ *
+ * Both messages are fixed-size big-endian records. A command is:
+ *
+ * <pre>
+ *   int32  magic     (COMMAND_MAGIC)
+ *   int32  sequence  (chosen by the sender, echoed in the status)
+ *   int32  opcode    (OP_*)
+ *   int64  argument  (a utime or count, or a double's raw bits)
+ * </pre>
+ *
+ * A status message is published after each command has been
+ * executed. While a controller is active, i.e., for ACTIVE_SECONDS
+ * after its last command, status is also published periodically and
+ * when playback stops; a controller that wants to keep receiving it
+ * sends OP_STATUS now and then. Nothing is published until the first
+ * command arrives.
+ *
+ *
+ * <pre>
+ *   int32  magic           (STATUS_MAGIC)
+ *   int32  sequence        (of the last command executed)
+ *   int32  playing         (0 or 1)
+ *   double speed
+ *   int64  utime           (of the last event played, or -1)
+ *   int64  eventNumber     (of the last event played, or -1)
+ *   double position        (fraction [0, 1] of the log file)
+ *   int64  latenessNanos   (of the last event played)
+ * </pre>
+ *
+ * Commands are executed in order on a dedicated thread, so a slow
+ * command (e.g., a seek in a large log) does not hold up LCM's
+ * receive thread.
+ **/
+public class LogPlaybackControl
+{
+    public static final String DEFAULT_CONTROL_CHANNEL = "LCM_LOGPLAYER_CONTROL";
+    public static final String DEFAULT_STATUS_CHANNEL = "LCM_LOGPLAYER_STATUS";
+
+    public static final int COMMAND_MAGIC = 0x4c504331; // "LPC1"
+    public static final int STATUS_MAGIC  = 0x4c505331; // "LPS1"
+
+    /** How long status keeps being published after a command. **/
+    public static final double ACTIVE_SECONDS = 5;
+
+    public static final int COMMAND_SIZE = 20;
+    public static final int STATUS_SIZE  = 52;
+
+    public static final int OP_PLAY = 1;
+    public static final int OP_PAUSE = 2;
+    public static final int OP_TOGGLE = 3;
+    /** argument: utime of the first event to play. **/
+    public static final int OP_SEEK_UTIME = 4;
+    /** argument: a double, the fraction of the log file. **/
+    public static final int OP_SEEK_FRACTION = 5;
+    /** argument: a double, seconds relative to the last event played. **/
+    public static final int OP_SEEK_RELATIVE = 6;
+    /** argument: number of events to play. **/
+    public static final int OP_STEP = 7;
+    /** argument: a double, the playback speed. **/
+    public static final int OP_SET_SPEED = 8;
+    /** publishes a status message and does nothing else. **/
+    public static final int OP_STATUS = 9;
+
+    /** A decoded status message. **/
+    public static class Status
+    {
+        public int     sequence;
+        public boolean playing;
+        public double  speed;
+        public long    utime;
+        public long    eventNumber;
+        public double  position;
+        public long    latenessNanos;
+
+        public static Status decode(DataInput ins) throws IOException
+        {
+            if (ins.readInt() != STATUS_MAGIC)
+                throw new IOException("LogPlaybackControl: bad status magic");
+
+            Status s = new Status();
+            s.sequence = ins.readInt();
+            s.playing = ins.readInt() != 0;
+            s.speed = ins.readDouble();
+            s.utime = ins.readLong();
+            s.eventNumber = ins.readLong();
+            s.position = ins.readDouble();
+            s.latenessNanos = ins.readLong();
+            return s;
+        }
+    }
+
+    static class Command
+    {
+        int  sequence;
+        int  opcode;
+        long argument;
+    }
+
+    LogPlaybackEngine engine;
+    LCM lcm;
+    String controlChannel, statusChannel;
+    long statusIntervalNanos;
+
+    BlockingQueue<Command> commands = new LinkedBlockingQueue<Command>();
+    volatile int lastSequence;
+
+    // queued when playback stops, so that the end of a step or of the
+    // log is reported promptly.
+    Command statusRequest = new Command();
+
+    LCMDataOutputStream statusBuffer = new LCMDataOutputStream(new byte[STATUS_SIZE]);
+
+    ControlThread thread;
+    LCMSubscriber subscriber;
+    LogPlaybackEngine.Listener listener;
+
+    public LogPlaybackControl(LogPlaybackEngine engine)
+    {
+        this(engine, DEFAULT_CONTROL_CHANNEL, DEFAULT_STATUS_CHANNEL, 10);
+    }
+
+    /**
+     * @param engine the engine to control; commands and status use its
+     * LCM instance
+     * @param controlChannel the channel on which commands are received
+     * @param statusChannel the channel on which status is published
+     * @param statusHz how often to publish status while a controller
+     * is active
+     */
+    public LogPlaybackControl(LogPlaybackEngine engine, String controlChannel,
+                              String statusChannel, double statusHz)
+    {
+        this(engine, engine.getLCM(), controlChannel, statusChannel, statusHz);
+    }
+
+    /**
+     * @param engine the engine to control
+     * @param lcm the LCM instance for commands and status; if it is the
+     * engine's, the engine plays no events onto the two channels
+     * @param controlChannel the channel on which commands are received
+     * @param statusChannel the channel on which status is published
+     * @param statusHz how often to publish status while a controller
+     * is active
+     */
+    public LogPlaybackControl(LogPlaybackEngine engine, LCM lcm, String controlChannel,
+                              String statusChannel, double statusHz)
+    {
+        this.engine = engine;
+        this.lcm = lcm;
+        this.controlChannel = controlChannel;
+        this.statusChannel = statusChannel;
+        this.statusIntervalNanos = (long) (1.0E9/statusHz);
+
+        statusRequest.opcode = OP_STATUS;
+
+        if (lcm == engine.getLCM()) {
+            engine.reserveChannel(controlChannel);
+            engine.reserveChannel(statusChannel);
+        }
+
+        listener = new LogPlaybackEngine.Listener() {
+            public void eventPlayed(LogPlaybackEngine engine, Log.Event e, String outchannel) { }
+            public void seeked(LogPlaybackEngine engine, Log.Event next) { }
+            public void speedChanged(LogPlaybackEngine engine, double speed) { }
+            public void playingChanged(LogPlaybackEngine engine, boolean playing) {
+                if (!playing)
+                    commands.offer(statusRequest);
+            }
+        };
+        engine.addListener(listener);
+
+        thread = new ControlThread();
+        thread.start();
+
+        subscriber = new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                try {
+                    Command c = decodeCommand(ins);
+                    if (c != null)
+                        commands.offer(c);
+                } catch (IOException ex) {
+                }
+            }
+        };
+        lcm.subscribe(Pattern.quote(controlChannel), subscriber);
+    }
+
+    /** Stops receiving commands and publishing status. **/
+    public void close()
+    {
+        lcm.unsubscribe(Pattern.quote(controlChannel), subscriber);
+        engine.removeListener(listener);
+        if (lcm == engine.getLCM()) {
+            engine.unreserveChannel(controlChannel);
+            engine.unreserveChannel(statusChannel);
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static Command decodeCommand(DataInput ins) throws IOException
+    {
+        if (ins.readInt() != COMMAND_MAGIC)
+            return null;
+
+        Command c = new Command();
+        c.sequence = ins.readInt();
+        c.opcode = ins.readInt();
+        c.argument = ins.readLong();
+        return c;
+    }
+
+    /** Encodes a command with an integer argument. **/
+    public static byte[] encodeCommand(int sequence, int opcode, long argument)
+    {
+        LCMDataOutputStream outs = new LCMDataOutputStream(new byte[COMMAND_SIZE]);
+        outs.writeInt(COMMAND_MAGIC);
+        outs.writeInt(sequence);
+        outs.writeInt(opcode);
+        outs.writeLong(argument);
+        return outs.toByteArray();
+    }
+
+    /** Encodes a command with a floating-point argument. **/
+    public static byte[] encodeCommand(int sequence, int opcode, double argument)
+    {
+        return encodeCommand(sequence, opcode, Double.doubleToLongBits(argument));
+    }
+
+    void execute(Command c) throws IOException
+    {
+        switch (c.opcode) {
+            case OP_PLAY:
+                engine.play();
+                break;
+            case OP_PAUSE:
+                engine.pause();
+                break;
+            case OP_TOGGLE:
+                if (engine.isPlaying())
+                    engine.pause();
+                else
+                    engine.play();
+                break;
+            case OP_SEEK_UTIME:
+                engine.seekToUtime(c.argument);
+                break;
+            case OP_SEEK_FRACTION:
+                engine.seekPositionFraction(Double.longBitsToDouble(c.argument));
+                break;
+            case OP_SEEK_RELATIVE: {
+                long utime = engine.getLastUtime();
+                if (utime < 0)
+                    utime = engine.getStartUtime();
+                engine.seekToUtime(utime + (long) (Double.longBitsToDouble(c.argument)*1.0E6));
+                break;
+            }
+            case OP_STEP:
+                engine.step("", (int) Math.min(Integer.MAX_VALUE, c.argument));
+                break;
+            case OP_SET_SPEED:
+                engine.setSpeed(Double.longBitsToDouble(c.argument));
+                break;
+            case OP_STATUS:
+                break;
+            default:
+                System.err.println("LogPlaybackControl: unknown opcode "+c.opcode);
+                break;
+        }
+    }
+
+    void publishStatus() throws IOException
+    {
+        statusBuffer.reset();
+        statusBuffer.writeInt(STATUS_MAGIC);
+        statusBuffer.writeInt(lastSequence);
+        statusBuffer.writeInt(engine.isPlaying() ? 1 : 0);
+        statusBuffer.writeDouble(engine.getSpeed());
+        statusBuffer.writeLong(engine.getLastUtime());
+        statusBuffer.writeLong(engine.getLastEventNumber());
+        statusBuffer.writeDouble(engine.getPositionFraction());
+        statusBuffer.writeLong(engine.getLastLatenessNanos());
+
+        lcm.publish(statusChannel, statusBuffer.getBuffer(), 0, statusBuffer.size());
+    }
+
+    class ControlThread extends Thread
+    {
+        ControlThread()
+        {
+            super("LogPlaybackControl");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            long nextStatus = System.nanoTime();
+            long activeUntil = nextStatus;
+
+            while (true) {
+                try {
+                    // with no active controller, wait for a command
+                    // and publish nothing.
+                    long now = System.nanoTime();
+                    boolean active = activeUntil - now > 0;
+                    Command c;
+                    if (active)
+                        c = commands.poll(Math.max(0, nextStatus - now), TimeUnit.NANOSECONDS);
+                    else
+                        c = commands.take();
+
+                    if (c == statusRequest) {
+                        if (!active)
+                            continue;
+                    } else if (c != null) {
+                        execute(c);
+                        lastSequence = c.sequence;
+                        activeUntil = System.nanoTime() + (long) (ACTIVE_SECONDS*1.0E9);
+                    }
+
+                    // report right after a command, so that the
+                    // sender can tell when it has taken effect.
+                    if (c != null || System.nanoTime() - nextStatus >= 0) {
+                        publishStatus();
+                        nextStatus = System.nanoTime() + statusIntervalNanos;
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (IOException ex) {
+                    System.err.println("LogPlaybackControl: "+ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import lcm.lcm.*;
+import lcm.util.*;
+
+/**
+ * Plays back a log file onto an LCM instance, with seeking, stepping
+ * and variable speed. This is the playback logic of {@link LogPlayer}
+ * without any user interface, so that it can also be driven
+ * programmatically, e.g., from a test harness or on a server without
+ * a display.
+ *
+ * The control methods may be called from any thread. Events are
+ * published from a dedicated playback thread, which also calls the
+ * listeners; listeners should return quickly, and may call {@link
+ * #pause} and the getters but not the other control methods.
+ **/
+public class LogPlaybackEngine
+{
+    /** Receives notifications from the playback engine. **/
+    public interface Listener
+    {
+        /** Called on the playback thread after each event has been
+         * played.
+         *
+         * @param outchannel the channel the event was published on, or
+         * null if the channel filter suppressed it
+         **/
+        public void eventPlayed(LogPlaybackEngine engine, Log.Event e, String outchannel);
+
+        /** Called when playback starts or stops, including when it
+         * stops by itself at the end of the log or of a step. **/
+        public void playingChanged(LogPlaybackEngine engine, boolean playing);
+
+        /** Called after a seek with the next event that will be
+         * played, or null at the end of the log. **/
+        public void seeked(LogPlaybackEngine engine, Log.Event next);
+
+        /** Called when the playback speed is changed. **/
+        public void speedChanged(LogPlaybackEngine engine, double speed);
+    }
+
+    LCM lcm;
+    volatile Log log;
+
+    volatile double speed = 1.0;
+    volatile Log.ChannelFilter filter;
+
+    // channels that events are never played onto (see reserveChannel())
+    Set<String> reservedChannels = new CopyOnWriteArraySet<String>();
+
+    long startUtime;         // the time of the first event in the log
+    double durationSeconds;  // an estimate of the length of the log
+
+    // the last event that was played
+    volatile long lastUtime = -1;
+    volatile long lastEventNumber = -1;
+    volatile long lastLatenessNanos;
+
+    PlayerThread player;
+
+    // serializes changes of 'player' between the control methods and
+    // the playback thread, which can stop by itself.
+    Object sync = new Object();
+
+    CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * @param lcm the LCM instance on which events are published
+     */
+    public LogPlaybackEngine(LCM lcm)
+    {
+        this.lcm = lcm;
+    }
+
+    public LCM getLCM()
+    {
+        return lcm;
+    }
+
+    public void addListener(Listener l)
+    {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l)
+    {
+        listeners.remove(l);
+    }
+
+    /**
+     * Opens a log for playback, stopping and closing any previous
+     * log. Playback starts paused at the beginning of the log.
+     */
+    public synchronized void open(String path) throws IOException
+    {
+        close();
+
+        log = new Log(path, "r");
+        log.enableReadAhead(Log.DEFAULT_READ_AHEAD_SIZE);
+        lastUtime = -1;
+        lastEventNumber = -1;
+
+        try {
+            Log.Event e = log.readNext();
+            startUtime = e.utime;
+
+            log.seekPositionFraction(.10);
+            Log.Event e10 = log.readNext();
+
+            log.seekPositionFraction(.90);
+            Log.Event e90 = log.readNext();
+
+            durationSeconds = (e90.utime - e10.utime)/1000000.0 / 0.8;
+        } catch (EOFException ex) {
+            durationSeconds = 0;
+        }
+
+        log.seekPositionFraction(0);
+    }
+
+    /** Stops playback and closes the log. **/
+    public synchronized void close() throws IOException
+    {
+        pause();
+
+        if (log != null)
+            log.close();
+        log = null;
+    }
+
+    /** Returns the open log, or null. **/
+    public synchronized Log getLog()
+    {
+        return log;
+    }
+
+    /** Returns the path of the open log, or null. **/
+    public synchronized String getPath()
+    {
+        return log == null ? null : log.getPath();
+    }
+
+    /** The timestamp of the first event in the log. **/
+    public synchronized long getStartUtime()
+    {
+        return startUtime;
+    }
+
+    /** An estimate of the length of the log in seconds, from the
+     * timestamps at 10% and 90% of the file. **/
+    public synchronized double getDurationSeconds()
+    {
+        return durationSeconds;
+    }
+
+    /** The timestamp of the last event played, or -1. **/
+    public long getLastUtime()
+    {
+        return lastUtime;
+    }
+
+    /** The event number of the last event played, or -1. **/
+    public long getLastEventNumber()
+    {
+        return lastEventNumber;
+    }
+
+    /** How late, in nanoseconds, the last event was played relative
+     * to its scheduled time. **/
+    public long getLastLatenessNanos()
+    {
+        return lastLatenessNanos;
+    }
+
+    public double getPositionFraction() throws IOException
+    {
+        Log l = log;
+        return l == null ? 0 : l.getPositionFraction();
+    }
+
+    /**
+     * Sets the playback speed, which takes effect with the next event.
+     *
+     * @param speed the speed relative to real time; values less than
+     * or equal to zero play as fast as possible
+     */
+    public void setSpeed(double speed)
+    {
+        if (speed == this.speed)
+            return;
+
+        this.speed = speed;
+        for (Listener l : listeners)
+            l.speedChanged(this, speed);
+    }
+
+    public double getSpeed()
+    {
+        return speed;
+    }
+
+    /**
+     * Sets the filter that decides, for each event, whether it is
+     * published and on which channel. The filter is called on the
+     * playback thread.
+     *
+     * @param filter the filter, or null to publish every event on its
+     * logged channel
+     */
+    public void setChannelFilter(Log.ChannelFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Stops events from being played onto 'channel', whatever the
+     * channel filter says, e.g., because a remote control uses it on
+     * the same LCM instance. A log may have recorded an earlier
+     * session's control commands, which must not reach this player.
+     */
+    public void reserveChannel(String channel)
+    {
+        reservedChannels.add(channel);
+    }
+
+    public void unreserveChannel(String channel)
+    {
+        reservedChannels.remove(channel);
+    }
+
+    public boolean isPlaying()
+    {
+        synchronized (sync) {
+            return player != null;
+        }
+    }
+
+    /** Starts playing from the current position. **/
+    public synchronized void play()
+    {
+        start(null, 0);
+    }
+
+    /**
+     * Plays events until one whose channel starts with
+     * 'channelPrefix' has been played. An empty prefix steps a single
+     * event. Does nothing if the log is already playing.
+     */
+    public synchronized void step(String channelPrefix)
+    {
+        step(channelPrefix, 1);
+    }
+
+    /**
+     * Plays events until 'count' events whose channels start with
+     * 'channelPrefix' have been played.
+     */
+    public synchronized void step(String channelPrefix, int count)
+    {
+        if (count > 0)
+            start(channelPrefix == null ? "" : channelPrefix, count);
+    }
+
+    void start(String stopOnChannel, int stopCount)
+    {
+        PlayerThread pptr;
+
+        synchronized (sync) {
+            if (log == null || player != null)
+                return;
+
+            pptr = new PlayerThread(log, stopOnChannel, stopCount);
+            player = pptr;
+        }
+
+        for (Listener l : listeners)
+            l.playingChanged(this, true);
+
+        pptr.start();
+    }
+
+    /** Stops playback, and waits for the playback thread to finish.
+     * The event that was waiting to be played, if any, will be the
+     * first one played on resuming. **/
+    public void pause()
+    {
+        PlayerThread pptr;
+
+        synchronized (sync) {
+            if (player == null)
+                return;
+
+            pptr = player;
+            pptr.requestStop();
+        }
+
+        // called from a listener: the thread stops when it returns.
+        if (Thread.currentThread() == pptr)
+            return;
+
+        try {
+            pptr.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Seeks to a fraction [0, 1] of the log file, preserving the
+     * play/pause state. **/
+    public synchronized void seekPositionFraction(double frac) throws IOException
+    {
+        if (log == null)
+            return;
+
+        boolean wasPlaying = isPlaying();
+        pause();
+
+        frac = Math.max(0, Math.min(1, frac));
+        log.seekPositionFraction(frac);
+        long mark = log.getMark();
+        seeked(mark);
+
+        if (wasPlaying)
+            play();
+    }
+
+    /** Seeks to the first event whose timestamp is at or after
+     * 'utime', preserving the play/pause state. The log's timestamps
+     * are assumed to be non-decreasing. **/
+    public synchronized void seekToUtime(long utime) throws IOException
+    {
+        if (log == null)
+            return;
+
+        boolean wasPlaying = isPlaying();
+        pause();
+
+        log.seekToUtime(utime);
+        long mark = log.getMark();
+        seeked(mark);
+
+        if (wasPlaying)
+            play();
+    }
+
+    Log.Event readNextOrNull() throws IOException
+    {
+        return readNextOrNull(null);
+    }
+
+    Log.Event readNextOrNull(Log.Event reuse) throws IOException
+    {
+        try {
+            return log.readNext(reuse);
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    /** Positions the log at 'mark' and tells the listeners which event
+     * is next. **/
+    void seeked(long mark) throws IOException
+    {
+        log.seekMark(mark);
+        Log.Event next = readNextOrNull();
+        log.seekMark(mark);
+
+        for (Listener l : listeners)
+            l.seeked(this, next);
+    }
+
+    class PlayerThread extends Thread
+    {
+        Log log;
+        String stopOnChannel;
+        int stopCount;
+        volatile boolean stopflag = false;
+
+        PlayerThread(Log log, String stopOnChannel, int stopCount)
+        {
+            super("LogPlaybackEngine");
+            setDaemon(true);
+            this.log = log;
+            this.stopOnChannel = stopOnChannel;
+            this.stopCount = stopCount;
+        }
+
+        void requestStop()
+        {
+            stopflag = true;
+            interrupt();
+        }
+
+        public void run()
+        {
+            // events are released at absolute deadlines, re-anchored
+            // whenever the speed changes.
+            ReplayClock clock = new ReplayClock(speed);
+
+            // events are published synchronously, so one event object
+            // (and its data buffer) can be recycled.
+            Log.Event e = null;
+
+            try {
+                while (!stopflag) {
+                    // remember where the event starts, to get back to
+                    // it if we are stopped before it is played.
+                    long mark = log.getMark();
+
+                    e = log.readNext(e);
+
+                    double s = speed;
+                    if (s != clock.getSpeed())
+                        clock.setSpeed(s);
+
+                    try {
+                        lastLatenessNanos = clock.waitFor(e.utime);
+                    } catch (InterruptedException ex) {
+                    }
+
+                    // we may have been asked to stop while waiting.
+                    if (stopflag) {
+                        log.seekMark(mark);
+                        break;
+                    }
+
+                    Log.ChannelFilter f = filter;
+                    String outchannel = (f == null) ? e.channel : f.filter(e.channel);
+                    if (outchannel != null && outchannel.length() > 0 &&
+                        !reservedChannels.contains(outchannel))
+                        lcm.publish(outchannel, e.data, 0, e.dataLength);
+                    else
+                        outchannel = null;
+
+                    lastUtime = e.utime;
+                    lastEventNumber = e.eventNumber;
+
+                    for (Listener l : listeners)
+                        l.eventPlayed(LogPlaybackEngine.this, e, outchannel);
+
+                    if (stopOnChannel != null && e.channel.startsWith(stopOnChannel) && --stopCount <= 0)
+                        break;
+                }
+            } catch (EOFException ex) {
+            } catch (IOException ex) {
+                System.out.println("Exception: "+ex);
+            }
+
+            // clear any interrupt that arrived after the last wait.
+            Thread.interrupted();
+
+            // notify before clearing 'player', so that the listeners
+            // cannot see a later start before this stop.
+            for (Listener l : listeners)
+                l.playingChanged(LogPlaybackEngine.this, false);
+
+            synchronized (sync) {
+                if (player == this)
+                    player = null;
+            }
+        }
+    }
+}
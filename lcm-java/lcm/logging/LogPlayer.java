@@ -6,7 +6,6 @@ import java.awt.image.*;
 import java.awt.geom.*;
 import java.io.*;
 import java.util.*;
-import java.net.*;
 import java.util.concurrent.*;
 import java.util.regex.*;
 
@@ -27,7 +26,8 @@ public class LogPlayer extends JComponent
         System.setProperty("java.net.preferIPv4Stack", "true");
     }
 
-    Log log;
+    LogPlaybackEngine engine;
+    LogPlaybackControl control; // remote control over LCM, or null
     JButton playButton = new JButton("Play ");
     JButton stepButton = new JButton("Step");
     JButton fasterButton;
@@ -44,8 +44,6 @@ public class LogPlayer extends JComponent
 
     JLabel logName = new JLabel("---");
 
-    PlayerThread player = null;
-
     LCM lcm;
 
     /** The time of the first event in the current log **/
@@ -59,8 +57,6 @@ public class LogPlayer extends JComponent
 
     BlockingQueue<QueuedEvent> events = new LinkedBlockingQueue<QueuedEvent>();
 
-    Object sync = new Object();
-
     interface QueuedEvent
     {
         public void execute(LogPlayer lp);
@@ -105,7 +101,7 @@ public class LogPlayer extends JComponent
         {
             if (toggle)
             {
-                if (player!=null)
+                if (engine.isPlaying())
                     doStop();
                 else
                     doPlay();
@@ -132,15 +128,7 @@ public class LogPlayer extends JComponent
 
         public void execute(LogPlayer lp)
         {
-            boolean player_was_running = (player != null);
-
-            if (player_was_running)
-                doStop();
-
             doSeek(pos);
-
-            if (player_was_running)
-                doPlay();
         }
     }
 
@@ -196,8 +184,7 @@ public class LogPlayer extends JComponent
     void setSpeed(double v)
     {
         v = Math.max(1.0/1024, v); // minimum supported speed (0.000977x)
-        speedLabel.setText(String.format("%.3f", v));
-        speed = v;
+        engine.setSpeed(v); // the label is updated by MyPlaybackListener
     }
     
     void setChannelFilter(String channelFilterRegex)
@@ -209,6 +196,17 @@ public class LogPlayer extends JComponent
     }
 
     public LogPlayer(String lcmurl) throws IOException
+    {
+        this(lcmurl, null);
+    }
+
+    /**
+     * @param lcmurl the LCM URL to play the log onto, or null for the
+     * default
+     * @param controlurl the LCM URL on which to accept remote control,
+     * which may be the one the log is played onto, or null for none
+     */
+    public LogPlayer(String lcmurl, String controlurl) throws IOException
     {
         setLayout(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
@@ -341,6 +339,17 @@ public class LogPlayer extends JComponent
         else
             lcm = new LCM(lcmurl);
 
+        engine = new LogPlaybackEngine(lcm);
+        engine.addListener(new MyPlaybackListener());
+        engine.setChannelFilter(new Log.ChannelFilter() {
+            public String filter(String channel) {
+                Filter f = filterMap.get(channel);
+                if (f == null)
+                    f = addChannelFilter(channel, !invertFilteredPattern);
+                return f.enabled ? f.outchannel : null;
+            }
+        });
+
         logName.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount()==2)
@@ -359,7 +368,15 @@ public class LogPlayer extends JComponent
         filterTable.getColumnModel().getColumn(2).setMaxWidth(50);
         playButton.setEnabled(false);
 
-        new UDPThread().start();
+        // remote control is opt-in, since anyone who can publish on its
+        // URL can control the player.
+        if (null != controlurl) {
+            String playurl = (null == lcmurl) ? LCM.getDefaultURL() : lcmurl;
+            control = new LogPlaybackControl(engine,
+                                             controlurl.equals(playurl) ? lcm : new LCM(controlurl),
+                                             LogPlaybackControl.DEFAULT_CONTROL_CHANNEL,
+                                             LogPlaybackControl.DEFAULT_STATUS_CHANNEL, 10);
+        }
         new QueueThread().start();
     }
 
@@ -384,78 +401,51 @@ public class LogPlayer extends JComponent
                 return;
 
             System.out.println("Exporting to "+outpath);
-            try {
-                Log inlog = new Log(log.getPath(), "r");
-                Log outlog = new Log(outpath, "rw");
-
-                inlog.seekPositionFraction(p0);
-                while (inlog.getPositionFraction() < p1) {
-                    Log.Event e = inlog.readNext();
-                    Filter f = filterMap.get(e.channel);
-                    if (f != null && f.enabled)
-                        outlog.write(e);
-                }
-                inlog.close();
-                outlog.close();
-                System.out.printf("Done!\n");
 
-            } catch (IOException ex) {
-                System.out.println("Exception: "+ex);
+            // export with the current channel settings; later edits
+            // of the filter table do not affect this export.
+            final HashMap<String,String> outchannels = new HashMap<String,String>();
+            for (Filter f : filterMap.values()) {
+                if (f.enabled)
+                    outchannels.put(f.inchannel, f.outchannel);
             }
-        }
-    }
-
-    // remote control via UDP packets
-    class UDPThread extends Thread
-    {
-        public void run()
-        {
-            DatagramSocket sock;
-            DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
 
-            try {
-                sock = new DatagramSocket(53261, Inet4Address.getByName("127.0.0.1"));
-            } catch (SocketException ex) {
-                System.out.println("Exception: "+ex);
-                return;
-            } catch (UnknownHostException ex) {
-                System.out.println("Exception: "+ex);
-                return;
-            }
+            ArrayList<LogExporter.Region> regions = new ArrayList<LogExporter.Region>();
+            regions.add(new LogExporter.Region(p0, p1, outpath, new Log.ChannelFilter() {
+                public String filter(String channel) {
+                    return outchannels.get(channel);
+                }
+            }));
+
+            final ProgressMonitor monitor = new ProgressMonitor(LogPlayer.this, "Exporting to "+outpath,
+                                                                null, 0, 1000);
+            LogExporter exporter = new LogExporter(engine.getPath(), regions, new LogExporter.Listener() {
+                public void exportProgress(final LogExporter exporter, final double fraction) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            if (monitor.isCanceled())
+                                exporter.cancel();
+                            else
+                                monitor.setProgress((int) (fraction*1000));
+                        }
+                    });
+                }
 
-            while (true)
-            {
-                try {
-                    sock.receive(packet);
-                    String cmd = new String(packet.getData(), 0, packet.getLength());
-                    cmd = cmd.trim();
-
-                    if (cmd.equals("PLAYPAUSETOGGLE")) {
-                        events.offer(new PlayPauseEvent());
-                    } else if (cmd.equals("PLAY")) {
-                        events.offer(new PlayPauseEvent(true));
-                    } else if (cmd.equals("PAUSE")) {
-                        events.offer(new PlayPauseEvent(false));
-                    } else if (cmd.equals("STEP")) {
-                        events.offer(new StepEvent());
-                    } else if (cmd.equals("FASTER")) {
-                        setSpeed(fasterSpeed(speed));
-                    } else if (cmd.equals("SLOWER")) {
-                        setSpeed(slowerSpeed(speed));
-                    } else if (cmd.startsWith("BACK")) {
-                        double seconds = Double.parseDouble(cmd.substring(4));
-                        double pos = log.getPositionFraction() - seconds/total_seconds;
-                        events.offer(new SeekEvent(pos));
-                    } else if (cmd.startsWith("FORWARD")) {
-                        double seconds = Double.parseDouble(cmd.substring(7));
-                        double pos = log.getPositionFraction() + seconds/total_seconds;
-                        events.offer(new SeekEvent(pos));
-                    } else {
-                        System.out.println("Unknown remote command: "+cmd);
-                    }
-                } catch (IOException ex) {
+                public void exportFinished(final LogExporter exporter, final IOException error) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            monitor.close();
+                            if (error != null)
+                                System.out.println("Exception: "+error);
+                            else if (exporter.isCancelled())
+                                System.out.println("Export cancelled");
+                            else
+                                System.out.printf("Done!\n");
+                        }
+                    });
                 }
-            }
+            });
+            exporter.start();
         }
     }
 
@@ -581,7 +571,9 @@ public class LogPlayer extends JComponent
     
     void populateChannelFilters()
     {
+        Log log = null;
         try {
+            log = new Log(currentLogPath, "r");
         	long logStartUTime = -1;
             while (true)
             {
@@ -603,9 +595,9 @@ public class LogPlayer extends JComponent
         } catch (IOException ex) {
             System.err.println("Exception: "+ex);
         }
-        try{
-        //rewind to beginning of the log
-        	log.seekPositionFraction(0);
+        try {
+            if (log != null)
+                log.close();
         } catch (IOException ex) {
         	System.err.println("Exception: "+ex);
         }
@@ -617,28 +609,14 @@ public class LogPlayer extends JComponent
             savePreferences();
 
         currentLogPath = path;
-        log = new Log(path, "r");
+        engine.open(path);
         logName.setText(new File(path).getName());
 
-        try {
-            Log.Event e = log.readNext();
-            timeOffset = e.utime;
-            playButton.setEnabled(true);
-
-            log.seekPositionFraction(.10);
-            Log.Event e10 = log.readNext();
-
-            log.seekPositionFraction(.90);
-            Log.Event e90 = log.readNext();
+        timeOffset = engine.getStartUtime();
+        playButton.setEnabled(true);
 
-            total_seconds = (e90.utime - e10.utime)/1000000.0 / 0.8;
-            System.out.printf("Total seconds: %f\n", total_seconds);
-
-            log.seekPositionFraction(0);
-
-        } catch (IOException ex) {
-            System.out.println("exception: "+ex);
-        }
+        total_seconds = engine.getDurationSeconds();
+        System.out.printf("Total seconds: %f\n", total_seconds);
 
         loadPreferences(path+".jlp");
         if (startPlaying)
@@ -655,65 +633,25 @@ public class LogPlayer extends JComponent
         stepButton.setEnabled(!t);
     }
 
-    // the player can stop automatically on error or EOF; we thus have
-    // a potential race condition between auto-stops and requested
-    // stops.
-    //
-    // We protect these two with 'sync'.
     void doStop()
     {
-        PlayerThread pptr;
-
-        synchronized(sync) {
-            if (player == null)
-                return;
-
-            pptr = player;
-            pptr.requestStop();
-        }
-
-        try {
-            pptr.join();
-        } catch (InterruptedException ex) {
-            System.out.println("Exception: "+ex);
-        }
+        engine.pause();
     }
 
     void doPlay()
     {
-        if (player != null)
-            return;
-
-        player = new PlayerThread();
-        player.start();
+        engine.play();
     }
 
     void doStep()
     {
-        if (player != null)
-            return;
-
-        player = new PlayerThread(stepChannelField.getText());
-        player.start();
+        engine.step(stepChannelField.getText());
     }
 
     void doSeek(double ratio)
     {
-        assert (player == null);
-
-        if (ratio < 0)
-            ratio = 0;
-        if (ratio > 1)
-            ratio = 1;
-
         try {
-            log.seekPositionFraction(ratio);
-            Log.Event e = log.readNext();
-            log.seekPositionFraction(ratio);
-            js.set(log.getPositionFraction());
-
-            lastSystemTime = 0; // reset log-play statistics.
-            updateDisplay(e);
+            engine.seekPositionFraction(ratio);
         } catch (IOException ex) {
             System.out.println("exception: "+ex);
         }
@@ -745,147 +683,48 @@ public class LogPlayer extends JComponent
         }
     }
 
-    class PlayerThread extends Thread
+    /** Reflects the state of the playback engine in the UI. **/
+    class MyPlaybackListener implements LogPlaybackEngine.Listener
     {
-        boolean stopflag = false;
-        String stopOnChannel;
+        long lastDisplayTime;
 
-        public PlayerThread()
+        public void eventPlayed(LogPlaybackEngine engine, Log.Event e, String outchannel)
         {
+            try {
+                js.set(engine.getPositionFraction());
+            } catch (IOException ex) {
+            }
+
+            // redraw labels no faster than 10 Hz
+            long curTime = System.currentTimeMillis();
+            if (curTime - lastDisplayTime > 100) {
+                updateDisplay(e);
+                lastDisplayTime = curTime;
+            }
         }
 
-        public PlayerThread(String stopOnChannel)
+        public void playingChanged(LogPlaybackEngine engine, boolean playing)
         {
-            this.stopOnChannel = stopOnChannel;
+            setPlaying(playing);
         }
 
-        public void requestStop()
+        public void speedChanged(LogPlaybackEngine engine, double v)
         {
-            stopflag = true;
+            speedLabel.setText(String.format("%.3f", v));
+            speed = v;
         }
 
-        public void run()
+        public void seeked(LogPlaybackEngine engine, Log.Event next)
         {
-            long lastTime = 0;
-            long lastDisplayTime = 0;
-            long localOffset = 0;
-            long logOffset = 0;
-            long last_e_utime = 0;
-            double last_positionfraction = 0;
-
-            double lastspeed = 0;
-
-            synchronized (sync) {
-                setPlaying(true);
-            }
-
             try {
-                while (!stopflag)
-                {
-                    // read position fraction before getting to next event to be able to get back to it if we pause
-		    last_positionfraction = log.getPositionFraction();
-
-                    Log.Event e = log.readNext();
-
-                    if (speed != lastspeed) {
-                        //System.out.printf("Speed changed. Old %12.6f new %12.6f\n",
-                        //                  lastspeed, speed);
-                        logOffset = e.utime;
-                        localOffset = System.nanoTime()/1000;
-                        lastspeed = speed;
-                    }
-
-                    long logRelativeTime = (long) (e.utime - logOffset);
-                    long now = System.nanoTime();
-                    long clockRelativeTime = now/1000 - localOffset;
-
-                    // we don't support playback below a rate of 1/1024x
-                    long speed_scale = (long) Math.max(1, (speed*1024.0));
-                    long waitTime = (1024*logRelativeTime/speed_scale - clockRelativeTime);
-
-                    long waitms = waitTime / 1000;
-                    waitms = Math.max(0, waitms);
-
-                    /*System.out.printf("Now 0x%016X ns, %12.6fx playback, %8d/1024 playback, %10dus rel log time, %10dus, %10dus rel clock, "+
-                                      "wait %10dus (%10dms)\n",
-                                      now,
-                                      speed,
-                                      speed_scale,
-                                      logRelativeTime,
-                                      1024*logRelativeTime/speed_scale,
-                                      clockRelativeTime,
-                                      waitTime,
-                                      waitms);*/
-
-                    last_e_utime = e.utime;
-
-                    try {
-                        // We might have a very long wait, but
-                        // only sleep for relatively short amounts
-                        // of time so that we remain responsive to
-                        // seek/speed changes.
-                        while (waitms > 0 && !stopflag) {
-
-                            if (waitms > 50) {
-                                Thread.sleep(50);
-                                waitms -= 50;
-                            }
-                            else {
-                                Thread.sleep(waitms);
-                                waitms = 0;
-                            }
-                        }
-                    } catch (InterruptedException ex) {
-                        System.out.println("Interrupted");
-                    }
-
-                    // During the sleep, other threads might have
-                    // run that have asked us to stop (a
-                    // jscrubber.userset in particular); recheck
-                    // the stop flag before we blindly proceed.
-                    // (This ameliorates but does not solve an
-                    // intrinsic race condition)
-                    if (stopflag){
-                        // if we stop for whatever reason we need to get back to where we were at
-                        log.seekPositionFraction(last_positionfraction);
-                        break;
-		    }
-
-                    Filter f = filterMap.get(e.channel);
-                    if (f == null) {
-                    	f = addChannelFilter(e.channel, !invertFilteredPattern);
-                    }
-
-                    if (f.enabled && f.outchannel.length() > 0)
-                        lcm.publish(f.outchannel, e.data, 0, e.data.length);
-
-                    js.set(log.getPositionFraction());
-
-                    // redraw labels no faster than 10 Hz
-                    long curTime = System.currentTimeMillis();
-                    if (curTime - lastDisplayTime > 100) {
-                        updateDisplay(e);
-                        lastDisplayTime = curTime;
-                    }
-
-                    if (stopOnChannel != null && e.channel.startsWith(stopOnChannel)) {
-                        stopflag = true;
-                        break;
-                    }
-                }
-            } catch (EOFException ex) {
-                stopflag = true;
+                js.set(engine.getPositionFraction());
             } catch (IOException ex) {
-                System.out.println("Exception: "+ex);
-                stopflag = true;
             }
 
-            synchronized (sync) {
-                setPlaying(false);
-                player = null;
-            }
+            lastSystemTime = 0; // reset log-play statistics.
+            if (next != null)
+                updateDisplay(next);
         }
-
     }
 
     class FilterTableModel extends AbstractTableModel
@@ -980,8 +819,19 @@ public class LogPlayer extends JComponent
         System.err.println("  -t, --title [LABEL]    Display LABEL in the window title.");
         System.err.println("                         Defaults to the log filename.");
         System.err.println("  --title-url            Display the LCM URL in the window title.");
+        System.err.println("  --remote-control       Accept remote control on the LCM URL played onto.");
+        System.err.println("  --control-url=URL      Accept remote control on the specified LCM URL,");
+        System.err.println("                         e.g. to keep it off the network being played onto.");
         System.err.println("  -h, --help             Shows this help text and exits");
         System.err.println("");
+        System.err.println("Remote control:");
+        System.err.println("  With --remote-control or --control-url, the player accepts commands on");
+        System.err.println("  the LCM channel "+LogPlaybackControl.DEFAULT_CONTROL_CHANNEL+" from anyone who can publish");
+        System.err.println("  there, and replies on "+LogPlaybackControl.DEFAULT_STATUS_CHANNEL+" while commands");
+        System.err.println("  keep arriving. Events recorded on those channels are not played onto the");
+        System.err.println("  URL used for remote control.");
+        System.err.println("  See lcm.logging.LogPlaybackControl for the message formats.");
+        System.err.println("");
         System.err.println("Environment Variables:");
         System.err.println("  GDK_SCALE=<N>          (Linux) Increase the size of GTK apps. ");
         System.err.println("                         LCM uses Swing and on some systems may be too small by default.");
@@ -1015,6 +865,8 @@ public class LogPlayer extends JComponent
         }
 
         String lcmurl = null;
+        String controlurl = null;
+        boolean remoteControl = false;
         String logFile = null;
         boolean startPaused = false;
         int optind;
@@ -1047,6 +899,25 @@ public class LogPlayer extends JComponent
                     lcmurl = optarg;
                 }
 
+            } else if (c.equals("--remote-control")) {
+                remoteControl = true;
+
+            } else if (c.equals("--control-url") || c.startsWith("--control-url=")) {
+                String optarg = null;
+                if (c.startsWith("--control-url=")) {
+                    String[] parts = c.split("=", 2);
+                    if (parts.length == 2 && !parts[1].isEmpty())
+                        optarg = parts[1];
+                } else if (hasParam) {
+                    optind++;
+                    optarg = args[optind];
+                }
+                if (null == optarg) {
+                    usage();
+                } else {
+                    controlurl = optarg;
+                }
+
             } else if (c.equals("-p") || c.equals("--paused")) {
                 startPaused = true;
 
@@ -1096,8 +967,11 @@ public class LogPlayer extends JComponent
             }
         }
 
+        if (remoteControl && null == controlurl)
+            controlurl = (null == lcmurl) ? LCM.getDefaultURL() : lcmurl;
+
         try {
-            p = new LogPlayer(lcmurl);
+            p = new LogPlayer(lcmurl, controlurl);
             f = new JFrame("LogPlayer");
             f.setLayout(new BorderLayout());
             f.add(p, BorderLayout.CENTER);
@@ -0,0 +1,273 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * Reads the events of a log file as a stream that can be processed
+ * in parallel. The file is split into byte ranges (or, for a
+ * block-compressed log, into runs of blocks), each of which is read
+ * by its own file handle. A range owns every event whose record
+ * starts inside it; a range that starts in the middle of a record
+ * resynchronizes on LOG_MAGIC in the same way as {@link Log#readNext}.
+ *
+ * Within a range, events are always delivered in file order. Across
+ * ranges, the streams are ORDERED, so operations such as
+ * forEachOrdered and collect see the events in file order, while
+ * forEach and other unordered operations process ranges
+ * concurrently. Parallel streams run on the common fork/join pool; to
+ * use a different pool, start the terminal operation from a task
+ * submitted to that pool.
+ **/
+public class LogScanner implements Closeable
+{
+    /** Ranges smaller than this are not split any further. **/
+    public static final long DEFAULT_MIN_RANGE_SIZE = 16*1024*1024;
+
+    String path;
+    long   fileLength;
+    long   minRangeSize;
+
+    // number of blocks for a block-compressed log; -1 for plain logs.
+    int    nblocks = -1;
+
+    Set<Log> openLogs = Collections.newSetFromMap(new ConcurrentHashMap<Log,Boolean>());
+
+    public LogScanner(String path) throws IOException
+    {
+        this(path, DEFAULT_MIN_RANGE_SIZE);
+    }
+
+    /**
+     * @param path the log file to scan
+     * @param minRangeSize the size in bytes below which a range is
+     * not split further
+     */
+    public LogScanner(String path, long minRangeSize) throws IOException
+    {
+        this.path = path;
+        this.minRangeSize = Math.max(1, minRangeSize);
+
+        Log log = new Log(path, "r");
+        fileLength = log.raf.length();
+        if (log.blockIndex != null)
+            nblocks = log.blockIndex.nblocks;
+        log.close();
+    }
+
+    /** Returns a spliterator over all events in the log. **/
+    public Spliterator<Log.Event> spliterator()
+    {
+        if (nblocks >= 0)
+            return new RangeSpliterator(0, nblocks);
+
+        return new RangeSpliterator(0, fileLength);
+    }
+
+    /**
+     * Splits the log into at most 'n' ranges, in file order, that
+     * between them hold every event once. Each range can be read on
+     * its own, e.g., to process ranges in parallel while reporting
+     * each range's results, in file order, as soon as it is done.
+     * Ranges are not split below the minimum range size.
+     */
+    public List<Spliterator<Log.Event>> ranges(int n)
+    {
+        ArrayList<Spliterator<Log.Event>> ranges = new ArrayList<Spliterator<Log.Event>>();
+        ranges.add(spliterator());
+
+        while (ranges.size() < n) {
+            ArrayList<Spliterator<Log.Event>> split = new ArrayList<Spliterator<Log.Event>>();
+            int count = ranges.size();
+            for (Spliterator<Log.Event> range : ranges) {
+                Spliterator<Log.Event> prefix = (count < n) ? range.trySplit() : null;
+                if (prefix != null) {
+                    split.add(prefix);
+                    count++;
+                }
+                split.add(range);
+            }
+
+            if (split.size() == ranges.size())
+                break;
+            ranges = split;
+        }
+        return ranges;
+    }
+
+    /** Returns a sequential stream of all events in the log. **/
+    public Stream<Log.Event> stream()
+    {
+        return stream(false);
+    }
+
+    /** Returns a stream of all events in the log, which is parallel if
+     * requested. Closing the stream releases any file handles still
+     * held by unfinished ranges. **/
+    public Stream<Log.Event> stream(boolean parallel)
+    {
+        return StreamSupport.stream(spliterator(), parallel).onClose(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /** Closes any file handles held by ranges that were not read to
+     * completion. **/
+    public void close()
+    {
+        for (Log log : openLogs)
+            closeLog(log);
+    }
+
+    void closeLog(Log log)
+    {
+        if (!openLogs.remove(log))
+            return;
+
+        try {
+            log.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /** Covers either the byte range [start, end) of a plain log, or
+     * the blocks [start, end) of a block-compressed log. **/
+    class RangeSpliterator implements Spliterator<Log.Event>
+    {
+        long    start, end;
+        Log     log;
+        boolean done;
+
+        RangeSpliterator(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean tryAdvance(Consumer<? super Log.Event> action)
+        {
+            if (done)
+                return false;
+
+            try {
+                Log.Event e = next();
+                if (e == null) {
+                    done = true;
+                    if (log != null)
+                        closeLog(log);
+                    log = null;
+                    return false;
+                }
+
+                action.accept(e);
+                return true;
+            } catch (IOException ex) {
+                done = true;
+                if (log != null)
+                    closeLog(log);
+                log = null;
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        Log.Event next() throws IOException
+        {
+            if (start >= end)
+                return null;
+
+            boolean first = false;
+            if (log == null) {
+                log = new Log(path, "r");
+                openLogs.add(log);
+
+                if (nblocks >= 0)
+                    log.seekBlock((int) start);
+                else
+                    log.raf.seek(start);
+                first = true;
+            }
+
+            while (true) {
+                Log.Event e;
+                try {
+                    e = log.readNext();
+                } catch (EOFException ex) {
+                    return null;
+                }
+
+                if (nblocks >= 0) {
+                    // events never span blocks, so no resync check is needed.
+                    return log.block < end ? e : null;
+                }
+
+                long offset = log.lastEventOffset;
+                if (offset >= end)
+                    return null;
+
+                // The first sync word found after an arbitrary
+                // offset may be payload data that happens to look
+                // like LOG_MAGIC. Accept it only if the next record
+                // (or the end of the file) follows immediately.
+                if (first && offset > 0 && !followedByRecord()) {
+                    log.raf.seek(offset + 1);
+                    continue;
+                }
+
+                return e;
+            }
+        }
+
+        boolean followedByRecord() throws IOException
+        {
+            long pos = log.raf.getFilePointer();
+            if (pos == fileLength)
+                return true;
+            if (pos + 4 > fileLength)
+                return false;
+
+            int magic = log.raf.readInt();
+            log.raf.seek(pos);
+            return magic == Log.LOG_MAGIC;
+        }
+
+        /** Splits off the first half of the range, if it has not been
+         * started and is large enough. **/
+        public Spliterator<Log.Event> trySplit()
+        {
+            if (log != null || done)
+                return null;
+
+            long mid;
+            if (nblocks >= 0) {
+                if (end - start < 2)
+                    return null;
+                mid = start + (end - start)/2;
+            } else {
+                if (end - start < 2*minRangeSize)
+                    return null;
+                mid = start + (end - start)/2;
+            }
+
+            RangeSpliterator prefix = new RangeSpliterator(start, mid);
+            start = mid;
+            return prefix;
+        }
+
+        /** Returns the number of bytes (or blocks) remaining, which is
+         * only a rough proxy for the number of events. **/
+        public long estimateSize()
+        {
+            return done ? 0 : end - start;
+        }
+
+        public int characteristics()
+        {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
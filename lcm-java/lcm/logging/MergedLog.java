@@ -0,0 +1,216 @@
+package lcm.logging;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads several log files as a single stream of events ordered by
+ * timestamp, e.g., logs recorded on different computers during the
+ * same run. Each file is read by its own {@link Log}, and the files
+ * are merged on the fly with a heap keyed by the next event's
+ * timestamp. A per-file time offset can be applied to correct for
+ * clock differences between the recording computers.
+ *
+ * Each file is assumed to be ordered by timestamp; events that go
+ * backwards within a file are passed through in file order.
+ */
+public class MergedLog
+{
+    static class Source
+    {
+        int       index;
+        Log       log;
+        long      offset;   // added to every timestamp from this log
+        Log.Event head;     // the next event, or null at EOF
+    }
+
+    Source  sources[];
+    PriorityQueue<Source> heap;
+
+    // the source whose head was returned by the last readNext(); it
+    // is advanced at the start of the next call, so that the returned
+    // event stays valid until then.
+    Source  returned;
+
+    Log.ChannelFilter filter;
+
+    /**
+     * Opens the log files for reading.
+     *
+     * @param paths the log files to merge
+     * @param offsets microseconds to add to the timestamps of each
+     * log, or null for no offsets
+     * @param readAheadSize if positive, read-ahead buffer size for
+     * each log (see {@link Log#enableReadAhead})
+     */
+    public MergedLog(String paths[], long offsets[], int readAheadSize) throws IOException
+    {
+        if (offsets != null && offsets.length != paths.length)
+            throw new IllegalArgumentException("MergedLog: "+paths.length+" logs but "+offsets.length+" offsets");
+
+        sources = new Source[paths.length];
+        heap = new PriorityQueue<Source>(Math.max(1, paths.length), new Comparator<Source>() {
+            public int compare(Source a, Source b) {
+                if (a.head.utime != b.head.utime)
+                    return a.head.utime < b.head.utime ? -1 : 1;
+                return a.index - b.index;
+            }
+        });
+
+        try {
+            for (int i = 0; i < paths.length; i++) {
+                Source src = new Source();
+                src.index = i;
+                src.offset = (offsets == null) ? 0 : offsets[i];
+                src.log = new Log(paths[i], "r");
+                sources[i] = src;
+
+                if (readAheadSize > 0)
+                    src.log.enableReadAhead(readAheadSize);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+
+        seekPositionFraction(0);
+    }
+
+    /** Returns the number of merged logs. **/
+    public int getNumLogs()
+    {
+        return sources.length;
+    }
+
+    /** Returns the underlying log with the given index. **/
+    public Log getLog(int index)
+    {
+        return sources[index].log;
+    }
+
+    /**
+     * Sets a filter that selects and renames events as they are read
+     * (see {@link Log#readNext(Log.Event, Log.ChannelFilter)}). The
+     * next event of each log has already been read, so the filter
+     * applies to events after those unless the logs are seeked.
+     *
+     * @param filter the filter, or null to read every event
+     */
+    public synchronized void setChannelFilter(Log.ChannelFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Reads the next event from the merged logs. The event's utime
+     * includes the offset of the log it came from; its eventNumber is
+     * the one recorded in that log.
+     *
+     * @throws java.io.EOFException if every log has been read to the end.
+     */
+    public synchronized Log.Event readNext() throws IOException
+    {
+        return readNext(false);
+    }
+
+    /**
+     * Reads the next event from the merged logs.
+     *
+     * @param recycle if true, event objects and their data buffers
+     * are recycled as in {@link Log#readNext(Log.Event)}, so the
+     * returned event is only valid until the next call
+     * @throws java.io.EOFException if every log has been read to the end.
+     */
+    public synchronized Log.Event readNext(boolean recycle) throws IOException
+    {
+        if (returned != null) {
+            advance(returned, recycle);
+            returned = null;
+        }
+
+        Source src = heap.poll();
+        if (src == null)
+            throw new EOFException("EOF");
+
+        returned = src;
+        return src.head;
+    }
+
+    /** Reads the next event of 'src' into its head and puts it back
+     * on the heap, unless the log has ended. **/
+    void advance(Source src, boolean recycle) throws IOException
+    {
+        try {
+            src.head = src.log.readNext(recycle ? src.head : null, filter);
+        } catch (EOFException ex) {
+            src.head = null;
+            return;
+        }
+
+        src.head.utime += src.offset;
+        heap.add(src);
+    }
+
+    /** Returns the mean position fraction of the logs. **/
+    public synchronized double getPositionFraction() throws IOException
+    {
+        double sum = 0;
+        for (Source src : sources)
+            sum += src.log.getPositionFraction();
+        return sum / sources.length;
+    }
+
+    /**
+     * Seeks the largest log to a position fraction, and the others to
+     * the time of its next event, so that the logs stay in step even
+     * if they differ in size or duration. A fraction of zero seeks
+     * every log to its start.
+     */
+    public synchronized void seekPositionFraction(double frac) throws IOException
+    {
+        heap.clear();
+        returned = null;
+
+        Source largest = sources[0];
+        for (Source src : sources) {
+            if (src.log.length() > largest.log.length())
+                largest = src;
+        }
+
+        // the time of the largest log's next event, whether or not the
+        // filter passes it
+        largest.log.seekPositionFraction(frac);
+        long mark = largest.log.getMark();
+        long utime = Long.MAX_VALUE;
+        try {
+            utime = largest.log.readNext().utime + largest.offset;
+        } catch (EOFException ex) {
+        }
+        largest.log.seekMark(mark);
+
+        for (Source src : sources) {
+            if (frac <= 0)
+                src.log.seekPositionFraction(0);
+            else if (src != largest)
+                src.log.seekToUtime(utime == Long.MAX_VALUE ? utime : utime - src.offset);
+            src.head = null;
+            advance(src, false);
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        IOException error = null;
+        for (Source src : sources) {
+            if (src == null)
+                continue;
+            try {
+                src.log.close();
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+}
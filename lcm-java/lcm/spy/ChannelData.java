@@ -7,27 +7,28 @@ public class ChannelData
 {
     public String      name;
     public Class       cls;
+    public LCMTypeDatabase.Decoder decoder; // null if the type is unknown
     public long        fingerprint;   // lcm type fingerprint
     public int         row;
 
-    public long        nreceived;
-    public int         nerrors;
     public long        last_utime;    // when was last message received?
 
-    public long        min_interval;  // written periodically by HzThread
+    // below: copied periodically by HzThread from Spy's ChannelStatsEngine
+    public long        nreceived;
+    public int         nerrors;
+    public double      hz;
+    public long        min_interval;
     public long        max_interval;
     public double      bandwidth;     // bytes per second
 
     public JFrame      viewerFrame;
     public ObjectPanel viewer;
 
-    // below: used by HzThread
-    public double      hz;
-    public long        hz_last_utime;
-    public long        hz_last_nreceived;
-    public long        hz_min_interval;
-    public long        hz_max_interval;
-    public long        hz_bytes;
-
-    public Object      last;         // last received object on this channel.
+    // Messages are only decoded while a viewer is open, so 'last' may be
+    // older than 'last_data', the raw bytes of the latest message.
+    public Object      last;         // last decoded object on this channel.
+    public byte[]      last_data;    // latest message, if not yet decoded
+    public long        last_data_utime;
+    public long        last_decode_utime;
+    public boolean     decode_pending; // a viewer update is scheduled
 }
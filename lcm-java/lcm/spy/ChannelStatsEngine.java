@@ -0,0 +1,283 @@
+package lcm.spy;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Per-channel traffic statistics over a rolling window: message rate,
+ * bandwidth, the distribution of intervals between messages, and
+ * decode errors. This is the arithmetic behind lcm-spy's channel
+ * table, without any user interface, so that it can also drive the
+ * headless output of {@link ChannelStatsPrinter}.
+ *
+ * The window is divided into a number of slots; rates and interval
+ * extremes are kept per slot, and a slot is recycled once it falls out
+ * of the window, so the statistics move smoothly rather than resetting
+ * once per window. Interval percentiles are computed from the most
+ * recent intervals in the window, up to {@link #MAX_INTERVALS} per
+ * channel.
+ *
+ * All methods are thread-safe. Messages are typically recorded on
+ * LCM's receive thread while snapshots are taken on another.
+ **/
+public class ChannelStatsEngine
+{
+    public static final int DEFAULT_SLOTS = 10;
+
+    /** Intervals kept per channel for computing percentiles. **/
+    public static final int MAX_INTERVALS = 1024;
+
+    /** The statistics of one channel at the time of a snapshot.
+     * Intervals are in microseconds; rates are per second. **/
+    public static class Stats
+    {
+        public String channel;
+        public long   fingerprint;
+        public long   received;         // since the channel was first seen
+        public long   errors;           // since the channel was first seen
+        public long   lastUtime;
+
+        public double hz;
+        public double bandwidth;        // bytes per second
+        public long   windowErrors;
+        public long   minInterval;      // -1 if fewer than two messages
+        public long   maxInterval;
+        public long   p50Interval;
+        public long   p99Interval;
+
+        /** The spread of the intervals, as shown by lcm-spy. **/
+        public long getJitter()
+        {
+            return minInterval < 0 ? 0 : maxInterval - minInterval;
+        }
+    }
+
+    /** Accumulates one channel; guarded by its own monitor. **/
+    static class ChannelStats
+    {
+        String channel;
+        long   fingerprint;
+        long   received;
+        long   errors;
+        long   lastUtime = -1;
+
+        long   slotIndex[];    // which slot number each entry holds
+        long   slotCount[];
+        long   slotBytes[];
+        long   slotErrors[];
+        long   slotMin[];
+        long   slotMax[];
+
+        // the most recent intervals and when they ended
+        long   intervals[] = new long[MAX_INTERVALS];
+        long   intervalEnds[] = new long[MAX_INTERVALS];
+        int    nintervals;
+        int    nextInterval;
+
+        ChannelStats(String channel, int nslots)
+        {
+            this.channel = channel;
+            slotIndex = new long[nslots];
+            slotCount = new long[nslots];
+            slotBytes = new long[nslots];
+            slotErrors = new long[nslots];
+            slotMin = new long[nslots];
+            slotMax = new long[nslots];
+            Arrays.fill(slotIndex, -1);
+        }
+
+        /** Returns the slot for slot number 'index', clearing it if it
+         * last held an older slot. **/
+        int slot(long index)
+        {
+            int s = (int) (index % slotIndex.length);
+            if (slotIndex[s] != index) {
+                slotIndex[s] = index;
+                slotCount[s] = 0;
+                slotBytes[s] = 0;
+                slotErrors[s] = 0;
+                slotMin[s] = Long.MAX_VALUE;
+                slotMax[s] = Long.MIN_VALUE;
+            }
+            return s;
+        }
+    }
+
+    long windowMicros;
+    long slotMicros;
+    int nslots;
+
+    ConcurrentHashMap<String,ChannelStats> channels = new ConcurrentHashMap<String,ChannelStats>();
+
+    public ChannelStatsEngine()
+    {
+        this(1.0);
+    }
+
+    /**
+     * @param windowSeconds the length of the rolling window
+     */
+    public ChannelStatsEngine(double windowSeconds)
+    {
+        this(windowSeconds, DEFAULT_SLOTS);
+    }
+
+    public ChannelStatsEngine(double windowSeconds, int nslots)
+    {
+        this.nslots = Math.max(1, nslots);
+        this.slotMicros = Math.max(1, (long) (windowSeconds*1.0E6/this.nslots));
+        this.windowMicros = slotMicros*this.nslots;
+    }
+
+    public double getWindowSeconds()
+    {
+        return windowMicros/1.0E6;
+    }
+
+    ChannelStats getChannel(String channel)
+    {
+        ChannelStats cs = channels.get(channel);
+        if (cs == null) {
+            ChannelStats created = new ChannelStats(channel, nslots);
+            cs = channels.putIfAbsent(channel, created);
+            if (cs == null)
+                cs = created;
+        }
+        return cs;
+    }
+
+    /**
+     * Records a message.
+     *
+     * @param fingerprint the message's type fingerprint, or -1 if it
+     * is too short to have one
+     * @param bytes the size of the message
+     * @param utime when the message was received, in microseconds on
+     * a monotonic clock
+     */
+    public void messageReceived(String channel, long fingerprint, int bytes, long utime)
+    {
+        ChannelStats cs = getChannel(channel);
+
+        synchronized (cs) {
+            int s = cs.slot(utime/slotMicros);
+            cs.slotCount[s]++;
+            cs.slotBytes[s] += bytes;
+
+            if (cs.lastUtime >= 0) {
+                long interval = utime - cs.lastUtime;
+                cs.slotMin[s] = Math.min(cs.slotMin[s], interval);
+                cs.slotMax[s] = Math.max(cs.slotMax[s], interval);
+
+                cs.intervals[cs.nextInterval] = interval;
+                cs.intervalEnds[cs.nextInterval] = utime;
+                cs.nextInterval = (cs.nextInterval + 1) % MAX_INTERVALS;
+                cs.nintervals = Math.min(cs.nintervals + 1, MAX_INTERVALS);
+            }
+
+            cs.fingerprint = fingerprint;
+            cs.lastUtime = utime;
+            cs.received++;
+        }
+    }
+
+    /** Records that a message on 'channel' could not be decoded. **/
+    public void decodeError(String channel, long utime)
+    {
+        ChannelStats cs = getChannel(channel);
+
+        synchronized (cs) {
+            cs.slotErrors[cs.slot(utime/slotMicros)]++;
+            cs.errors++;
+        }
+    }
+
+    /** Forgets every channel. **/
+    public void clear()
+    {
+        channels.clear();
+    }
+
+    /** Returns the statistics of one channel, or null if it has not
+     * been seen. **/
+    public Stats getStats(String channel, long utime)
+    {
+        ChannelStats cs = channels.get(channel);
+        return cs == null ? null : compute(cs, utime);
+    }
+
+    /** Returns the statistics of every channel seen, sorted by
+     * channel name. **/
+    public List<Stats> snapshot(long utime)
+    {
+        ArrayList<Stats> list = new ArrayList<Stats>();
+        for (ChannelStats cs : channels.values())
+            list.add(compute(cs, utime));
+
+        Collections.sort(list, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                return a.channel.compareTo(b.channel);
+            }
+        });
+        return list;
+    }
+
+    Stats compute(ChannelStats cs, long utime)
+    {
+        Stats st = new Stats();
+        long intervals[];
+        int n = 0;
+
+        // the window ends with the current (partial) slot.
+        long current = utime/slotMicros;
+        long oldest = current - nslots + 1;
+        long windowStart = oldest*slotMicros;
+        double seconds = Math.max(utime - windowStart, slotMicros)/1.0E6;
+
+        long count = 0, bytes = 0, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+
+        synchronized (cs) {
+            st.channel = cs.channel;
+            st.fingerprint = cs.fingerprint;
+            st.received = cs.received;
+            st.errors = cs.errors;
+            st.lastUtime = cs.lastUtime;
+
+            for (int s = 0; s < nslots; s++) {
+                if (cs.slotIndex[s] < oldest || cs.slotIndex[s] > current)
+                    continue;
+                count += cs.slotCount[s];
+                bytes += cs.slotBytes[s];
+                st.windowErrors += cs.slotErrors[s];
+                min = Math.min(min, cs.slotMin[s]);
+                max = Math.max(max, cs.slotMax[s]);
+            }
+
+            intervals = new long[cs.nintervals];
+            for (int i = 0; i < cs.nintervals; i++) {
+                int j = (cs.nextInterval - 1 - i + MAX_INTERVALS) % MAX_INTERVALS;
+                if (cs.intervalEnds[j] < windowStart)
+                    break;
+                intervals[n++] = cs.intervals[j];
+            }
+        }
+
+        st.hz = count/seconds;
+        st.bandwidth = bytes/seconds;
+
+        if (n == 0) {
+            st.minInterval = -1;
+            st.maxInterval = -1;
+            st.p50Interval = -1;
+            st.p99Interval = -1;
+        } else {
+            Arrays.sort(intervals, 0, n);
+            st.minInterval = (min <= max) ? min : intervals[0];
+            st.maxInterval = (min <= max) ? max : intervals[n - 1];
+            st.p50Interval = intervals[Math.min(n - 1, (int) Math.ceil(0.5*n) - 1)];
+            st.p99Interval = intervals[Math.min(n - 1, (int) Math.ceil(0.99*n) - 1)];
+        }
+
+        return st;
+    }
+}
@@ -0,0 +1,300 @@
+package lcm.spy;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import lcm.lcm.*;
+
+/**
+ * Prints lcm-spy's per-channel statistics as a stream of JSON or CSV
+ * instead of showing them in a window, for watching traffic where no
+ * display is available, e.g., on a robot over SSH. Run as "lcm-spy
+ * --headless [options]".
+ *
+ * In JSON, each report is one line holding an object with the time of
+ * the report and an array of channels. In CSV, a header line is
+ * followed by one line per channel per report. Intervals are in
+ * milliseconds, and are null (JSON) or empty (CSV) until a channel
+ * has received two messages within the window.
+ **/
+public class ChannelStatsPrinter implements LCMSubscriber
+{
+    ChannelStatsEngine engine;
+    LCMTypeDatabase handlers;
+    boolean decode;
+    boolean csv;
+    PrintStream out;
+
+    boolean headerPrinted;
+
+    /**
+     * @param engine accumulates the statistics
+     * @param handlers identifies message types, or null
+     * @param decode whether to decode every message of a known type,
+     * so that malformed messages are counted as errors
+     * @param csv print CSV rather than JSON
+     * @param out where to print
+     */
+    public ChannelStatsPrinter(ChannelStatsEngine engine, LCMTypeDatabase handlers,
+                               boolean decode, boolean csv, PrintStream out)
+    {
+        this.engine = engine;
+        this.handlers = handlers;
+        this.decode = decode;
+        this.csv = csv;
+        this.out = out;
+    }
+
+    static long utime_now()
+    {
+        return System.nanoTime()/1000;
+    }
+
+    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    {
+        long utime = utime_now();
+
+        try {
+            int size = ins.available();
+            long fingerprint = (size >= 8) ? ins.readLong() : -1;
+            ins.reset();
+
+            engine.messageReceived(channel, fingerprint, size, utime);
+
+            if (handlers == null)
+                return;
+
+            // as in the GUI, messages of unknown types count as
+            // undecodable.
+            LCMTypeDatabase.Decoder decoder = handlers.getDecoderByFingerprint(fingerprint);
+            if (decoder == null)
+                engine.decodeError(channel, utime);
+            else if (decode)
+                decoder.decode(ins);
+        } catch (IOException ex) {
+            engine.decodeError(channel, utime);
+        }
+    }
+
+    String typeName(long fingerprint)
+    {
+        if (handlers == null)
+            return null;
+        return handlers.getClassNameByFingerprint(fingerprint);
+    }
+
+    /** Prints a report of every channel. **/
+    public void print()
+    {
+        long wallUtime = System.currentTimeMillis()*1000;
+        List<ChannelStatsEngine.Stats> stats = engine.snapshot(utime_now());
+
+        if (csv)
+            printCSV(wallUtime, stats);
+        else
+            printJSON(wallUtime, stats);
+        out.flush();
+    }
+
+    void printJSON(long wallUtime, List<ChannelStatsEngine.Stats> stats)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"utime\":").append(wallUtime).append(",\"channels\":[");
+
+        for (int i = 0; i < stats.size(); i++) {
+            ChannelStatsEngine.Stats st = stats.get(i);
+            if (i > 0)
+                sb.append(',');
+
+            sb.append("{\"channel\":").append(jsonString(st.channel));
+            sb.append(",\"type\":").append(jsonString(typeName(st.fingerprint)));
+            sb.append(",\"fingerprint\":\"").append(String.format("%016x", st.fingerprint)).append('"');
+            sb.append(",\"received\":").append(st.received);
+            sb.append(",\"hz\":").append(number(st.hz));
+            sb.append(",\"bandwidth\":").append(number(st.bandwidth));
+            sb.append(",\"interval_min_ms\":").append(interval(st.minInterval, "null"));
+            sb.append(",\"interval_p50_ms\":").append(interval(st.p50Interval, "null"));
+            sb.append(",\"interval_p99_ms\":").append(interval(st.p99Interval, "null"));
+            sb.append(",\"interval_max_ms\":").append(interval(st.maxInterval, "null"));
+            sb.append(",\"jitter_ms\":").append(interval(st.getJitter(), "null"));
+            sb.append(",\"errors\":").append(st.errors);
+            sb.append(",\"window_errors\":").append(st.windowErrors);
+            sb.append('}');
+        }
+
+        sb.append("]}");
+        out.println(sb);
+    }
+
+    void printCSV(long wallUtime, List<ChannelStatsEngine.Stats> stats)
+    {
+        if (!headerPrinted) {
+            out.println("utime,channel,type,fingerprint,received,hz,bandwidth,"+
+                        "interval_min_ms,interval_p50_ms,interval_p99_ms,interval_max_ms,"+
+                        "jitter_ms,errors,window_errors");
+            headerPrinted = true;
+        }
+
+        for (ChannelStatsEngine.Stats st : stats) {
+            String type = typeName(st.fingerprint);
+            out.println(wallUtime+","+csvString(st.channel)+","+(type == null ? "" : csvString(type))+","+
+                        String.format("%016x", st.fingerprint)+","+st.received+","+
+                        number(st.hz)+","+number(st.bandwidth)+","+
+                        interval(st.minInterval, "")+","+interval(st.p50Interval, "")+","+
+                        interval(st.p99Interval, "")+","+interval(st.maxInterval, "")+","+
+                        interval(st.getJitter(), "")+","+st.errors+","+st.windowErrors);
+        }
+    }
+
+    static String number(double v)
+    {
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+
+    static String interval(long micros, String none)
+    {
+        return micros < 0 ? none : number(micros/1000.0);
+    }
+
+    static String jsonString(String s)
+    {
+        if (s == null)
+            return "null";
+
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    static String csvString(String s)
+    {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+            return s;
+        return "\""+s.replace("\"", "\"\"")+"\"";
+    }
+
+    public static void usage()
+    {
+        System.err.println("usage: lcm-spy --headless [options]");
+        System.err.println("");
+        System.err.println("Prints the statistics of each LCM channel periodically, as JSON (one");
+        System.err.println("object per line) or CSV, without opening a window.");
+        System.err.println("");
+        System.err.println("Options:");
+        System.err.println("  -h, --help             Shows this help text and exits");
+        System.err.println("  -l, --lcm-url=URL      Use the specified LCM URL");
+        System.err.println("  -c, --channels=REGEX   Only watch channels matching REGEX");
+        System.err.println("  -f, --format=FORMAT    json (default) or csv");
+        System.err.println("  -i, --interval=SECONDS Time between reports (default 1)");
+        System.err.println("  -w, --window=SECONDS   Length of the rolling window (default 1)");
+        System.err.println("  -n, --count=N          Exit after N reports");
+        System.err.println("  --decode               Decode every message of a known type, counting");
+        System.err.println("                         malformed messages as errors");
+        System.err.println("");
+        System.exit(1);
+    }
+
+    /** Returns the value of an option given as "-x VALUE", "--xx VALUE"
+     * or "--xx=VALUE", or null if 'args[optind]' is not that option. **/
+    static String option(String args[], int optind, String shortName, String longName)
+    {
+        String c = args[optind];
+        if (c.startsWith(longName+"="))
+            return c.substring(longName.length() + 1);
+        if (c.equals(shortName) || c.equals(longName)) {
+            if (optind + 1 >= args.length)
+                usage();
+            return args[optind + 1];
+        }
+        return null;
+    }
+
+    public static void main(String args[])
+    {
+        String lcmurl = null;
+        String channels = ".*";
+        boolean csv = false;
+        boolean decode = false;
+        double interval = 1, window = 1;
+        long count = -1;
+
+        try {
+            for (int optind = 0; optind < args.length; optind++) {
+                String c = args[optind];
+                String v;
+
+                if (c.equals("-h") || c.equals("--help")) {
+                    usage();
+                } else if (c.equals("--decode")) {
+                    decode = true;
+                    continue;
+                } else if ((v = option(args, optind, "-l", "--lcm-url")) != null) {
+                    lcmurl = v;
+                } else if ((v = option(args, optind, "-c", "--channels")) != null) {
+                    channels = v;
+                } else if ((v = option(args, optind, "-f", "--format")) != null) {
+                    if (!v.equals("json") && !v.equals("csv"))
+                        usage();
+                    csv = v.equals("csv");
+                } else if ((v = option(args, optind, "-i", "--interval")) != null) {
+                    interval = Double.parseDouble(v);
+                } else if ((v = option(args, optind, "-w", "--window")) != null) {
+                    window = Double.parseDouble(v);
+                } else if ((v = option(args, optind, "-n", "--count")) != null) {
+                    count = Long.parseLong(v);
+                } else {
+                    usage();
+                }
+
+                if (!c.contains("="))
+                    optind++;
+            }
+            Pattern.compile(channels);
+        } catch (NumberFormatException ex) {
+            usage();
+        } catch (PatternSyntaxException ex) {
+            usage();
+        }
+
+        // the statistics own stdout; diagnostics printed by the type
+        // scan and the providers go to stderr.
+        PrintStream out = System.out;
+        System.setOut(System.err);
+
+        try {
+            ChannelStatsPrinter printer = new ChannelStatsPrinter(new ChannelStatsEngine(window),
+                                                                  new LCMTypeDatabase(),
+                                                                  decode, csv, out);
+            LCM lcm = new LCM(lcmurl);
+            lcm.subscribe(channels, printer);
+
+            long periodMillis = Math.max(1, (long) (interval*1000));
+            long next = System.currentTimeMillis() + periodMillis;
+            for (long n = 0; count < 0 || n < count; n++) {
+                long now = System.currentTimeMillis();
+                if (next > now)
+                    Thread.sleep(next - now);
+                next += periodMillis;
+
+                printer.print();
+                if (out.checkError())
+                    break;
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.exit(1);
+        } catch (InterruptedException ex) {
+        }
+
+        System.exit(0);
+    }
+}
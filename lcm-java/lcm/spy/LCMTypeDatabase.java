@@ -16,19 +16,64 @@ import java.util.zip.*;
 
 import lcm.util.*;
 
+import java.lang.invoke.*;
 import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 import lcm.lcm.*;
 
-/** Searches classpath for objects that implement LCSpyPlugin using reflection. **/
+/** Searches classpath for LCM types, and decodes messages by
+ * fingerprint. The types are found by reading class files (see
+ * {@link ClassDiscoverer#scanClasses}); a type's class is only loaded
+ * once a message of that type is seen. **/
 public class LCMTypeDatabase
 {
-    HashMap<Long, Class> classes = new HashMap<Long, Class>();
+    /** Decodes messages of one LCM type. **/
+    public interface Decoder
+    {
+        /** @throws IOException if the message is not of this type or
+         * is malformed. **/
+        public Object decode(LCMDataInputStream ins) throws IOException;
+    }
+
+    HashMap<Long, String> classNames = new HashMap<Long, String>();
+    HashMap<Long, Class> classes = new HashMap<Long, Class>(); // loaded so far
+    ClassLoader loader;
+
+    // built on first use, since most types found are never received.
+    ConcurrentHashMap<Long, Decoder> decoders = new ConcurrentHashMap<Long, Decoder>();
 
     public LCMTypeDatabase()
     {
-        ClassDiscoverer.findClasses(new MyClassVisitor());
-        System.out.println("Found "+classes.size()+" LCM types");
+        String cp = ClassDiscoverer.getClassPath();
+        loader = ClassDiscoverer.getClassLoader(cp);
+
+        java.util.List<ClassInfo> infos = ClassDiscoverer.scanClasses(cp);
+        Map<String, Long> fingerprints = ClassInfo.computeFingerprints(infos);
+        MyClassVisitor visitor = new MyClassVisitor();
+
+        for (ClassInfo info : infos) {
+            if (!info.lcmType)
+                continue;
+
+            Long fingerprint = fingerprints.get(info.name);
+            if (fingerprint != null) {
+                if (!classNames.containsKey(fingerprint))
+                    classNames.put(fingerprint, info.name);
+                continue;
+            }
+
+            // the fingerprint could not be worked out from the class
+            // files, e.g., because the type was not made by lcm-gen, so
+            // load the class and ask it.
+            try {
+                visitor.classFound(null, loader.loadClass(info.name));
+            } catch (Throwable ex) {
+                System.out.println("Bad LCM Type? "+ex);
+            }
+        }
+
+        System.out.println("Found "+classNames.size()+" LCM types");
     }
 
     class MyClassVisitor implements ClassDiscoverer.ClassVisitor
@@ -43,6 +88,7 @@ public class LCMTypeDatabase
                         // it's a static member, we don't need an instance
                         long fingerprint = f.getLong(null);
                         classes.put(fingerprint, cls);
+                        classNames.put(fingerprint, cls.getName());
                         // System.out.printf("%016x : %s\n", fingerprint, cls);
 
                         break;
@@ -54,8 +100,87 @@ public class LCMTypeDatabase
         }
     }
 
-    public Class getClassByFingerprint(long fingerprint)
+    /** Returns the class of an LCM type, loading it if necessary, or
+     * null if the type is unknown. **/
+    public synchronized Class getClassByFingerprint(long fingerprint)
     {
-        return classes.get(fingerprint);
+        Class cls = classes.get(fingerprint);
+        if (cls != null)
+            return cls;
+
+        String name = classNames.get(fingerprint);
+        if (name == null)
+            return null;
+
+        try {
+            cls = loader.loadClass(name);
+        } catch (Throwable ex) {
+            System.out.println("Bad LCM Type? "+ex);
+            classNames.remove(fingerprint);
+            return null;
+        }
+
+        classes.put(fingerprint, cls);
+        return cls;
+    }
+
+    /** Returns the name of the class of an LCM type without loading
+     * it, or null if the type is unknown. **/
+    public synchronized String getClassNameByFingerprint(long fingerprint)
+    {
+        return classNames.get(fingerprint);
+    }
+
+    /** Returns a decoder for messages with the given fingerprint, or
+     * null if the type is unknown. Decoders are cached, so this is
+     * cheap enough to call for every message. **/
+    public Decoder getDecoderByFingerprint(long fingerprint)
+    {
+        Decoder decoder = decoders.get(fingerprint);
+        if (decoder != null)
+            return decoder;
+
+        Class cls = getClassByFingerprint(fingerprint);
+        if (cls == null)
+            return null;
+
+        try {
+            decoder = createDecoder(cls);
+        } catch (ReflectiveOperationException ex) {
+            System.out.println("Bad LCM Type? "+ex);
+            return null;
+        }
+
+        Decoder existing = decoders.putIfAbsent(fingerprint, decoder);
+        return existing != null ? existing : decoder;
+    }
+
+    /** Returns a decoder that calls the DataInput constructor of an
+     * LCM type through a method handle, which avoids the cost of
+     * looking up and invoking the constructor reflectively for each
+     * message. **/
+    public static Decoder createDecoder(final Class<?> cls)
+        throws NoSuchMethodException, IllegalAccessException
+    {
+        final MethodHandle constructor = MethodHandles.publicLookup()
+            .findConstructor(cls, MethodType.methodType(void.class, DataInput.class))
+            .asType(MethodType.methodType(Object.class, DataInput.class));
+
+        return new Decoder()
+        {
+            public Object decode(LCMDataInputStream ins) throws IOException
+            {
+                try {
+                    return (Object) constructor.invokeExact((DataInput) ins);
+                } catch (IOException ex) {
+                    throw ex;
+                } catch (Error ex) {
+                    throw ex;
+                } catch (Throwable ex) {
+                    // e.g., a negative array length in a corrupt message
+                    throw new IOException("Bad "+cls.getName()+": "+ex, ex);
+                }
+            }
+        };
     }
 }
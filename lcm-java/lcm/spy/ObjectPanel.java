@@ -6,13 +6,13 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.lang.invoke.*;
 import java.lang.reflect.*;
 
 import info.monitorenter.gui.chart.Chart2D;
 import info.monitorenter.gui.chart.ITrace2D;
-import info.monitorenter.gui.chart.ITracePoint2D;
 import info.monitorenter.gui.chart.axis.AxisLinear;
-import info.monitorenter.gui.chart.traces.Trace2DLtd;
 import info.monitorenter.gui.chart.traces.painters.TracePainterDisc;
 
 /**
@@ -49,6 +49,10 @@ public class ObjectPanel extends JPanel
     // array of all sparklines being graphed
     ArrayList<SparklineData> graphingSparklines = new ArrayList<SparklineData>();
 
+    // set once a detailed chart has been opened, so that lcm-spy can
+    // chart every message rather than only those the viewer shows.
+    volatile boolean charting = false;
+
     // we keep track of each drawing iteration to know if the row we clicked
     // on was displayed.  See SparklineData.lastDrawNumber.
     int currentDrawNumber = 0;
@@ -59,6 +63,24 @@ public class ObjectPanel extends JPanel
         boolean collapsed;
         HashMap<String, SparklineData> sparklines;
 
+        // if this section is an array, the names of its elements, so
+        // that they are not rebuilt on every repaint.
+        String elementPrefix;
+        String elementNames[] = new String[0];
+
+        String elementName(String prefix, int i)
+        {
+            if (!prefix.equals(elementPrefix)) {
+                elementPrefix = prefix;
+                elementNames = new String[0];
+            }
+            if (i >= elementNames.length)
+                elementNames = Arrays.copyOf(elementNames, Math.max(i + 1, 2*elementNames.length));
+            if (elementNames[i] == null)
+                elementNames[i] = prefix+"["+i+"]";
+            return elementNames[i];
+        }
+
 
         public Section()
         {
@@ -80,6 +102,7 @@ public class ObjectPanel extends JPanel
         // we do not use it for display. This allows us to use the data-collection
         // and management features
         Chart2D chart;
+        RingBufferTrace2D trace; // the chart's only trace
 
         String name;
         Section section;
@@ -90,6 +113,155 @@ public class ObjectPanel extends JPanel
         // user clicks in a place a line used to be, but is no longer
         //there since the array it was in got shorter.
         int lastDrawNumber = 0;
+
+        boolean visible;    // in visibleSparklines
+        boolean graphing;   // in graphingSparklines
+
+        // how to find this value in a message: a field or an array
+        // index at each level. See extract().
+        FieldPlan pathFields[];
+        int pathIndices[];
+    }
+
+    /**
+     * How to read one public field of a class. These are built once per
+     * class (see getPlan()) rather than on every repaint: getFields()
+     * copies its result on each call, and reflective access is slow.
+     * Numeric fields also get a getter that returns a double, so that
+     * their sparklines can be updated without boxing.
+     */
+    static class FieldPlan
+    {
+        String name;
+        Class type;
+        boolean isStatic;
+        Field field;
+        MethodHandle getter;        // (Object)Object, or null to use 'field'
+        MethodHandle doubleGetter;  // (Object)double, numeric fields only
+
+        Object get(Object o) throws Exception
+        {
+            if (getter == null)
+                return field.get(o);
+            try {
+                return (Object) getter.invokeExact(o);
+            } catch (Exception ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        double getDouble(Object o) throws Exception
+        {
+            if (doubleGetter == null)
+                return toDouble(get(o));
+            try {
+                return (double) doubleGetter.invokeExact(o);
+            } catch (Exception ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    static ConcurrentHashMap<Class, FieldPlan[]> plans = new ConcurrentHashMap<Class, FieldPlan[]>();
+
+    static FieldPlan[] getPlan(Class cls)
+    {
+        FieldPlan plan[] = plans.get(cls);
+        if (plan != null)
+            return plan;
+
+        Field fs[] = cls.getFields();
+        plan = new FieldPlan[fs.length];
+        for (int i = 0; i < fs.length; i++) {
+            FieldPlan fp = new FieldPlan();
+            fp.field = fs[i];
+            fp.name = fs[i].getName();
+            fp.type = fs[i].getType();
+            fp.isStatic = (fs[i].getModifiers() & Modifier.STATIC) != 0;
+
+            try {
+                MethodHandle mh = MethodHandles.publicLookup().unreflectGetter(fs[i]);
+                if (fp.isStatic)
+                    mh = MethodHandles.dropArguments(mh, 0, Object.class);
+
+                fp.getter = mh.asType(MethodType.methodType(Object.class, Object.class));
+                if (isNumeric(fp.type))
+                    fp.doubleGetter = mh.asType(MethodType.methodType(double.class, Object.class));
+            } catch (IllegalAccessException ex) {
+                // e.g., a public field of a class that is not public;
+                // fall back on reflection.
+                fs[i].setAccessible(true);
+            }
+            plan[i] = fp;
+        }
+
+        plans.putIfAbsent(cls, plan);
+        return plan;
+    }
+
+    static boolean isNumeric(Class cls)
+    {
+        return cls == Double.TYPE || cls == Float.TYPE || cls == Long.TYPE ||
+            cls == Integer.TYPE || cls == Short.TYPE || cls == Byte.TYPE;
+    }
+
+    static double toDouble(Object o)
+    {
+        if (o instanceof Double)
+            return (Double) o;
+        else if (o instanceof Float)
+            return (Float) o;
+        else if (o instanceof Integer)
+            return (Integer) o;
+        else if (o instanceof Long)
+            return (Long) o;
+        else if (o instanceof Short)
+            return (Short) o;
+        else if (o instanceof Byte)
+            return (Byte) o;
+        return Double.NaN;
+    }
+
+    /** Reads element 'i' of a primitive array without boxing it. **/
+    static double arrayDouble(Object array, int i)
+    {
+        if (array instanceof double[])
+            return ((double[]) array)[i];
+        if (array instanceof float[])
+            return ((float[]) array)[i];
+        if (array instanceof long[])
+            return ((long[]) array)[i];
+        if (array instanceof int[])
+            return ((int[]) array)[i];
+        if (array instanceof short[])
+            return ((short[]) array)[i];
+        if (array instanceof byte[])
+            return ((byte[]) array)[i];
+        return Double.NaN;
+    }
+
+    /**
+     * Follows a sparkline's path through a message to the value it
+     * graphs. Returns NaN if the message no longer has that value,
+     * e.g., because an array got shorter.
+     */
+    static double extract(Object o, FieldPlan fields[], int indices[])
+    {
+        try {
+            int n = fields.length;
+            for (int i = 0; i < n - 1; i++) {
+                o = (fields[i] != null) ? fields[i].get(o) : Array.get(o, indices[i]);
+                if (o == null)
+                    return Double.NaN;
+            }
+            return (fields[n - 1] != null) ? fields[n - 1].getDouble(o) : arrayDouble(o, indices[n - 1]);
+        } catch (Exception ex) {
+            return Double.NaN;
+        }
     }
 
     ArrayList<Section> sections = new ArrayList<Section>();
@@ -153,19 +325,19 @@ public class ObjectPanel extends JPanel
                 if (e.getButton() == MouseEvent.BUTTON1)
                 {
                     displayDetailedChart(data, false, false);
-                    graphingSparklines.add(data);
+                    startGraphing(data);
 
                 } else if (e.getButton() == MouseEvent.BUTTON2)
                 {
                     // middle click means open a new chart
                     displayDetailedChart(data, true, true);
-                    graphingSparklines.add(data);
+                    startGraphing(data);
 
                 } else if (e.getButton() == MouseEvent.BUTTON3)
                 {
                     // right click means same chart, new axis
                     displayDetailedChart(data, false, true);
-                    graphingSparklines.add(data);
+                    startGraphing(data);
                 }
 
                 return true;
@@ -175,6 +347,45 @@ public class ObjectPanel extends JPanel
         return false;
     }
 
+    void startGraphing(SparklineData data)
+    {
+        if (!data.graphing) {
+            data.graphing = true;
+            graphingSparklines.add(data);
+            charting = true;
+        }
+    }
+
+    /**
+     * Returns true if any value of this panel's messages is being
+     * graphed in a detailed chart.
+     */
+    public boolean isCharting()
+    {
+        return charting;
+    }
+
+    /**
+     * Adds a message to the detailed charts without displaying it. The
+     * panel only draws (and so samples) messages at the rate they are
+     * passed to setObject(); this lets the charts see the others.
+     *
+     * @param o the decoded message
+     * @param utime when it was received
+     */
+    public void addChartData(final Object o, long utime)
+    {
+        final long t = utime - chartData.getStartTime();
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                updateGraphData(o, t);
+            }
+        });
+    }
+
     /**
      * Opens a detailed, interactive chart for a data stream.  If the data is already
      * displayed in a chart, brings that chart to the front instead.
@@ -196,7 +407,7 @@ public class ObjectPanel extends JPanel
         }
 
         // check to see if we are already displaying this trace
-        Trace2DLtd trace = (Trace2DLtd) data.chart.getTraces().first();
+        RingBufferTrace2D trace = data.trace;
 
         for (ZoomableChartScrollWheel chart : chartData.getCharts())
         {
@@ -211,6 +422,7 @@ public class ObjectPanel extends JPanel
         if (openNewChart || chartData.getCharts().size() < 1)
         {
             trace.setMaxSize(chartData.detailedSparklineChartSize);
+            trace.keepHistory();
             ZoomableChartScrollWheel.newChartFrame(chartData, trace);
         } else
         {
@@ -236,6 +448,7 @@ public class ObjectPanel extends JPanel
                 if (!bestChart.getTraces().contains(trace))
                 {
                     trace.setMaxSize(chartData.detailedSparklineChartSize);
+                    trace.keepHistory();
                     trace.setColor(bestChart.popColor());
 
                     if (newAxis)
@@ -280,6 +493,40 @@ public class ObjectPanel extends JPanel
 
         int collapse_depth = 0;
 
+        // rows outside this range are laid out but not drawn
+        int clipTop = Integer.MIN_VALUE, clipBottom = Integer.MAX_VALUE;
+
+        // the path from the message to the value being painted
+        FieldPlan pathFields[] = new FieldPlan[8];
+        int pathIndices[] = new int[8];
+        int pathDepth;
+
+        // a sparkline's points, copied out of its trace
+        double sparkX[] = new double[0], sparkY[] = new double[0];
+
+        void push(FieldPlan field, int index)
+        {
+            if (pathDepth == pathFields.length) {
+                pathFields = Arrays.copyOf(pathFields, 2*pathDepth);
+                pathIndices = Arrays.copyOf(pathIndices, 2*pathDepth);
+            }
+            pathFields[pathDepth] = field;
+            pathIndices[pathDepth] = index;
+            pathDepth++;
+        }
+
+        void pop()
+        {
+            pathDepth--;
+        }
+
+        /** Whether a row ending at 'y' (the text baseline) would be
+         * seen if drawn. **/
+        boolean inClip(int y)
+        {
+            return y + textheight >= clipTop && y - 2*textheight <= clipBottom;
+        }
+
         public int beginSection(String type, String name, String value)
         {
             // allocate a new section number and make sure there's
@@ -304,14 +551,14 @@ public class ObjectPanel extends JPanel
                 Font of = g.getFont();
                 g.setFont(of.deriveFont(Font.BOLD));
                 FontMetrics fm = g.getFontMetrics();
+                boolean draw = inClip(y);
 
                 String tok = cs.collapsed ? "+" : "-";
                 g.setColor(Color.white);
                 g.fillRect(x[0] + indent_level*indentpx, y, 1, 1);
                 g.setColor(Color.black);
 
-                String type_split[] = type.split("\\.");
-                String drawtype = type_split[type_split.length - 1];
+                String drawtype = type.substring(type.lastIndexOf('.') + 1);
 
                 int type_len = fm.stringWidth(drawtype);
                 int name_len = fm.stringWidth(name);
@@ -319,8 +566,10 @@ public class ObjectPanel extends JPanel
                 int tok_pixidx = x[0] + indent_level*indentpx;
                 int type_pixidx = x[0] + indent_level*indentpx + 10;
 
-                g.drawString(tok, tok_pixidx, y);
-                g.drawString(drawtype, type_pixidx, y);
+                if (draw) {
+                    g.drawString(tok, tok_pixidx, y);
+                    g.drawString(drawtype, type_pixidx, y);
+                }
 
                 // set top of clicking area before
                 // we might do any text wrapping
@@ -329,13 +578,15 @@ public class ObjectPanel extends JPanel
                 // check if type field is too long. put name on new line if yes
                 if (type_pixidx + type_len > x[1])
                     y+= textheight;
-                g.drawString(name,  x[1], y);
+                if (draw)
+                    g.drawString(name,  x[1], y);
 
                 // check if name field is too long.  put value on new line if yes
                 // No need to put it on a new line if value is NULL
                 if (x[1] + name_len > x[2] && value.length() > 0)
                     y+= textheight;
-                g.drawString(value, x[2], y);
+                if (draw)
+                    g.drawString(value, x[2], y);
 
                 g.setFont(of);
 
@@ -398,6 +649,11 @@ public class ObjectPanel extends JPanel
             if (collapse_depth > 0)
                 return;
 
+            if (!inClip(y)) {
+                y+= textheight;
+                return;
+            }
+
             Font of = g.getFont();
             if (isstatic)
                 g.setFont(of.deriveFont(Font.ITALIC));
@@ -427,20 +683,7 @@ public class ObjectPanel extends JPanel
         {
             Section cs = sections.get(sec);
 
-            double value = Double.NaN;
-
-            if (o instanceof Double)
-                value = (Double) o;
-            else if (o instanceof Float)
-                value = (Float) o;
-            else if (o instanceof Integer)
-                value = (Integer) o;
-            else if (o instanceof Long)
-                value = (Long) o;
-            else if (o instanceof Short)
-                value = (Short) o;
-            else if (o instanceof Byte)
-                value = (Byte) o;
+            double value = toDouble(o);
 
             if (collapse_depth > 0)
             {
@@ -448,13 +691,14 @@ public class ObjectPanel extends JPanel
                 // graphs being displayed
                 SparklineData data = cs.sparklines.get(name);
 
-                if (data.chart != null)
+                // (detailed charts are fed by addChartData() instead.)
+                if (data.chart != null && !data.graphing)
                 {
-                    ITrace2D trace = data.chart.getTraces().first();
+                    RingBufferTrace2D trace = data.trace;
 
                     if (trace.getMaxX() < utime/1000000.0d) {
                         // this is a new point, add it
-                        trace.addPoint(utime/1000000.0d, value);
+                        trace.append(utime/1000000.0d, value);
                     }
                 }
                 return;
@@ -501,11 +745,10 @@ public class ObjectPanel extends JPanel
                 if (data.chart == null)
                 {
                     data.chart = InitChart(name);
-
+                    data.trace = (RingBufferTrace2D) data.chart.getTraces().first();
                 }
 
-                Chart2D chart = data.chart;
-                ITrace2D trace = chart.getTraces().first();
+                RingBufferTrace2D trace = data.trace;
 
                 // update the positions every loop in case another section
                 // was collapsed
@@ -513,10 +756,11 @@ public class ObjectPanel extends JPanel
                 data.xmin = x[3];
                 data.xmax = x[3]+sparklineWidth;
 
-                // add the data to our trace
-                if (trace.getMaxX() < utime/1000000.0d) {
+                // add the data to our trace, unless it is in a detailed
+                // chart, which addChartData() feeds with every message.
+                if (!data.graphing && trace.getMaxX() < utime/1000000.0d) {
                     // this is a new point, add it
-                    trace.addPoint(utime/1000000.0d, value);
+                    trace.append(utime/1000000.0d, value);
                 }
 
                 data.lastDrawNumber = currentDrawNumber;
@@ -541,24 +785,33 @@ public class ObjectPanel extends JPanel
          * @param trace data for the sparkline
          * @param isHovering true if the mouse cursor is hovering over this row
          */
-        public void DrawSparkline(int x, int y, ITrace2D trace, boolean isHovering)
+        public void DrawSparkline(int x, int y, RingBufferTrace2D trace, boolean isHovering)
         {
-
-            if (trace.getSize() < 2)
-            {
-                return;
-            }
-
             Graphics2D g2 = (Graphics2D) g;
 
-
-            Iterator<ITracePoint2D> iter = trace.iterator();
-
             final int circleSize = 3;
             final int height = textheight;
             double numSecondsDisplayed = 5.0;
             final double width = sparklineWidth;
 
+            double earliestTimeDisplayed = (utime/1000000.0 - numSecondsDisplayed);
+
+            // only the points that make a difference at this width
+            int columns = Math.max(1, (int) width);
+            if (sparkX.length < 4 * columns)
+            {
+                sparkX = new double[4 * columns];
+                sparkY = new double[4 * columns];
+            }
+
+            int npoints = trace.getPoints(sparkX, sparkY, earliestTimeDisplayed,
+                                          utime/1000000.0, columns);
+
+            if (npoints < 2)
+            {
+                return;
+            }
+
             //width = width * ((double)trace.getSize() / (double) trace.getMaxSize());
 
             if (trace.getMaxX() == trace.getMinX())
@@ -576,19 +829,19 @@ public class ObjectPanel extends JPanel
                 lineColor = temp;
             }
 
-            double earliestTimeDisplayed = (utime/1000000.0 - numSecondsDisplayed);
-
             // decide on the main axis scale
             double xscale = width / (numSecondsDisplayed);
 
-            if (trace.getMaxY() == trace.getMinY())
+            double minY = trace.getMinY();
+            double maxY = trace.getMaxY();
+
+            if (maxY == minY)
             {
                 // divide by zero error coming up!
                 // bail and draw a straight line down the center of the graph
                 g2.setColor(lineColor);
-                ITracePoint2D firstPoint = iter.next();
 
-                int leftLineX = (int)((firstPoint.getX() - earliestTimeDisplayed) * xscale) + x;
+                int leftLineX = (int)((sparkX[0] - earliestTimeDisplayed) * xscale) + x;
 
                 if (leftLineX < x)
                 {
@@ -602,44 +855,32 @@ public class ObjectPanel extends JPanel
             }
 
 
-            double yscale = height / (trace.getMaxY() - trace.getMinY());
+            double yscale = height / (maxY - minY);
 
 
             g2.setColor(lineColor);
 
-            boolean first = true;
-
-            double lastX = 0, lastY = 0, thisX, thisY;
+            double lastX = (sparkX[0] - earliestTimeDisplayed) * xscale + x;
+            double lastY = y - (sparkY[0] - minY) * yscale;
+            double thisX, thisY;
 
-            while (iter.hasNext())
+            for (int i = 1; i < npoints; i++)
             {
-                ITracePoint2D point = iter.next();
+                thisX = (sparkX[i] - earliestTimeDisplayed) * xscale + x;
+                thisY = y - (sparkY[i] - minY) * yscale;
 
-                if (first)
+                if (thisX >= x && lastX >= x)
                 {
-                    first = false;
-                    lastX = (point.getX() - earliestTimeDisplayed) * xscale + x;
-                    lastY = y - (point.getY() - trace.getMinY()) * yscale;
-                } else {
-                    thisX = (point.getX() - earliestTimeDisplayed) * xscale + x;
-                    thisY = y - (point.getY() - trace.getMinY()) * yscale;
-
-                    if (thisX >= x && lastX >= x)
-                    {
-                        g2.drawLine((int)lastX, (int)lastY, (int)thisX, (int)thisY);
-                    }
-                    lastX = thisX;
-                    lastY = thisY;
-                }
-
-                if (!iter.hasNext())
-                {
-                    // this is the last point, bold it
-                    g2.setColor(pointColor);
-                    g2.fillOval((int)lastX - 1, (int)lastY - 1, 3, 3);
-                    g2.setColor(lineColor);
+                    g2.drawLine((int)lastX, (int)lastY, (int)thisX, (int)thisY);
                 }
+                lastX = thisX;
+                lastY = thisY;
             }
+
+            // the last point, bold it
+            g2.setColor(pointColor);
+            g2.fillOval((int)lastX - 1, (int)lastY - 1, 3, 3);
+            g2.setColor(lineColor);
         }
 
 
@@ -698,7 +939,18 @@ public class ObjectPanel extends JPanel
         JFrame topFrame = (JFrame) SwingUtilities.getWindowAncestor(this);
 
         if (topFrame.getExtendedState() == Frame.ICONIFIED) {
-            UpdateGraphDataWithoutPaint();
+            // on the event dispatch thread, like painting, so that only
+            // one thread appends to each sparkline's trace. (Once there
+            // is a detailed chart, addChartData() keeps them up to date.)
+            if (!charting) {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        UpdateGraphDataWithoutPaint();
+                    }
+                });
+            }
         } else {
             repaint();
         }
@@ -729,6 +981,8 @@ public class ObjectPanel extends JPanel
     {
         Rectangle view_rect = viewport.getViewRect();
 
+        for (SparklineData data : visibleSparklines)
+            data.visible = false;
         visibleSparklines.clear();
 
         for (int i = sections.size() -1; i > -1; i--)
@@ -747,6 +1001,7 @@ public class ObjectPanel extends JPanel
                     if (data.ymin > view_rect.y - sparklineDrawMargin
                             && data.ymax < view_rect.y + view_rect.height + sparklineDrawMargin)
                     {
+                        data.visible = true;
                         visibleSparklines.add(data);
                     }
                 }
@@ -781,6 +1036,12 @@ public class ObjectPanel extends JPanel
         ps.x[2] = Math.min(ps.x[1]+200, 2*width/4);
         ps.x[3] = ps.x[2]+150;
 
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            ps.clipTop = clip.y;
+            ps.clipBottom = clip.y + clip.height;
+        }
+
         currentDrawNumber ++;
 
         int previousNumSections = sections.size();
@@ -823,48 +1084,9 @@ public class ObjectPanel extends JPanel
 
         if (cls.isPrimitive() || cls.equals(Byte.TYPE)) {
 
-            // This is our common case...
-            Section cs = sections.get(section);
-            SparklineData data = cs.sparklines.get(name); // if data == null, this graph doesn't exist yet
-
-            if (data == null)
-            {
-                // we may or may not draw this depending on if it is near the view but we need to keep track of it
-                // so the user can click on it
-
-                data = new SparklineData();
-                data.name = name;
-                data.section = cs;
-                data.isHovering = false;
-                data.chart = null;
-
-                cs.sparklines.put(name, data);
-
-            }
-
-            // text can drop below the expected height for letters like
-            // "g", which makes it possible to click on a letter and get
-            // the wrong graph.  Add a small correction factor to deal with that
-            final int text_below_line_height = 2; // in px
-
-            data.ymin = ps.y - ps.textheight + text_below_line_height;
-            data.ymax = ps.y + text_below_line_height;
-
-            if (visibleSparklines.contains(data) || graphingSparklines.contains(data))
-            {
-                ps.drawStringsAndGraph(cls, name, o, isstatic, section);
-
-            } else {
-                // don't bother drawing the strings or graph for it.
-                // just update the text height to pretend we drew it
-                // (on huge messages, this is a large CPU savings)
-
-                if (ps.collapse_depth > 0)
-                    return;
-
-                ps.y+= ps.textheight;
-
-            }
+            // primitives are painted by paintPrimitive(), from the
+            // field or array that holds them.
+            ps.drawStrings(cls.getName(), name, o.toString(), isstatic);
 
         } else if (o instanceof Enum) {
 
@@ -877,10 +1099,18 @@ public class ObjectPanel extends JPanel
         } else if (cls.isArray())  {
 
             int sz = Array.getLength(o);
-            int sec = ps.beginSection(cls.getComponentType()+"[]", name+"["+sz+"]", "");
+            Class ct = cls.getComponentType();
+            int sec = ps.beginSection(ct+"[]", name+"["+sz+"]", "");
+            Section cs = sections.get(sec);
 
-            for (int i = 0; i < sz; i++)
-                paintRecurse(g, ps, name+"["+i+"]", cls.getComponentType(), Array.get(o, i), isstatic, sec);
+            for (int i = 0; i < sz; i++) {
+                ps.push(null, i);
+                if (ct.isPrimitive())
+                    paintPrimitive(ps, cs.elementName(name, i), ct, o, null, i, isstatic, sec);
+                else
+                    paintRecurse(g, ps, cs.elementName(name, i), ct, Array.get(o, i), isstatic, sec);
+                ps.pop();
+            }
 
             ps.endSection(sec);
 
@@ -890,14 +1120,20 @@ public class ObjectPanel extends JPanel
             int sec = ps.beginSection(cls.getName(), name, "");
 
             // it's a class
-            Field fs[] = cls.getFields();
-            for (Field f : fs) {
-                try {
-                    paintRecurse(g, ps, f.getName(), f.getType(), f.get(o), isstatic || ((f.getModifiers()&Modifier.STATIC) != 0), sec);
-                } catch (Exception ex) {
-                    System.out.println(ex.getMessage());
-                    ex.printStackTrace(System.out);
+            for (FieldPlan f : getPlan(cls)) {
+                boolean fstatic = isstatic || f.isStatic;
+                ps.push(f, -1);
+                if (f.type.isPrimitive()) {
+                    paintPrimitive(ps, f.name, f.type, o, f, -1, fstatic, sec);
+                } else {
+                    try {
+                        paintRecurse(g, ps, f.name, f.type, f.get(o), fstatic, sec);
+                    } catch (Exception ex) {
+                        System.out.println(ex.getMessage());
+                        ex.printStackTrace(System.out);
+                    }
                 }
+                ps.pop();
             }
 
             ps.endSection(sec);
@@ -905,90 +1141,98 @@ public class ObjectPanel extends JPanel
     }
 
     /**
-     * Usually the paintRecurse method deals with searching through the incoming data
-     * but when the window is minimized, we do not paint, causing the child graphs
-     * to stop updating.  This method performs that search and adds data to the graphs
-     * without actually drawing anything
+     * Paints a primitive value: either field 'field' of 'container', or
+     * element 'index' of the array 'container'. The value is only read
+     * if its row is drawn or graphed, since on huge messages most rows
+     * are neither.
      */
-    void UpdateGraphDataWithoutPaint() {
-        for (SparklineData data : graphingSparklines) {
-            UpdateGraphDataWithoutPaintRecurse(data, "", o.getClass(), o);
-        }
-    }
+    void paintPrimitive(PaintState ps, String name, Class cls, Object container, FieldPlan field, int index,
+                        boolean isstatic, int section)
+    {
+        // This is our common case...
+        Section cs = sections.get(section);
+        SparklineData data = cs.sparklines.get(name); // if data == null, this graph doesn't exist yet
 
-    /**
-     * Recursive call for the search through the data object
-     *
-     * @param sparklineToUpdate data to update
-     * @param name
-     * @param cls
-     * @param o
-     */
-    void UpdateGraphDataWithoutPaintRecurse(SparklineData sparklineToUpdate, String name, Class cls, Object o) {
+        if (data == null)
+        {
+            // we may or may not draw this depending on if it is near the view but we need to keep track of it
+            // so the user can click on it
 
-        if (sparklineToUpdate.chart == null) {
-            // don't have a big chart for this, no point in updating it
-            return;
-        }
+            data = new SparklineData();
+            data.name = name;
+            data.section = cs;
+            data.isHovering = false;
+            data.chart = null;
+
+            cs.sparklines.put(name, data);
 
-        if (o instanceof Enum || cls.equals(String.class)) {
-            // no further objects to recurse into and no
-            // data to store
-            return;
         }
 
+        // text can drop below the expected height for letters like
+        // "g", which makes it possible to click on a letter and get
+        // the wrong graph.  Add a small correction factor to deal with that
+        final int text_below_line_height = 2; // in px
 
-        if (cls.isPrimitive() || cls.equals(Byte.TYPE)) {
+        data.ymin = ps.y - ps.textheight + text_below_line_height;
+        data.ymax = ps.y + text_below_line_height;
 
-            if (sparklineToUpdate.name.equals(name))
-            {
-                // we found the part of the data that this chart is using
-                // update it!
-                double value = Double.NaN;
-
-                if (o instanceof Double)
-                    value = (Double) o;
-                else if (o instanceof Float)
-                    value = (Float) o;
-                else if (o instanceof Integer)
-                    value = (Integer) o;
-                else if (o instanceof Long)
-                    value = (Long) o;
-                else if (o instanceof Short)
-                    value = (Short) o;
-                else if (o instanceof Byte)
-                    value = (Byte) o;
-
-
-                ITrace2D trace = sparklineToUpdate.chart.getTraces().first();
-
-                if (trace.getMaxX() < utime/1000000.0d) {
-                    // this is a new point, add it
-                    trace.addPoint(utime/1000000.0d, value);
-                }
+        if (data.visible || data.graphing)
+        {
+            // remember where this value is, for UpdateGraphDataWithoutPaint()
+            data.pathFields = Arrays.copyOf(ps.pathFields, ps.pathDepth);
+            data.pathIndices = Arrays.copyOf(ps.pathIndices, ps.pathDepth);
+
+            Object o;
+            try {
+                o = (field != null) ? field.get(container) : Array.get(container, index);
+            } catch (Exception ex) {
+                System.out.println(ex.getMessage());
+                ex.printStackTrace(System.out);
                 return;
             }
 
-        } else if (cls.isArray())  {
+            ps.drawStringsAndGraph(cls, name, o, isstatic, section);
 
-            int sz = Array.getLength(o);
+        } else {
+            // don't bother drawing the strings or graph for it.
+            // just update the text height to pretend we drew it
+            // (on huge messages, this is a large CPU savings)
 
-            for (int i = 0; i < sz; i++)
-                UpdateGraphDataWithoutPaintRecurse(sparklineToUpdate, name+"["+i+"]", cls.getComponentType(), Array.get(o, i));
+            if (ps.collapse_depth > 0)
+                return;
 
-        } else {
+            ps.y+= ps.textheight;
 
-            // it's a compound type. recurse.
+        }
+    }
 
-            // it's a class
-            Field fs[] = cls.getFields();
-            for (Field f : fs) {
-                try {
-                    UpdateGraphDataWithoutPaintRecurse(sparklineToUpdate, f.getName(), f.getType(), f.get(o));
-                } catch (Exception ex) {
-                    System.out.println(ex.getMessage());
-                    ex.printStackTrace(System.out);
-                }
+    /**
+     * Usually the paintRecurse method deals with searching through the incoming data
+     * but when the window is minimized, we do not paint, causing the child graphs
+     * to stop updating.  This method adds data to the graphs without drawing
+     * anything, by following the path to each graphed value that was
+     * recorded when it was last painted.
+     */
+    void UpdateGraphDataWithoutPaint() {
+        updateGraphData(o, utime);
+    }
+
+    void updateGraphData(Object o, long utime) {
+        for (SparklineData data : graphingSparklines) {
+            if (data.chart == null || data.pathFields == null || data.pathFields.length == 0) {
+                // don't have a big chart for this, no point in updating it
+                continue;
+            }
+
+            double value = extract(o, data.pathFields, data.pathIndices);
+            if (Double.isNaN(value))
+                continue;
+
+            RingBufferTrace2D trace = data.trace;
+
+            if (trace.getMaxX() < utime/1000000.0d) {
+                // this is a new point, add it
+                trace.append(utime/1000000.0d, value);
             }
         }
     }
@@ -1011,7 +1255,7 @@ public class ObjectPanel extends JPanel
     {
         Chart2D chart = new Chart2D();
 
-        ITrace2D trace = new Trace2DLtd(chartData.sparklineChartSize, name);
+        ITrace2D trace = new RingBufferTrace2D(chartData.sparklineChartSize, name);
 
         chart.addTrace(trace);
 
@@ -0,0 +1,929 @@
+package lcm.spy;
+
+import java.util.*;
+
+import javax.swing.*;
+
+import info.monitorenter.gui.chart.Chart2D;
+import info.monitorenter.gui.chart.IAxis;
+import info.monitorenter.gui.chart.ITrace2D;
+import info.monitorenter.gui.chart.ITracePoint2D;
+import info.monitorenter.gui.chart.TracePoint2D;
+import info.monitorenter.gui.chart.axis.AxisLinear;
+import info.monitorenter.gui.chart.traces.ATrace2D;
+
+/**
+ * A trace that keeps its most recent points in rings of primitive
+ * doubles, for sparklines and charts that are fed continuously.
+ *
+ * Trace2DLtd keeps a TracePoint2D for every point, and addPoint()
+ * locks both the chart and the trace, which painting also locks.
+ * append() instead writes the point into parallel x and y arrays,
+ * updates the bounds incrementally, and advances a sequence number,
+ * without locking or allocating.
+ *
+ * The trace must only be used on the event dispatch thread, which
+ * appends, reads and paints; append(), setMaxSize(), removeAllPoints()
+ * and the other methods that change it throw IllegalStateException on
+ * any other thread. (Checking the sequence number after reading a
+ * point does not make reads from another thread safe: without a load
+ * fence, which Java 8 lacks, the reads of the point may be reordered
+ * after that of the sequence number.) An iterator that is kept while
+ * points are appended is weakly consistent: points that have been
+ * overwritten since it was made are skipped.
+ *
+ * A chart that shows the trace learns about appended points on the
+ * event dispatch thread, a batch at a time (see drain()). Computing
+ * traces are not told about appended points.
+ *
+ * When there are more points than pixel columns to draw them in, only
+ * the first, last, lowest and highest point of each column are drawn
+ * (see Decimation), so painting costs about the same whether the trace
+ * holds a thousand points or a million.
+ **/
+public class RingBufferTrace2D extends ATrace2D
+{
+    /**
+     * The points, each stored in slot (seq & mask) by its sequence
+     * number. There is at least one more slot than the maximum size, so
+     * the slot being written never holds a point that an iterator may
+     * yet return.
+     **/
+    static class Ring
+    {
+        final int maxSize;
+        final int mask;
+        final double xs[], ys[];
+
+        // sequence number of the next point; points
+        // [first(head), head) are valid.
+        long head;
+
+        // x never decreases from point 'sortedFrom' on, so points can
+        // be found by x with a binary search once it is the oldest.
+        long sortedFrom;
+
+        // the extrema of blocks of 16, 256, ... points
+        final Level levels[];
+
+        // TracePoint2Ds handed out by iterator(), made when first
+        // asked for and reused as the ring wraps. pointSeqs[] says
+        // which point each one currently holds.
+        TracePoint2D points[];
+        long pointSeqs[];
+
+        Ring(int maxSize)
+        {
+            if (maxSize < 1)
+                throw new IllegalArgumentException("maxSize must be positive: "+maxSize);
+
+            this.maxSize = maxSize;
+            mask = Integer.highestOneBit(maxSize) * 2 - 1;
+            xs = new double[mask + 1];
+            ys = new double[mask + 1];
+
+            // levels whose blocks are at least a quarter of the ring
+            // would save little.
+            int nlevels = 0;
+            while ((4L << (Level.SHIFT * (nlevels + 1))) <= mask + 1)
+                nlevels++;
+
+            levels = new Level[nlevels];
+            for (int i = 0; i < nlevels; i++) {
+                int shift = Level.SHIFT * (i + 1);
+                levels[i] = new Level(shift, ((mask + 1) >> shift) * 2);
+            }
+        }
+
+        /** Writes point 'seq', which must be 'head'. **/
+        void set(long seq, double x, double y)
+        {
+            int slot = slot(seq);
+            xs[slot] = x;
+            ys[slot] = y;
+
+            if (seq > 0 && !(x >= xs[slot(seq - 1)]))
+                sortedFrom = seq;
+
+            for (Level level : levels)
+                level.add(seq, y);
+        }
+
+        int slot(long seq)
+        {
+            return (int) seq & mask;
+        }
+
+        long first(long head)
+        {
+            return Math.max(0, head - maxSize);
+        }
+
+        /** Whether point 'seq' has not yet been overwritten. Check
+         * this after reading the point, in case the ring has wrapped
+         * around since 'seq' was found. **/
+        boolean isValid(long seq)
+        {
+            return head <= seq + maxSize;
+        }
+
+        /** Returns the first point in [from, to) whose x is greater
+         * than 'x', or 'to' if there is none. The points must be
+         * sorted by x. **/
+        long search(long from, long to, double x)
+        {
+            while (from < to) {
+                long mid = (from + to) >>> 1;
+                if (xs[slot(mid)] > x)
+                    to = mid;
+                else
+                    from = mid + 1;
+            }
+            return from;
+        }
+    }
+
+    /**
+     * The lowest and highest y of each block of 2^shift points, and
+     * which points they are, so that the extrema of a long run of
+     * points can be found without visiting each of them. Block b, of
+     * points [b << shift, (b + 1) << shift), is kept in slot (b & mask);
+     * there are twice as many slots as blocks in the ring, so a block
+     * is not reused until its points have long been overwritten.
+     **/
+    static class Level
+    {
+        static final int SHIFT = 4;
+
+        final int shift, mask;
+        final double mins[], maxs[];
+        final long minSeqs[], maxSeqs[];
+
+        Level(int shift, int slots)
+        {
+            this.shift = shift;
+            this.mask = slots - 1;
+            mins = new double[slots];
+            maxs = new double[slots];
+            minSeqs = new long[slots];
+            maxSeqs = new long[slots];
+        }
+
+        int slot(long seq)
+        {
+            return (int) (seq >>> shift) & mask;
+        }
+
+        void add(long seq, double y)
+        {
+            int slot = slot(seq);
+            if ((seq & ((1L << shift) - 1)) == 0) {
+                mins[slot] = Double.POSITIVE_INFINITY;
+                maxs[slot] = Double.NEGATIVE_INFINITY;
+                minSeqs[slot] = -1;
+                maxSeqs[slot] = -1;
+            }
+
+            // NaNs are never extrema
+            if (y < mins[slot]) {
+                mins[slot] = y;
+                minSeqs[slot] = seq;
+            }
+            if (y > maxs[slot]) {
+                maxs[slot] = y;
+                maxSeqs[slot] = seq;
+            }
+        }
+    }
+
+    /**
+     * Chooses which points to draw in a given number of pixel columns.
+     * Where a column holds more than four points, only its first and
+     * last points and the points with the lowest and highest y are
+     * kept; drawn as a line, these cover the same pixels as all of the
+     * column's points would, except that gaps of NaNs within a column
+     * are not shown. Finding the extrema uses the ring's levels, so a
+     * column costs O(log n) however many points it holds.
+     *
+     * If the points are sorted by x, the columns divide the range of x
+     * to be drawn, and only the points in it, plus one either side so
+     * that lines reach the edges, are chosen. Otherwise, the columns
+     * divide all of the points evenly.
+     **/
+    static class Decimation
+    {
+        long seqs[] = new long[0];
+        int count;
+        long minSeq, maxSeq;
+
+        /** Sets 'seqs' to the points of 'ring', as of 'head', to draw
+         * for x in [minX, maxX] in 'columns' columns. At most
+         * 4*columns points are chosen. **/
+        void run(Ring ring, long head, double minX, double maxX, int columns)
+        {
+            if (seqs.length < 4 * columns)
+                seqs = new long[4 * columns];
+            count = 0;
+
+            long first = ring.first(head);
+            long lo = first, hi = head;
+            boolean byX = ring.sortedFrom <= first && minX < maxX;
+            if (byX) {
+                lo = Math.max(first, ring.search(first, head, minX) - 1);
+                hi = Math.min(head, ring.search(lo, head, maxX) + 1);
+            }
+
+            if (hi - lo <= 4L * columns) {
+                for (long seq = lo; seq < hi; seq++)
+                    seqs[count++] = seq;
+                return;
+            }
+
+            long from = lo;
+            for (int c = 1; c <= columns; c++) {
+                long to;
+                if (c == columns)
+                    to = hi;
+                else if (byX)
+                    to = ring.search(from, hi, minX + (maxX - minX) * c / columns);
+                else
+                    to = lo + (hi - lo) * c / columns;
+
+                if (to - from <= 4) {
+                    for (long seq = from; seq < to; seq++)
+                        seqs[count++] = seq;
+                } else {
+                    extremes(ring, from + 1, to - 1);
+                    long a = Math.min(minSeq, maxSeq), b = Math.max(minSeq, maxSeq);
+
+                    seqs[count++] = from;
+                    if (a >= 0)
+                        seqs[count++] = a;
+                    if (b >= 0 && b != a)
+                        seqs[count++] = b;
+                    seqs[count++] = to - 1;
+                }
+                from = to;
+            }
+        }
+
+        /** Sets minSeq and maxSeq to the points in [from, to) with the
+         * lowest and highest y, or to -1 if all are NaN. **/
+        void extremes(Ring ring, long from, long to)
+        {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            minSeq = -1;
+            maxSeq = -1;
+
+            long seq = from;
+            while (seq < to) {
+                // the largest block that starts here and fits, if any
+                Level level = null;
+                for (int i = ring.levels.length - 1; i >= 0 && level == null; i--) {
+                    long size = 1L << ring.levels[i].shift;
+                    if ((seq & (size - 1)) == 0 && seq + size <= to)
+                        level = ring.levels[i];
+                }
+
+                if (level == null) {
+                    double y = ring.ys[ring.slot(seq)];
+                    if (y < min) {
+                        min = y;
+                        minSeq = seq;
+                    }
+                    if (y > max) {
+                        max = y;
+                        maxSeq = seq;
+                    }
+                    seq++;
+                } else {
+                    int slot = level.slot(seq);
+                    if (level.mins[slot] < min) {
+                        min = level.mins[slot];
+                        minSeq = level.minSeqs[slot];
+                    }
+                    if (level.maxs[slot] > max) {
+                        max = level.maxs[slot];
+                        maxSeq = level.maxSeqs[slot];
+                    }
+                    seq += 1L << level.shift;
+                }
+            }
+        }
+    }
+
+    /**
+     * The minimum or maximum of the points in a ring, kept as a deque
+     * of the points that could yet become the extremum (those with no
+     * more extreme point after them), oldest first. Each point is added
+     * and removed once, so this costs O(1) per point, rather than the
+     * search over all points that Trace2DLtd does whenever the extremum
+     * is overwritten.
+     **/
+    static class Extremum
+    {
+        final boolean max;
+        final long seqs[];
+        int first, count;
+
+        Extremum(boolean max, int maxSize)
+        {
+            this.max = max;
+            this.seqs = new long[maxSize];
+        }
+
+        int index(int i)
+        {
+            i += first;
+            return i < seqs.length ? i : i - seqs.length;
+        }
+
+        /** Adds point 'seq', whose value is in 'values', and forgets
+         * points older than 'oldest'. **/
+        void add(Ring ring, double values[], long seq, long oldest)
+        {
+            while (count > 0 && seqs[first] < oldest) {
+                first = index(1);
+                count--;
+            }
+
+            double v = values[ring.slot(seq)];
+            if (Double.isNaN(v))
+                return;
+
+            while (count > 0) {
+                double last = values[ring.slot(seqs[index(count - 1)])];
+                if (max ? last > v : last < v)
+                    break;
+                count--;
+            }
+
+            seqs[index(count)] = seq;
+            count++;
+        }
+
+        /** Returns the extremum, or 'none' if there are no points
+         * other than NaNs. **/
+        double value(Ring ring, double values[], double none)
+        {
+            return count == 0 ? none : values[ring.slot(seqs[first])];
+        }
+    }
+
+    Ring ring;
+
+    // used by getPoints()
+    final Decimation decimation = new Decimation();
+
+    // whether iterator() last returned decimated points, and whether
+    // those included history
+    boolean decimated, historic;
+
+    // see keepHistory()
+    TraceHistory history;
+
+    // TracePoint2Ds handed out by iterator() for the history; these have
+    // no listener, so moving them fires no events.
+    TracePoint2D historyPoints[] = new TracePoint2D[0];
+
+    Extremum minX, maxX, minY, maxY;
+
+    static final int MAX_NOTIFIED_POINTS = 4096;
+
+    // what charts have been told so far; see drain()
+    boolean notifyPending;
+    Runnable notifier = new Runnable()
+    {
+        public void run()
+        {
+            notifyPending = false;
+            drain();
+        }
+    };
+    Ring notifiedRing;
+    long notified;
+    double notifiedMinX = Double.NaN, notifiedMaxX = Double.NaN;
+    double notifiedMinY = Double.NaN, notifiedMaxY = Double.NaN;
+
+    /**
+     * @param maxSize the number of points to keep
+     * @param name the name of the trace
+     */
+    public RingBufferTrace2D(int maxSize, String name)
+    {
+        setName(name);
+        setRing(new Ring(maxSize));
+    }
+
+    /** Throws unless called on the event dispatch thread; see the
+     * class comment. **/
+    static void checkThread()
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+            throw new IllegalStateException("RingBufferTrace2D used off the event dispatch thread");
+    }
+
+    /** Adds a point without locking or allocating. **/
+    public void append(double x, double y)
+    {
+        checkThread();
+
+        Ring ring = this.ring;
+        long head = ring.head;
+        ring.set(head, x, y);
+
+        long oldest = head + 1 - ring.maxSize;
+        minX.add(ring, ring.xs, head, oldest);
+        maxX.add(ring, ring.xs, head, oldest);
+        minY.add(ring, ring.ys, head, oldest);
+        maxY.add(ring, ring.ys, head, oldest);
+        updateBounds(ring);
+
+        if (history != null)
+            history.add(x, y);
+
+        ring.head = head + 1;
+
+        notifyChart();
+    }
+
+    /**
+     * Starts keeping a history of the trace beyond its points, at lower
+     * resolutions, for charts that are zoomed out to show more time
+     * than the points cover (see TraceHistory). The history starts with
+     * the points that the trace holds; does nothing if there is already
+     * a history.
+     */
+    public void keepHistory()
+    {
+        checkThread();
+        if (history != null)
+            return;
+
+        TraceHistory history = new TraceHistory();
+        Ring ring = this.ring;
+        long head = ring.head;
+        for (long seq = ring.first(head); seq < head; seq++)
+            history.add(ring.xs[ring.slot(seq)], ring.ys[ring.slot(seq)]);
+        this.history = history;
+    }
+
+    /** Stops keeping a history, releasing its memory. **/
+    public void dropHistory()
+    {
+        checkThread();
+        history = null;
+        historyPoints = new TracePoint2D[0];
+    }
+
+    /** Returns the history, or null if none is kept. **/
+    public TraceHistory getHistory()
+    {
+        return history;
+    }
+
+    /** Makes 'ring' the trace's points, with extrema and bounds to
+     * match. **/
+    void setRing(Ring ring)
+    {
+        int n = ring.maxSize;
+        minX = new Extremum(false, n);
+        maxX = new Extremum(true, n);
+        minY = new Extremum(false, n);
+        maxY = new Extremum(true, n);
+
+        long head = ring.head;
+        ring.sortedFrom = ring.first(head);
+        for (long seq = ring.first(head); seq < head; seq++) {
+            if (seq > ring.sortedFrom && !(ring.xs[ring.slot(seq)] >= ring.xs[ring.slot(seq - 1)]))
+                ring.sortedFrom = seq;
+            for (Level level : ring.levels)
+                level.add(seq, ring.ys[ring.slot(seq)]);
+
+            minX.add(ring, ring.xs, seq, 0);
+            maxX.add(ring, ring.xs, seq, 0);
+            minY.add(ring, ring.ys, seq, 0);
+            maxY.add(ring, ring.ys, seq, 0);
+        }
+        updateBounds(ring);
+
+        this.ring = ring;
+    }
+
+    // the bounds of ATrace2D, which getMinX() etc. return
+    void updateBounds(Ring ring)
+    {
+        m_minX = minX.value(ring, ring.xs, m_minX);
+        m_maxX = maxX.value(ring, ring.xs, m_maxX);
+        m_minY = minY.value(ring, ring.ys, m_minY);
+        m_maxY = maxY.value(ring, ring.ys, m_maxY);
+    }
+
+    /**
+     * Copies the newest points, oldest first, into 'xs' and 'ys', as
+     * many as fit. Unlike iterator(), this allocates nothing.
+     *
+     * @return the number of points copied
+     */
+    public int getPoints(double xs[], double ys[])
+    {
+        checkThread();
+
+        Ring ring = this.ring;
+        long head = ring.head;
+        int n = (int) Math.min(head - ring.first(head), Math.min(xs.length, ys.length));
+        long first = head - n;
+
+        int slot = ring.slot(first);
+        int n1 = Math.min(n, ring.xs.length - slot);
+        System.arraycopy(ring.xs, slot, xs, 0, n1);
+        System.arraycopy(ring.ys, slot, ys, 0, n1);
+        System.arraycopy(ring.xs, 0, xs, n1, n - n1);
+        System.arraycopy(ring.ys, 0, ys, n1, n - n1);
+        return n;
+    }
+
+    /**
+     * Copies the points to draw for x in [minX, maxX] in 'columns'
+     * pixel columns, oldest first, into 'xs' and 'ys', which should
+     * hold 4*columns points. Where there are more points than that,
+     * only those that decide what is drawn in each column are copied
+     * (see Decimation), so the cost depends on 'columns' rather than on
+     * the number of points. Allocates nothing once warmed up.
+     *
+     * @return the number of points copied
+     */
+    public int getPoints(double xs[], double ys[], double minX, double maxX, int columns)
+    {
+        checkThread();
+
+        Ring ring = this.ring;
+        decimation.run(ring, ring.head, minX, maxX, Math.max(1, columns));
+
+        long seqs[] = decimation.seqs;
+        int n = Math.min(decimation.count, Math.min(xs.length, ys.length));
+        for (int i = 0; i < n; i++) {
+            int slot = ring.slot(seqs[i]);
+            xs[i] = ring.xs[slot];
+            ys[i] = ring.ys[slot];
+        }
+        return n;
+    }
+
+    /** Returns the TracePoint2D that stands for point 'seq'. **/
+    TracePoint2D getPoint(Ring ring, long seq, double x, double y)
+    {
+        if (ring.points == null) {
+            ring.points = new TracePoint2D[ring.xs.length];
+            ring.pointSeqs = new long[ring.xs.length];
+        }
+
+        int slot = ring.slot(seq);
+        TracePoint2D p = ring.points[slot];
+        if (p == null) {
+            p = new TracePoint2D(x, y);
+            ring.points[slot] = p;
+        } else if (ring.pointSeqs[slot] != seq) {
+            // without a listener, moving the point fires no events
+            p.setListener(null);
+            p.setLocation(x, y);
+        } else {
+            return p;
+        }
+
+        p.setListener(this);
+        ring.pointSeqs[slot] = seq;
+        return p;
+    }
+
+    /** Asks for the chart to be told about new points, if it is on
+     * screen and does not drain its traces itself. Charts that are not
+     * on screen, such as those behind ObjectPanel's sparklines, catch up
+     * when they are shown. **/
+    void notifyChart()
+    {
+        if (notifyPending)
+            return;
+
+        // ZoomableChartScrollWheel drains its traces once per frame
+        Chart2D chart = getRenderer();
+        if (chart == null || chart instanceof ZoomableChartScrollWheel || !chart.isShowing())
+            return;
+
+        notifyPending = true;
+        SwingUtilities.invokeLater(notifier);
+    }
+
+    /**
+     * Tells the chart about the points appended since it was last told,
+     * as ATrace2D.addPoint() would have: bounds that changed, then each
+     * new point, so that the axes can scale it. Appending only stages
+     * points; this applies them, a batch at a time, so that whoever
+     * appends never waits for the chart's locks. Must be called on the
+     * event dispatch thread; takes the locks that ATrace2D takes.
+     *
+     * @return whether there were points to tell about
+     */
+    public boolean drain()
+    {
+        checkThread();
+
+        Chart2D chart = getRenderer();
+        if (chart == null)
+            return false;
+
+        synchronized (chart) {
+            synchronized (this) {
+                Ring ring = this.ring;
+                long head = ring.head;
+                if (ring == notifiedRing && head == notified)
+                    return false;
+
+                notifiedMinX = fireBound(ITrace2D.PROPERTY_MIN_X, notifiedMinX, m_minX);
+                notifiedMaxX = fireBound(ITrace2D.PROPERTY_MAX_X, notifiedMaxX, m_maxX);
+                notifiedMinY = fireBound(ITrace2D.PROPERTY_MIN_Y, notifiedMinY, m_minY);
+                notifiedMaxY = fireBound(ITrace2D.PROPERTY_MAX_Y, notifiedMaxY, m_maxY);
+
+                // when there are many, e.g., when the chart is first
+                // shown, iterator() scales the points instead.
+                long seq = Math.max(ring.first(head), head - MAX_NOTIFIED_POINTS);
+                if (ring == notifiedRing)
+                    seq = Math.max(seq, notified);
+
+                for (; seq < head; seq++) {
+                    int slot = ring.slot(seq);
+                    double x = ring.xs[slot], y = ring.ys[slot];
+                    firePropertyChange(ITrace2D.PROPERTY_TRACEPOINT, null, getPoint(ring, seq, x, y));
+                }
+
+                notifiedRing = ring;
+                notified = head;
+                return true;
+            }
+        }
+    }
+
+    double fireBound(String property, double oldValue, double value)
+    {
+        if (oldValue != value)
+            firePropertyChange(property, Double.valueOf(oldValue), Double.valueOf(value));
+        return value;
+    }
+
+    /** Keeps the newest 'maxSize' points. **/
+    public void setMaxSize(int maxSize)
+    {
+        checkThread();
+
+        Ring old = this.ring;
+        Ring ring = new Ring(maxSize);
+
+        long head = old.head;
+        long first = Math.max(old.first(head), head - maxSize);
+        for (long seq = first; seq < head; seq++) {
+            ring.xs[ring.slot(seq - first)] = old.xs[old.slot(seq)];
+            ring.ys[ring.slot(seq - first)] = old.ys[old.slot(seq)];
+        }
+        ring.head = head - first;
+
+        setRing(ring);
+        notifyChart();
+    }
+
+    public int getMaxSize()
+    {
+        return ring.maxSize;
+    }
+
+    public int getSize()
+    {
+        Ring ring = this.ring;
+        long head = ring.head;
+        return (int) (head - ring.first(head));
+    }
+
+    public boolean isEmpty()
+    {
+        return getSize() == 0;
+    }
+
+    /**
+     * Returns the points, oldest first. If the trace is in a chart with
+     * linear axes, and either there are more points than the chart has
+     * pixel columns or the chart shows x from before the oldest point
+     * and the trace keeps a history (see keepHistory()), returns instead
+     * the points that the chart needs to draw the range of x it shows:
+     * those chosen by Decimation, after the lowest and highest of each
+     * column from the history. Since which points those are changes as
+     * the chart is resized and points are appended, the iterator scales
+     * them itself rather than rely on the axes having scaled them
+     * before. Otherwise, a chart that drains the trace only sees the
+     * points drained so far.
+     *
+     * The TracePoint2Ds returned are reused once the ring wraps around,
+     * so they must not be kept, or modified other than by scaling.
+     */
+    public Iterator<ITracePoint2D> iterator()
+    {
+        final Ring ring = this.ring;
+        final long head = ring.head;
+
+        Chart2D chart = getRenderer();
+        if (chart != null) {
+            IAxis<?> xAxis = findAxis(chart.getAxesXBottom(), chart.getAxesXTop());
+            IAxis<?> yAxis = findAxis(chart.getAxesYLeft(), chart.getAxesYRight());
+
+            // the chart may not have been laid out yet
+            int columns = chart.getWidth() > 0 ? chart.getWidth() : 1024;
+
+            TraceHistory history = this.history;
+            boolean older = false;
+            if (history != null && head > 0 && xAxis != null) {
+                double firstX = ring.xs[ring.slot(ring.first(head))];
+                older = xAxis.getMin() < firstX && history.getOldestX() < firstX;
+            }
+
+            if (xAxis instanceof AxisLinear && yAxis instanceof AxisLinear &&
+                (older || head - ring.first(head) > 4L * columns)) {
+                decimated = true;
+                historic = older;
+                return decimatedIterator(ring, xAxis, yAxis, columns, older ? history : null);
+            }
+        }
+        decimated = false;
+        historic = false;
+
+        // a chart that is told about points sees only those it has been
+        // told about, which its axes have scaled.
+        final long told = (ring == notifiedRing) ? Math.min(head, notified) : head;
+
+        return new Iterator<ITracePoint2D>()
+        {
+            long next = ring.first(told);
+            long end = told;
+
+            public boolean hasNext()
+            {
+                return next < end;
+            }
+
+            public ITracePoint2D next()
+            {
+                if (next >= end)
+                    throw new NoSuchElementException();
+
+                while (true) {
+                    int slot = ring.slot(next);
+                    double x = ring.xs[slot], y = ring.ys[slot];
+                    if (ring.isValid(next))
+                        return getPoint(ring, next++, x, y);
+
+                    // overwritten since the iterator was made; skip to
+                    // the oldest point that is still there.
+                    long h = ring.head;
+                    next = ring.first(h);
+                    end = Math.max(end, h);
+                }
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Returns the axis among 'a' and 'b' that shows this trace, or
+     * null. **/
+    IAxis<?> findAxis(List<IAxis<?>> a, List<IAxis<?>> b)
+    {
+        for (IAxis<?> axis : a) {
+            if (axis.getTraces().contains(this))
+                return axis;
+        }
+        for (IAxis<?> axis : b) {
+            if (axis.getTraces().contains(this))
+                return axis;
+        }
+        return null;
+    }
+
+    Iterator<ITracePoint2D> decimatedIterator(final Ring ring, IAxis<?> xAxis, IAxis<?> yAxis,
+                                              int columns, TraceHistory history)
+    {
+        // as AAxis.getRange()
+        final double minX = xAxis.getMin(), minY = yAxis.getMin();
+        double maxX = xAxis.getMax(), maxY = yAxis.getMax();
+        final double extentX = (maxX == minX) ? 10 : maxX - minX;
+        final double extentY = (maxY == minY) ? 10 : maxY - minY;
+        maxX = minX + extentX;
+
+        final Decimation decimation = new Decimation();
+        final double xs[] = new double[6 * columns], ys[] = new double[6 * columns];
+        long head = ring.head;
+        double rawMinX = minX;
+        int rawColumns = columns;
+        int nhistory = 0;
+
+        // the history up to the oldest point, then the points, in the
+        // columns that are left.
+        if (history != null && head > 0) {
+            double firstX = ring.xs[ring.slot(ring.first(head))];
+            nhistory = history.getPoints(minX, maxX, columns, firstX, xs, ys, 0);
+            rawMinX = Math.max(minX, firstX);
+            rawColumns = columns - (int) ((rawMinX - minX) / extentX * columns);
+            rawColumns = Math.max(1, Math.min(columns, rawColumns));
+        }
+
+        decimation.run(ring, head, rawMinX, maxX, rawColumns);
+        for (int i = 0; i < decimation.count; i++) {
+            int slot = ring.slot(decimation.seqs[i]);
+            xs[nhistory + i] = ring.xs[slot];
+            ys[nhistory + i] = ring.ys[slot];
+        }
+
+        if (historyPoints.length < nhistory)
+            historyPoints = Arrays.copyOf(historyPoints, 2 * columns);
+
+        final int nhistoryFinal = nhistory;
+        final int count = nhistory + decimation.count;
+
+        return new Iterator<ITracePoint2D>()
+        {
+            int next;
+
+            public boolean hasNext()
+            {
+                return next < count;
+            }
+
+            public ITracePoint2D next()
+            {
+                if (next >= count)
+                    throw new NoSuchElementException();
+
+                double x = xs[next], y = ys[next];
+                TracePoint2D p;
+                if (next < nhistoryFinal)
+                    p = getHistoryPoint(next, x, y);
+                else
+                    p = getPoint(ring, decimation.seqs[next - nhistoryFinal], x, y);
+                next++;
+
+                p.setScaledX(scale(x, minX, extentX));
+                p.setScaledY(scale(y, minY, extentY));
+                return p;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Returns the i'th TracePoint2D used for history, moved to (x, y)
+     * without firing events. **/
+    TracePoint2D getHistoryPoint(int i, double x, double y)
+    {
+        TracePoint2D p = historyPoints[i];
+        if (p == null) {
+            p = new TracePoint2D(x, y);
+            historyPoints[i] = p;
+        } else {
+            p.setLocation(x, y);
+        }
+        return p;
+    }
+
+    // as AxisLinear's scaling
+    static double scale(double v, double min, double extent)
+    {
+        double scaled = (v - min) / extent;
+        return (Double.isNaN(scaled) || Double.isInfinite(scaled)) ? 0 : scaled;
+    }
+
+    /** Called by ATrace2D.addPoint(), which allocates and locks as
+     * usual. **/
+    protected boolean addPointInternal(ITracePoint2D p)
+    {
+        append(p.getX(), p.getY());
+        return true;
+    }
+
+    /** Called by ATrace2D.removeAllPoints(). **/
+    protected void removeAllPointsInternal()
+    {
+        checkThread();
+
+        setRing(new Ring(ring.maxSize));
+        if (history != null)
+            history.clear();
+    }
+
+    /** Points cannot be removed from the middle of a ring. **/
+    protected ITracePoint2D removePointInternal(ITracePoint2D point)
+    {
+        return null;
+    }
+}
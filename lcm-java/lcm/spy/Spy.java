@@ -7,6 +7,7 @@ import java.awt.event.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import lcm.util.*;
 import java.lang.reflect.*;
 
@@ -21,6 +22,7 @@ public class Spy
 
     HashMap<String,  ChannelData> channelMap = new HashMap<String, ChannelData>();
     ArrayList<ChannelData>        channelList = new ArrayList<ChannelData>();
+    ChannelStatsEngine            stats = new ChannelStatsEngine();
 
     ChannelTableModel _channelTableModel = new ChannelTableModel();
     TableSorter  channelTableModel = new TableSorter(_channelTableModel);
@@ -31,8 +33,35 @@ public class Spy
 
     JButton clearButton = new JButton("Clear");
 
+    /** Messages are only decoded for channels with an open viewer, and
+     * at most once per this many microseconds unless the viewer has a
+     * detailed chart open; 0 for no limit. **/
+    long viewerDecodeInterval;
+
+    ScheduledExecutorService decoder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "lcm-spy decoder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     public Spy(String lcmurl, WindowTitleOptions titleOptions) throws IOException
     {
+        this(lcmurl, titleOptions, DEFAULT_VIEWER_HZ);
+    }
+
+    /**
+     * @param viewerHz the most times per second that each viewer is
+     * updated; faster messages are skipped without being decoded,
+     * unless a detailed chart of the channel is open. 0 for no limit.
+     */
+    public Spy(String lcmurl, WindowTitleOptions titleOptions, double viewerHz) throws IOException
+    {
+        viewerDecodeInterval = viewerHz > 0 ? (long) (1000000/viewerHz) : 0;
+
         if (null == lcmurl) {
             lcmurl = LCM.getDefaultURL();
         }
@@ -87,6 +116,7 @@ public class Spy
             {
                 channelMap.clear();
                 channelList.clear();
+                stats.clear();
                 channelTableModel.fireTableDataChanged();
             }
         });
@@ -134,7 +164,8 @@ public class Spy
             }
         });
 
-        ClassDiscoverer.findClasses(new PluginClassVisitor());
+        ClassDiscoverer.findClassesImplementing(ClassDiscoverer.getClassPath(),
+                                                SpyPlugin.class.getName(), new PluginClassVisitor());
         System.out.println("Found "+plugins.size()+" plugins");
         for (SpyPlugin plugin : plugins) {
             System.out.println(" "+plugin);
@@ -234,7 +265,9 @@ public class Spy
             
             cd.viewerFrame.add(viewerScrollPane, BorderLayout.CENTER);
             
-            cd.viewer.setObject(cd.last, cd.last_utime);
+            // the latest message has probably not been decoded, since
+            // nobody was looking at it until now.
+            cd.viewer.setObject(decodeLast(cd), cd.last_utime);
 
             //jdp.add(cd.viewerFrame);
 
@@ -327,7 +360,6 @@ public class Spy
     {
         public void messageReceived(LCM lcm, String channel, LCMDataInputStream dins)
         {
-            Object o = null;
             ChannelData cd = channelMap.get(channel);
             int msg_size = 0;
 
@@ -342,6 +374,7 @@ public class Spy
                     cd = new ChannelData();
                     cd.name = channel;
                     cd.cls = cls;
+                    cd.decoder = handlers.getDecoderByFingerprint(fingerprint);
                     cd.fingerprint = fingerprint;
                     cd.row = channelList.size();
 
@@ -354,47 +387,149 @@ public class Spy
                 } else {
                     if (cls != null && cd.cls != null && !cd.cls.equals(cls)) {
                         System.out.println("WARNING: Class changed for channel "+channel);
-                        cd.nerrors++;
+                        stats.decodeError(channel, utime_now());
                     }
                 }
 
                 long utime = utime_now();
-                long interval = utime - cd.last_utime;
-                cd.hz_min_interval = Math.min(cd.hz_min_interval, interval);
-                cd.hz_max_interval = Math.max(cd.hz_max_interval, interval);
-                cd.hz_bytes += msg_size;
+                stats.messageReceived(channel, fingerprint, msg_size, utime);
                 cd.last_utime = utime;
 
-                cd.nreceived++;
+                if (cd.decoder == null) {
+                    // unknown type: nothing to decode or view.
+                    stats.decodeError(channel, utime);
+                    return;
+                }
 
-                o = ((Class<?>)cd.cls).getConstructor(DataInput.class).newInstance(dins);
-                cd.last = o;
+                // keep the raw message, which is only decoded if someone
+                // is looking at it.
+                byte data[] = new byte[msg_size];
+                dins.readFully(data);
+
+                synchronized(cd) {
+                    cd.last_data = data;
+                    cd.last_data_utime = utime;
 
-                if (cd.viewer != null)
-                    cd.viewer.setObject(o, cd.last_utime);
+                    // a detailed chart gets every message, not just the
+                    // ones the viewer is updated with.
+                    if (cd.viewer != null && cd.viewer.isCharting())
+                        decoder.execute(new ChartUpdate(cd, data, utime));
+
+                    if (cd.viewer != null && cd.viewerFrame.isVisible() && !cd.decode_pending) {
+                        cd.decode_pending = true;
+                        long delay = Math.max(0, cd.last_decode_utime + viewerDecodeInterval - utime);
+                        decoder.schedule(new ViewerUpdate(cd), delay, TimeUnit.MICROSECONDS);
+                    }
+                }
 
-            } catch (NullPointerException ex) {
-                cd.nerrors++;
             } catch (IOException ex) {
-                cd.nerrors++;
-                System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (NoSuchMethodException ex) {
-                cd.nerrors++;
-                System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (InstantiationException ex) {
-                cd.nerrors++;
-                System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (IllegalAccessException ex) {
-                cd.nerrors++;
+                stats.decodeError(channel, utime_now());
                 System.out.println("Spy.messageReceived ex: "+ex);
-            } catch (InvocationTargetException ex) {
-                cd.nerrors++;
-                // these are almost always spurious
-                //System.out.println("ex: "+ex+"..."+ex.getTargetException());
             }
         }
     }
 
+    /** Decodes the latest message on a channel and shows it in the
+     * channel's viewer. Messages that arrived since the last update
+     * and were superseded are never decoded. **/
+    class ViewerUpdate implements Runnable
+    {
+        ChannelData cd;
+
+        ViewerUpdate(ChannelData cd)
+        {
+            this.cd = cd;
+        }
+
+        public void run()
+        {
+            long utime;
+            synchronized(cd) {
+                cd.decode_pending = false;
+                cd.last_decode_utime = utime_now();
+                utime = cd.last_data_utime;
+            }
+
+            Object o = decodeLast(cd);
+            ObjectPanel viewer = cd.viewer;
+            if (o != null && viewer != null)
+                viewer.setObject(o, utime);
+        }
+    }
+
+    /** Decodes one message and adds it to the detailed charts of the
+     * channel's viewer. **/
+    class ChartUpdate implements Runnable
+    {
+        ChannelData cd;
+        byte data[];
+        long utime;
+
+        ChartUpdate(ChannelData cd, byte data[], long utime)
+        {
+            this.cd = cd;
+            this.data = data;
+            this.utime = utime;
+        }
+
+        public void run()
+        {
+            Object o;
+            try {
+                o = cd.decoder.decode(new LCMDataInputStream(data));
+            } catch (IOException ex) {
+                // counted by decodeLast(), if it is still the latest.
+                return;
+            }
+
+            synchronized(cd) {
+                // save the viewer from decoding it again.
+                if (cd.last_data == data) {
+                    cd.last = o;
+                    cd.last_data = null;
+                }
+            }
+
+            ObjectPanel viewer = cd.viewer;
+            if (viewer != null)
+                viewer.addChartData(o, utime);
+        }
+    }
+
+    /** Decodes the latest message received on a channel, or returns
+     * the object already decoded from it. Returns null if there is no
+     * message, or it cannot be decoded. **/
+    Object decodeLast(ChannelData cd)
+    {
+        byte data[];
+        long utime;
+
+        synchronized(cd) {
+            if (cd.last_data == null)
+                return cd.last;
+            data = cd.last_data;
+            utime = cd.last_data_utime;
+        }
+
+        try {
+            Object o = cd.decoder.decode(new LCMDataInputStream(data));
+
+            synchronized(cd) {
+                cd.last = o;
+                if (cd.last_data == data)
+                    cd.last_data = null;
+            }
+            return o;
+
+        } catch (IOException ex) {
+            // these are almost always spurious
+            //System.out.println("ex: "+ex);
+        }
+
+        stats.decodeError(cd.name, utime);
+        return null;
+    }
+
     class HzThread extends Thread
     {
         public HzThread()
@@ -406,32 +541,15 @@ public class Spy
         {
             while (true)
             {
-                long utime = utime_now();
+                final java.util.List<ChannelStatsEngine.Stats> snapshot = stats.snapshot(utime_now());
 
-                synchronized(channelList)
+                SwingUtilities.invokeLater(new Runnable()
                 {
-                    for (ChannelData cd : channelList)
+                    public void run()
                     {
-                        long diff_recv = cd.nreceived - cd.hz_last_nreceived;
-                        cd.hz_last_nreceived = cd.nreceived;
-                        long dutime = utime - cd.hz_last_utime;
-                        cd.hz_last_utime = utime;
-
-                        cd.hz = diff_recv / (dutime/1000000.0);
-
-                        cd.min_interval = cd.hz_min_interval;
-                        cd.max_interval = cd.hz_max_interval;
-                        cd.hz_min_interval = 9999;
-                        cd.hz_max_interval = 0;
-                        cd.bandwidth = cd.hz_bytes / (dutime/1000000.0);
-                        cd.hz_bytes = 0;
+                        update(snapshot);
                     }
-                }
-
-                int selrow = channelTable.getSelectedRow();
-                channelTableModel.fireTableDataChanged();
-                if (selrow >= 0)
-                    channelTable.setRowSelectionInterval(selrow, selrow);
+                });
 
                 try {
                     Thread.sleep(1000);
@@ -440,6 +558,32 @@ public class Spy
             }
         }
 
+        /** Copies a snapshot of the statistics into the table; runs on
+         * the event dispatch thread. **/
+        void update(java.util.List<ChannelStatsEngine.Stats> snapshot)
+        {
+            synchronized(channelList)
+            {
+                for (ChannelStatsEngine.Stats st : snapshot)
+                {
+                    ChannelData cd = channelMap.get(st.channel);
+                    if (cd == null)
+                        continue;
+
+                    cd.nreceived = st.received;
+                    cd.nerrors = (int) st.errors;
+                    cd.hz = st.hz;
+                    cd.min_interval = Math.max(0, st.minInterval);
+                    cd.max_interval = Math.max(0, st.maxInterval);
+                    cd.bandwidth = st.bandwidth;
+                }
+            }
+
+            int selrow = channelTable.getSelectedRow();
+            channelTableModel.fireTableDataChanged();
+            if (selrow >= 0 && selrow < channelTable.getRowCount())
+                channelTable.setRowSelectionInterval(selrow, selrow);
+        }
     }
 
     class DefaultViewer extends AbstractAction
@@ -515,10 +659,18 @@ public class Spy
         System.err.println("  -l, --lcm-url=URL      Use the specified LCM URL");
         System.err.println("  -t, --title [LABEL]    Display LABEL in the window title");
         System.err.println("  --title-url            Display the LCM URL in the title");
+        System.err.println("  --viewer-hz=HZ         Update each viewer at most HZ times per second");
+        System.err.println("                         (default "+(int) DEFAULT_VIEWER_HZ+", 0 for no limit); channels");
+        System.err.println("                         with an open chart are charted at their full rate");
+        System.err.println("  --headless [OPTIONS]   Print channel statistics as JSON or CSV instead of");
+        System.err.println("                         opening a window; see --headless --help");
         System.err.println("");
         System.err.println("Environment Variables:");
         System.err.println("  CLASSPATH=<PATH>       If a jar of your LCM types is on your classpath,");
         System.err.println("                         then lcm-spy will be able to decode messages.");
+        System.err.println("  LCM_CLASS_CACHE_DIR=<DIR>");
+        System.err.println("                         Where to cache the LCM types found in each jar");
+        System.err.println("                         (default ~/.cache/lcm/classes; empty to disable).");
         System.err.println("  GDK_SCALE=<N>          (Linux) Increase the size of GTK apps. ");
         System.err.println("                         LCM uses Swing and on some systems may be too small by default.");
         System.err.println("                         Try `GDK_SCALE=2 lcm-spy`.");
@@ -537,6 +689,8 @@ public class Spy
         System.exit(1);
     }
 
+    static final double DEFAULT_VIEWER_HZ = 30;
+
     static class WindowTitleOptions {
         String label = null;
         boolean showURL = false;
@@ -550,12 +704,24 @@ public class Spy
             System.err.println("         The Sun JRE is recommended.");
         }
 
+        for (int optind = 0; optind < args.length; optind++) {
+            if (args[optind].equals("--headless")) {
+                ArrayList<String> rest = new ArrayList<String>(Arrays.asList(args));
+                rest.remove(optind);
+                ChannelStatsPrinter.main(rest.toArray(new String[0]));
+                return;
+            }
+        }
+
         final String ARG_LCM_URL = "--lcm-url";
         final String ARG_LCM_URL_EQ = ARG_LCM_URL + "=";
         final String ARG_TITLE = "--title";
         final String ARG_TITLE_URL = "--title-url";
+        final String ARG_VIEWER_HZ = "--viewer-hz";
+        final String ARG_VIEWER_HZ_EQ = ARG_VIEWER_HZ + "=";
 
         String lcmurl = null;
+        double viewerHz = DEFAULT_VIEWER_HZ;
         WindowTitleOptions titleOptions = new WindowTitleOptions();
         for (int optind = 0; optind < args.length; optind++) {
             String c = args[optind];
@@ -590,13 +756,31 @@ public class Spy
             } else if (c.equals(ARG_TITLE_URL)) {
                 titleOptions.showURL = true;
 
+            } else if (c.equals(ARG_VIEWER_HZ) || c.startsWith(ARG_VIEWER_HZ_EQ)) {
+                String optarg = null;
+
+                if (c.startsWith(ARG_VIEWER_HZ_EQ)) {
+                    optarg = c.substring(ARG_VIEWER_HZ_EQ.length());
+                } else if (hasParam) {
+                    optind++;
+                    optarg = args[optind];
+                }
+
+                try {
+                    viewerHz = Double.parseDouble(optarg);
+                } catch (NullPointerException ex) {
+                    usage();
+                } catch (NumberFormatException ex) {
+                    usage();
+                }
+
             } else {
                 usage();
             }
         }
 
         try {
-            new Spy(lcmurl, titleOptions);
+            new Spy(lcmurl, titleOptions, viewerHz);
         } catch (IOException ex) {
             System.out.println(ex);
         }
@@ -0,0 +1,265 @@
+package lcm.spy;
+
+/**
+ * The history of a trace at lower resolutions than its points: the
+ * lowest and highest y of each run of 10 points, and of each run of
+ * 100 points, each kept in a ring of SIZE buckets. A chart can then
+ * show far more time than the trace has room for points, in bounded
+ * memory: at 100 Hz, the coarser ring goes back over two hours, in
+ * under a megabyte.
+ *
+ * Only the thread that appends to the trace may add points; any thread
+ * may read. Points must be added in order of x; if x goes back, e.g.,
+ * when a log is replayed from an earlier time, the history starts
+ * again.
+ **/
+public class TraceHistory
+{
+    static final int SIZE = 8192;
+
+    /**
+     * Buckets of 'factor' points each. Bucket b is kept in slot
+     * (b & mask); as with RingBufferTrace2D.Ring, one slot more than
+     * the buckets kept is left for the bucket being written.
+     **/
+    static class Level
+    {
+        final int factor;
+        final int mask;
+        final Level next;
+
+        // x of the first point; position and value of the lowest and
+        // highest y, which are infinite if all are NaN.
+        final double firstXs[], minXs[], minYs[], maxXs[], maxYs[];
+
+        // sequence number of the next bucket; buckets [first(head),
+        // head) are complete.
+        volatile long head;
+
+        // the bucket being filled
+        int points;
+        double firstX, minX, minY, maxX, maxY;
+
+        Level(int factor, int size, Level next)
+        {
+            this.factor = factor;
+            this.mask = size - 1;
+            this.next = next;
+            firstXs = new double[size];
+            minXs = new double[size];
+            minYs = new double[size];
+            maxXs = new double[size];
+            maxYs = new double[size];
+        }
+
+        int slot(long b)
+        {
+            return (int) b & mask;
+        }
+
+        long first(long head)
+        {
+            return Math.max(0, head - mask);
+        }
+
+        /** Whether bucket 'b' has not yet been overwritten. Check this
+         * after reading the bucket. **/
+        boolean isValid(long b)
+        {
+            return head <= b + mask;
+        }
+
+        /** Adds a run of 'n' points starting at 'x'. **/
+        void add(double x, double runMinX, double runMinY, double runMaxX, double runMaxY, int n)
+        {
+            if (points == 0) {
+                firstX = x;
+                minY = Double.POSITIVE_INFINITY;
+                maxY = Double.NEGATIVE_INFINITY;
+                minX = maxX = x;
+            }
+
+            if (runMinY < minY) {
+                minY = runMinY;
+                minX = runMinX;
+            }
+            if (runMaxY > maxY) {
+                maxY = runMaxY;
+                maxX = runMaxX;
+            }
+            points += n;
+
+            if (points < factor)
+                return;
+
+            long b = head;
+            int slot = slot(b);
+            firstXs[slot] = firstX;
+            minXs[slot] = minX;
+            minYs[slot] = minY;
+            maxXs[slot] = maxX;
+            maxYs[slot] = maxY;
+            head = b + 1;
+
+            if (next != null)
+                next.add(firstX, minX, minY, maxX, maxY, points);
+            points = 0;
+        }
+
+        /** Returns the first bucket in [from, to) whose first x is at
+         * least 'x', or 'to' if there is none. **/
+        long search(long from, long to, double x)
+        {
+            while (from < to) {
+                long mid = (from + to) >>> 1;
+                if (firstXs[slot(mid)] >= x)
+                    to = mid;
+                else
+                    from = mid + 1;
+            }
+            return from;
+        }
+
+        /** Returns the first x of the oldest bucket, or NaN if there
+         * is none. **/
+        double getOldestX()
+        {
+            long head = this.head;
+            if (head == 0)
+                return Double.NaN;
+
+            long b = first(head);
+            double x = firstXs[slot(b)];
+            return isValid(b) ? x : getOldestX();
+        }
+    }
+
+    // finest first; replaced as a whole when the history starts again
+    volatile Level levels[];
+    double lastX = Double.NEGATIVE_INFINITY;
+
+    public TraceHistory()
+    {
+        clear();
+    }
+
+    /** Forgets all points. Must be called by the thread that adds
+     * points. **/
+    public void clear()
+    {
+        Level coarse = new Level(100, SIZE, null);
+        levels = new Level[] { new Level(10, SIZE, coarse), coarse };
+        lastX = Double.NEGATIVE_INFINITY;
+    }
+
+    /** Adds a point, which should be no older than the last. **/
+    public void add(double x, double y)
+    {
+        if (x < lastX)
+            clear();
+        lastX = x;
+
+        if (Double.isNaN(y))
+            levels[0].add(x, x, Double.POSITIVE_INFINITY, x, Double.NEGATIVE_INFINITY, 1);
+        else
+            levels[0].add(x, x, y, x, y, 1);
+    }
+
+    /** Returns the x of the oldest point kept, or NaN if there is
+     * none. **/
+    public double getOldestX()
+    {
+        Level levels[] = this.levels;
+        for (int i = levels.length - 1; i >= 0; i--) {
+            double x = levels[i].getOldestX();
+            if (!Double.isNaN(x))
+                return x;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Copies, into 'xs' and 'ys' from index 'n' on, the lowest and
+     * highest point, in order of x, of each of 'columns' columns that
+     * divide [minX, maxX], for the columns that start before 'beforeX'.
+     * Each column is taken from the finest level that goes back to its
+     * start, so that recent history is shown in more detail than older
+     * history. Only buckets whose points all come before 'beforeX' are
+     * used. The arrays must have room for 2*columns more points.
+     *
+     * @return the index after the last point copied
+     */
+    public int getPoints(double minX, double maxX, int columns, double beforeX,
+                         double xs[], double ys[], int n)
+    {
+        Level levels[] = this.levels;
+        double width = (maxX - minX) / columns;
+        long done = 0;  // points in the buckets used so far
+
+        for (int c = 0; c < columns; c++) {
+            double c0 = minX + width * c;
+            double c1 = Math.min(c0 + width, beforeX);
+            if (c0 >= beforeX)
+                break;
+
+            Level level = levels[levels.length - 1];
+            for (int i = 0; i < levels.length; i++) {
+                double oldest = levels[i].getOldestX();
+                if (oldest <= c0) {
+                    level = levels[i];
+                    break;
+                }
+            }
+
+            // the buckets that start in [c0, c1), after those of the
+            // columns before, which may have been from a coarser level
+            // whose last bucket reaches into this column.
+            long head = level.head;
+            long first = level.first(head);
+            long from = Math.max(level.search(first, head, c0), done / level.factor);
+            long to = level.search(from, head, c1);
+
+            // only buckets that end before 'beforeX', which the next
+            // bucket's first x shows.
+            if (c1 == beforeX && to > from && (to == head || level.firstXs[level.slot(to)] > beforeX))
+                to--;
+            if (from >= to)
+                continue;
+            done = to * level.factor;
+
+            double lowX = 0, low = Double.POSITIVE_INFINITY;
+            double highX = 0, high = Double.NEGATIVE_INFINITY;
+            for (long b = from; b < to; b++) {
+                int slot = level.slot(b);
+                if (level.minYs[slot] < low) {
+                    low = level.minYs[slot];
+                    lowX = level.minXs[slot];
+                }
+                if (level.maxYs[slot] > high) {
+                    high = level.maxYs[slot];
+                    highX = level.maxXs[slot];
+                }
+            }
+
+            // overwritten while we read, or all NaN
+            if (!level.isValid(from) || low > high)
+                continue;
+
+            if (lowX <= highX) {
+                xs[n] = lowX;
+                ys[n++] = low;
+                if (highX != lowX || high != low) {
+                    xs[n] = highX;
+                    ys[n++] = high;
+                }
+            } else {
+                xs[n] = highX;
+                ys[n++] = high;
+                xs[n] = lowX;
+                ys[n++] = low;
+            }
+        }
+
+        return n;
+    }
+}
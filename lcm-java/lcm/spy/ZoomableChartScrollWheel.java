@@ -2,6 +2,9 @@ package lcm.spy;
 
 import java.awt.Color;
 import java.awt.Container;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
@@ -10,16 +13,20 @@ import java.awt.event.MouseWheelListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import info.monitorenter.gui.chart.IAxis;
 import info.monitorenter.gui.chart.ITrace2D;
 import info.monitorenter.gui.chart.ZoomableChart;
 import info.monitorenter.gui.chart.axis.AAxis;
 import info.monitorenter.gui.chart.axis.AxisLinear;
 import info.monitorenter.gui.chart.labelformatters.LabelFormatterNumber;
-import info.monitorenter.gui.chart.traces.Trace2DLtd;
 import javax.swing.*;
 
 /**
@@ -48,6 +55,20 @@ public class ZoomableChartScrollWheel extends ZoomableChart
     private JPopupMenu popup = new JPopupMenu();
     
     ChartData chartData;
+
+    // the chart as last painted, and what it showed; see paintComponent()
+    private BufferedImage backbuffer;
+    private double backbufferScaleX, backbufferScaleY; // device pixels per pixel
+    private boolean contentChanged = true;
+    private double paintedRanges[] = new double[0];
+    private HashMap<RingBufferTrace2D, PaintedTrace> paintedTraces =
+        new HashMap<RingBufferTrace2D, PaintedTrace>();
+    private double paintNanos;
+
+    // the charts together should spend no more than this fraction of
+    // a core painting; see paintComponent()
+    static final double PAINT_BUDGET = 0.25;
+    static final int MIN_PAINT_LATENCY = 16;
     
     /**
      * Constructor, taking in a chartData so that we can set up the chart 
@@ -77,7 +98,274 @@ public class ZoomableChartScrollWheel extends ZoomableChart
         this.setFixedWidthXAxisFormat();
         
         
-        this.setMinPaintLatency(16); // cap the frame-rate at 60fps
+        this.setMinPaintLatency(MIN_PAINT_LATENCY); // cap the frame-rate at 60fps
+    }
+
+    /**
+     * Called by Chart2D's repaint timer on each tick, that is, once per
+     * frame. Applies the points appended to our traces since the last
+     * tick in one batch each (see RingBufferTrace2D.drain()), so that
+     * appending never waits for the chart, and a chart fed at a high
+     * rate is updated once per frame rather than once per point.
+     */
+    @Override
+    protected synchronized boolean isRequestedRepaint()
+    {
+        // anything other than new points, e.g., a trace's color, may
+        // change the whole chart.
+        boolean requested = super.isRequestedRepaint();
+        if (requested)
+            contentChanged = true;
+
+        boolean drained = false;
+        for (ITrace2D trace : getTraces())
+        {
+            if (trace instanceof RingBufferTrace2D)
+                drained |= ((RingBufferTrace2D) trace).drain();
+        }
+        return requested || drained;
+    }
+
+    /** What was painted of a trace. **/
+    static class PaintedTrace
+    {
+        RingBufferTrace2D.Ring ring;
+        long head;           // points before this were painted
+        double firstX;       // the oldest point painted
+        boolean decimated;
+        boolean historic;    // history was painted before the oldest point
+    }
+
+    /**
+     * Paints the chart into a backbuffer, then copies that to the
+     * screen. Only what has changed since the last paint is painted
+     * again:
+     *
+     * - nothing, if the chart is only being exposed, e.g., by a window
+     *   that was in front of it, or if new points fall outside the
+     *   range shown, as when zoomed in on the past;
+     * - the vertical strips holding points appended or dropped since
+     *   the last paint, if the axes' ranges are unchanged;
+     * - otherwise everything.
+     *
+     * The strips are painted by Chart2D with a clip, so they match the
+     * rest of the chart exactly.
+     *
+     * The backbuffer has a pixel for each pixel of the screen area it
+     * is copied to, e.g., four for each of the chart's with
+     * GDK_SCALE=2, so that text and lines are as sharp as if painted
+     * directly.
+     *
+     * Also slows the repaint timer so that all of lcm-spy's charts
+     * together spend at most PAINT_BUDGET of a core painting; with many
+     * live charts open, each is updated less often rather than the
+     * application falling behind.
+     */
+    @Override
+    protected synchronized void paintComponent(Graphics g)
+    {
+        int width = getWidth(), height = getHeight();
+        AffineTransform transform = ((Graphics2D) g).getTransform();
+        double scaleX = transform.getScaleX(), scaleY = transform.getScaleY();
+        if (isPaintingForPrint() || width <= 0 || height <= 0 || scaleX <= 0 || scaleY <= 0 ||
+            transform.getShearX() != 0 || transform.getShearY() != 0)
+        {
+            super.paintComponent(g);
+            return;
+        }
+
+        Rectangle dirty;
+        if (backbuffer == null || backbufferScaleX != scaleX || backbufferScaleY != scaleY ||
+            backbuffer.getWidth() != (int) Math.ceil(width * scaleX) ||
+            backbuffer.getHeight() != (int) Math.ceil(height * scaleY))
+        {
+            backbuffer = new BufferedImage((int) Math.ceil(width * scaleX),
+                                           (int) Math.ceil(height * scaleY),
+                                           BufferedImage.TYPE_INT_RGB);
+            backbufferScaleX = scaleX;
+            backbufferScaleY = scaleY;
+            dirty = new Rectangle(0, 0, width, height);
+        } else if (contentChanged || !Arrays.equals(getRanges(), paintedRanges))
+        {
+            dirty = new Rectangle(0, 0, width, height);
+        } else
+        {
+            dirty = getDirtyStrips();
+        }
+
+        if (dirty != null)
+        {
+            long start = System.nanoTime();
+
+            paintBackbuffer(dirty);
+
+            // a trace that now decimates its points, or no longer does,
+            // may look slightly different everywhere.
+            if (!dirty.equals(new Rectangle(0, 0, width, height)) && decimationChanged())
+                paintBackbuffer(new Rectangle(0, 0, width, height));
+
+            contentChanged = false;
+            paintedRanges = getRanges();
+            rememberTraces();
+
+            paintNanos = 0.9 * paintNanos + 0.1 * (System.nanoTime() - start);
+            updatePaintLatency();
+        }
+
+        // drawn back at the scale it was painted at, pixel for pixel
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.scale(1 / scaleX, 1 / scaleY);
+        g2.drawImage(backbuffer, 0, 0, null);
+        g2.dispose();
+    }
+
+    private void paintBackbuffer(Rectangle clip)
+    {
+        Graphics2D g2 = backbuffer.createGraphics();
+        g2.scale(backbufferScaleX, backbufferScaleY);
+        g2.setClip(clip);
+        g2.setColor(getBackground());
+        g2.fill(clip);
+        super.paintComponent(g2);
+        g2.dispose();
+    }
+
+    /** Returns the minimum and maximum of each axis. **/
+    private double[] getRanges()
+    {
+        List<IAxis<?>> axes = getAxes();
+        double ranges[] = new double[2 * axes.size()];
+        for (int i = 0; i < axes.size(); i++)
+        {
+            ranges[2*i] = axes.get(i).getMin();
+            ranges[2*i + 1] = axes.get(i).getMax();
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the region that points appended or dropped since the last
+     * paint were or will be drawn in, as strips the height of the
+     * chart, or null if there is none. Returns the whole chart if that
+     * cannot be worked out.
+     */
+    private Rectangle getDirtyStrips()
+    {
+        Rectangle all = new Rectangle(0, 0, getWidth(), getHeight());
+        IAxis<?> xAxis = getAxisX();
+        double minX = xAxis.getMin(), maxX = xAxis.getMax();
+        int xStart = getXChartStart(), xEnd = getXChartEnd();
+        Rectangle dirty = null;
+
+        for (ITrace2D t : getTraces())
+        {
+            if (!(t instanceof RingBufferTrace2D))
+                return all;
+
+            RingBufferTrace2D trace = (RingBufferTrace2D) t;
+            PaintedTrace painted = paintedTraces.get(trace);
+            RingBufferTrace2D.Ring ring = trace.ring;
+            long head = ring.head;
+            long first = ring.first(head);
+
+            // the strips are only narrow if x increases, and the
+            // history's columns do not move as points are dropped
+            if (painted == null || painted.historic || painted.ring != ring || ring.sortedFrom > first ||
+                painted.head > head || head - painted.head > ring.maxSize / 2)
+                return all;
+
+            if (!t.isVisible() || head == painted.head)
+                continue;
+
+            // from the newest point painted to the newest point, and from
+            // the oldest point painted to the oldest point.
+            double appendedFrom = ring.xs[ring.slot(Math.max(first, painted.head - 1))];
+            double appendedTo = ring.xs[ring.slot(head - 1)];
+            double droppedTo = ring.xs[ring.slot(first)];
+            if (!ring.isValid(Math.max(first, painted.head - 1)))
+                return all;
+
+            dirty = addStrip(dirty, appendedFrom, appendedTo, minX, maxX, xStart, xEnd);
+            if (droppedTo > painted.firstX)
+                dirty = addStrip(dirty, painted.firstX, droppedTo, minX, maxX, xStart, xEnd);
+        }
+
+        return dirty;
+    }
+
+    /** Adds the strip from x0 to x1, in the axis' units, to 'dirty'. **/
+    private Rectangle addStrip(Rectangle dirty, double x0, double x1, double minX, double maxX,
+                               int xStart, int xEnd)
+    {
+        // enough to cover the markers and thick lines at either end
+        final int margin = 8;
+
+        // lines to points beyond the edges are drawn to the edges
+        double scale = (xEnd - xStart) / (maxX - minX);
+        int px0 = (int) Math.floor(xStart + (Math.max(x0, minX) - minX) * scale);
+        int px1 = (int) Math.ceil(xStart + (Math.min(x1, maxX) - minX) * scale);
+        if (x0 > maxX || x1 < minX)
+        {
+            // the line that reaches the edge may have changed
+            px0 = px1 = (x0 > maxX) ? xEnd : xStart;
+        }
+
+        Rectangle strip = new Rectangle(px0 - margin, 0, px1 - px0 + 2*margin, getHeight());
+        return (dirty == null) ? strip : dirty.union(strip);
+    }
+
+    private boolean decimationChanged()
+    {
+        for (ITrace2D t : getTraces())
+        {
+            PaintedTrace painted = paintedTraces.get(t);
+            if (painted == null)
+                continue;
+
+            RingBufferTrace2D trace = (RingBufferTrace2D) t;
+            if (painted.decimated != trace.decimated || painted.historic != trace.historic)
+                return true;
+        }
+        return false;
+    }
+
+    private void rememberTraces()
+    {
+        paintedTraces.clear();
+        for (ITrace2D t : getTraces())
+        {
+            if (!(t instanceof RingBufferTrace2D))
+                continue;
+
+            RingBufferTrace2D trace = (RingBufferTrace2D) t;
+            RingBufferTrace2D.Ring ring = trace.ring;
+            long head = ring.head;
+
+            // points not yet drained were not painted, unless decimated
+            if (ring == trace.notifiedRing)
+                head = Math.min(head, trace.notified);
+
+            PaintedTrace painted = new PaintedTrace();
+            painted.ring = ring;
+            painted.head = head;
+            painted.firstX = ring.xs[ring.slot(ring.first(head))];
+            painted.decimated = trace.decimated;
+            painted.historic = trace.historic;
+            paintedTraces.put(trace, painted);
+        }
+    }
+
+    /** Sets the repaint timer's delay to share PAINT_BUDGET among the
+     * open charts, according to how long this one takes to paint. **/
+    private void updatePaintLatency()
+    {
+        int charts = Math.max(1, chartData.getCharts().size());
+        int latency = (int) Math.max(MIN_PAINT_LATENCY, paintNanos / 1e6 * charts / PAINT_BUDGET);
+
+        // avoid touching the timer for small changes
+        int current = getMinPaintLatency();
+        if (Math.abs(latency - current) > current / 4)
+            setMinPaintLatency(latency);
     }
     
     /**
@@ -111,7 +399,8 @@ public class ZoomableChartScrollWheel extends ZoomableChart
             {
                 for (ITrace2D trace : newChart.getTraces())
                 {
-                    ((Trace2DLtd)trace).setMaxSize(chartData.sparklineChartSize);
+                    ((RingBufferTrace2D)trace).setMaxSize(chartData.sparklineChartSize);
+                    ((RingBufferTrace2D)trace).dropHistory();
                 }
                 chartData.getCharts().remove(newChart);
             }
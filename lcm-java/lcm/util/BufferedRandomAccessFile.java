@@ -1,20 +1,27 @@
 package lcm.util;
 
 import java.io.*;
+import java.nio.*;
 
 public class BufferedRandomAccessFile
 {
     RandomAccessFile raf;
 
-    static final int BUFFER_SIZE = 32768; // must be power of two!
+    static final int BUFFER_SIZE = 32768; // default size, must be power of two!
+
+    int     bufferSize = BUFFER_SIZE; // must be power of two!
 
     boolean bufferDirty = false; // buffer needs to be written back to disk? (If true, reads MUST use buffer.)
 
+    boolean readOnly; // opened in "r" mode?
+
+    Prefetcher prefetcher; // non-null if read-ahead is enabled
+
     byte[]  buffer = new byte[BUFFER_SIZE];
     long    bufferOffset = -1; // what file offset does this buffer start at?
-    int     bufferLength = -1; // how many bytes of the buffer are valid? ( < BUFFER_SIZE near end of file)
+    int     bufferLength = -1; // how many bytes of the buffer are valid? ( < bufferSize near end of file)
 
-    int     bufferPosition = -1; // current file position in the buffer [0, BUFFER_SIZE-1]
+    int     bufferPosition = -1; // current file position in the buffer [0, bufferSize-1]
 
     long    fileLength; // length of the file
 
@@ -25,6 +32,7 @@ public class BufferedRandomAccessFile
     public BufferedRandomAccessFile(File file, String mode) throws IOException
     {
         raf = new RandomAccessFile(file, mode);
+        readOnly = mode.equals("r");
         fileLength = raf.length();
         bufferSeek(0);
     }
@@ -32,12 +40,43 @@ public class BufferedRandomAccessFile
     public BufferedRandomAccessFile(String path, String mode) throws IOException
     {
         raf = new RandomAccessFile(path, mode);
+        readOnly = mode.equals("r");
         fileLength = raf.length();
         bufferSeek(0);
     }
 
+    /** Enables read-ahead for a file opened in "r" mode. The buffer
+        size is increased to 'size' bytes (rounded up to a power of
+        two), and a second buffer is filled on a background thread with
+        the data following the current buffer, so that sequential reads
+        rarely wait for the disk. Random seeks still read
+        synchronously. **/
+    public void enableReadAhead(int size) throws IOException
+    {
+        if (!readOnly)
+            throw new IOException("Read-ahead requires a file opened in \"r\" mode");
+
+        size = Integer.highestOneBit(Math.max(size, BUFFER_SIZE) - 1) << 1;
+
+        long pos = getFilePointer();
+        if (prefetcher != null)
+            prefetcher.shutdown();
+
+        bufferSize = size;
+        buffer = new byte[size];
+        bufferOffset = -1;
+        prefetcher = new Prefetcher(size);
+        prefetcher.start();
+
+        bufferSeek(pos);
+    }
+
     public void close() throws IOException
     {
+        if (prefetcher != null)
+            prefetcher.shutdown();
+        prefetcher = null;
+
         flushBuffer();
         raf.close();
     }
@@ -94,21 +133,26 @@ public class BufferedRandomAccessFile
     {
         flushBuffer();
 
-        long newOffset = seekOffset - (seekOffset & (BUFFER_SIZE - 1L));
+        long newOffset = seekOffset - (seekOffset & (bufferSize - 1L));
         if (newOffset == bufferOffset) {
             bufferPosition = (int) (seekOffset - bufferOffset);
             return;
         }
 
         bufferOffset = newOffset;
-        bufferLength = (int) min(BUFFER_SIZE, fileLength - bufferOffset);
+        bufferLength = (int) min(bufferSize, fileLength - bufferOffset);
         if (bufferLength < 0)
             bufferLength = 0;
         bufferPosition = (int) (seekOffset - bufferOffset);
 
         // we always ask for an amount that should be exactly available.
-        raf.seek(bufferOffset);
-        raf.readFully(buffer, 0, bufferLength);
+        if (prefetcher == null || !prefetcher.take(bufferOffset)) {
+            raf.seek(bufferOffset);
+            raf.readFully(buffer, 0, bufferLength);
+        }
+
+        if (prefetcher != null && bufferOffset + bufferSize < fileLength)
+            prefetcher.request(bufferOffset + bufferSize);
 
         // System.out.printf("%08x %08x %08x %08x\n", seekOffset, bufferOffset, bufferPosition, bufferLength);
     }
@@ -124,6 +168,91 @@ public class BufferedRandomAccessFile
         return buffer[bufferPosition++]&0xff;
     }
 
+    /** Advances the file pointer to the next occurrence of the
+        big-endian 32-bit 'value', scanning the buffered data a word at
+        a time rather than a byte at a time. Returns the number of
+        bytes skipped. If there is no further occurrence, the file
+        pointer is left at the end of the file and an EOFException is
+        thrown. **/
+    public long skipToInt(int value) throws IOException
+    {
+        long start = bufferOffset + bufferPosition;
+
+        while (true) {
+            int idx = indexOfInt(buffer, bufferPosition, bufferLength, value);
+            if (idx >= 0) {
+                bufferPosition = idx;
+                return bufferOffset + bufferPosition - start;
+            }
+
+            // An occurrence may straddle the end of the buffer. Keep
+            // the last (up to) three bytes, then move to the next
+            // buffer and check them against its first few bytes.
+            int ntail = Math.min(3, bufferLength - bufferPosition);
+            int tail = 0;
+            for (int i = bufferLength - ntail; i < bufferLength; i++)
+                tail = (tail<<8) | (buffer[i]&0xff);
+
+            long next = bufferOffset + bufferLength;
+            if (next >= fileLength) {
+                bufferSeek(fileLength);
+                throw new EOFException("EOF");
+            }
+            bufferSeek(next);
+
+            for (int k = ntail; k >= 1; k--) {
+                int need = 4 - k;
+                if (bufferLength < need)
+                    break;
+
+                int v = tail & ((1<<(8*k)) - 1);
+                for (int i = 0; i < need; i++)
+                    v = (v<<8) | (buffer[i]&0xff);
+
+                if (v == value) {
+                    bufferSeek(next - k);
+                    return next - k - start;
+                }
+            }
+        }
+    }
+
+    /** Returns the index of the first occurrence of the big-endian
+        32-bit 'value' that lies entirely within b[from, to), or -1 if
+        there is none. Eight bytes are examined at a time: a SWAR
+        zero-byte test finds positions matching the value's first
+        byte, which are then confirmed with a full comparison. **/
+    public static int indexOfInt(byte b[], int from, int to, int value)
+    {
+        ByteBuffer bb = ByteBuffer.wrap(b); // big-endian
+        long pattern = (value>>>24) * 0x0101010101010101L;
+        int i = from;
+
+        while (i + 8 <= to) {
+            long x = bb.getLong(i) ^ pattern;
+            long zeros = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+            if (zeros == 0) {
+                i += 8;
+                continue;
+            }
+
+            // The test can flag false positives, but only in bytes
+            // preceding a true first-byte match, so the first flagged
+            // byte is never past the first real candidate.
+            int j = i + (Long.numberOfLeadingZeros(zeros)>>>3);
+            if (j + 4 <= to && bb.getInt(j) == value)
+                return j;
+            i = j + 1;
+        }
+
+        for (; i + 4 <= to; i++) {
+            if (bb.getInt(i) == value)
+                return i;
+        }
+
+        return -1;
+    }
+
     public boolean hasMore() throws IOException
     {
         return bufferPosition+bufferOffset < fileLength;
@@ -340,7 +469,7 @@ public class BufferedRandomAccessFile
 	    }
 
         // they're increasing the size of the file, but it still fits inside our buffer
-        if (bufferLength < BUFFER_SIZE)
+        if (bufferLength < bufferSize)
 	    {
             buffer[bufferPosition++] = v;
             bufferLength++;
@@ -354,6 +483,136 @@ public class BufferedRandomAccessFile
         write(v);
     }
 
+    /** Reads the buffer following the current one on a background
+        thread. The file is read with positional reads on its channel,
+        which do not disturb the file pointer used by the foreground
+        thread. The thread is never interrupted, since that would close
+        the channel (and the file). **/
+    class Prefetcher extends Thread
+    {
+        byte    spare[];
+        long    requestOffset = -1;
+        int     requestLength;
+        boolean pending; // requested, but not yet being read
+        boolean busy;    // the thread is reading into 'spare'
+        boolean ready;   // 'spare' holds the data at requestOffset
+        boolean closed;
+
+        Prefetcher(int size)
+        {
+            spare = new byte[size];
+            setDaemon(true);
+            setName("BufferedRandomAccessFile read-ahead");
+        }
+
+        /** Starts reading the buffer at 'offset', unless it has
+            already been requested. **/
+        synchronized void request(long offset)
+        {
+            if (requestOffset == offset)
+                return;
+
+            try {
+                while (busy)
+                    wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                requestOffset = -1;
+                return;
+            }
+
+            requestOffset = offset;
+            requestLength = (int) min(bufferSize, fileLength - offset);
+            pending = true;
+            ready = false;
+            notifyAll();
+        }
+
+        /** If the buffer at 'offset' has been requested, waits for it
+            and swaps it in as the current buffer. Returns false if the
+            caller must read the data itself. **/
+        synchronized boolean take(long offset)
+        {
+            if (requestOffset != offset)
+                return false;
+
+            try {
+                while (pending || busy)
+                    wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            requestOffset = -1;
+            if (!ready)
+                return false; // the read failed; let the caller report it.
+
+            ready = false;
+            byte t[] = buffer;
+            buffer = spare;
+            spare = t;
+            return true;
+        }
+
+        synchronized void shutdown()
+        {
+            closed = true;
+            notifyAll();
+
+            try {
+                while (busy)
+                    wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run()
+        {
+            while (true) {
+                long offset;
+                int length;
+                byte buf[];
+
+                synchronized (this) {
+                    try {
+                        while (!closed && !pending)
+                            wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    if (closed)
+                        return;
+
+                    pending = false;
+                    busy = true;
+                    offset = requestOffset;
+                    length = requestLength;
+                    buf = spare;
+                }
+
+                boolean ok = true;
+                try {
+                    ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+                    while (bb.hasRemaining()) {
+                        if (raf.getChannel().read(bb, offset + bb.position()) < 0)
+                            throw new EOFException("EOF");
+                    }
+                } catch (IOException ex) {
+                    ok = false;
+                }
+
+                synchronized (this) {
+                    busy = false;
+                    if (requestOffset == offset)
+                        ready = ok;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
     public static boolean check;
 
     public String readLineCheck() throws IOException
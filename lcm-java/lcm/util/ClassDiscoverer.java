@@ -5,11 +5,32 @@ import java.util.*;
 import java.util.jar.*;
 import java.util.zip.*;
 import java.net.*;
+import java.nio.file.*;
 import java.lang.reflect.*;
+import java.util.concurrent.*;
 
+/**
+ * Finds classes on the classpath. {@link #findClasses} loads every
+ * class it finds, which can take a long time on a large classpath;
+ * {@link #scanClasses} instead reads the class files without loading
+ * them, in parallel, and caches what it learns about each jar (see
+ * {@link ClassInfo}), so that only the classes actually needed are
+ * loaded, with {@link #getClassLoader}.
+ *
+ * The cache is kept in $LCM_CLASS_CACHE_DIR, or else
+ * $XDG_CACHE_HOME/lcm/classes or ~/.cache/lcm/classes. Setting
+ * LCM_CLASS_CACHE_DIR to an empty string disables it.
+ **/
 public class ClassDiscoverer
 {
-    public static void findClasses(ClassVisitor visitor)
+    static final int CACHE_VERSION = 1;
+
+    static HashMap<String, List<ClassInfo>> scanned = new HashMap<String, List<ClassInfo>>();
+    static HashMap<String, URLClassLoader> loaders = new HashMap<String, URLClassLoader>();
+
+    /** The classpath searched by default: $CLASSPATH and the JVM's
+     * classpath. **/
+    public static String getClassPath()
     {
         String ps = System.getProperty("path.separator");
 
@@ -17,8 +38,286 @@ public class ClassDiscoverer
         // types whose definitions are in another JAR file, create a
         // big "master" classpath that contains everything we might
         // want to load.
-        String cp = System.getenv("CLASSPATH")+ ps +System.getProperty("java.class.path");
-        findClasses(cp, visitor);
+        return System.getenv("CLASSPATH")+ ps +System.getProperty("java.class.path");
+    }
+
+    public static void findClasses(ClassVisitor visitor)
+    {
+        findClasses(getClassPath(), visitor);
+    }
+
+    /** Returns a class loader for classes found in 'cp'; the same one
+     * each time, so that classes loaded from it can refer to each
+     * other. **/
+    public static synchronized ClassLoader getClassLoader(String cp)
+    {
+        URLClassLoader cldr = loaders.get(cp);
+        if (cldr == null) {
+            try {
+                cldr = createClassLoader(cp.split(System.getProperty("path.separator")));
+            } catch (IOException ex) {
+                System.out.println("ClassDiscoverer ERR: "+ex);
+                return ClassDiscoverer.class.getClassLoader();
+            }
+            loaders.put(cp, cldr);
+        }
+        return cldr;
+    }
+
+    public static ClassLoader getClassLoader()
+    {
+        return getClassLoader(getClassPath());
+    }
+
+    // Create a class loader that has access to the whole class path.
+    static URLClassLoader createClassLoader(String items[]) throws IOException
+    {
+        URL[] urls = new URL[items.length];
+        for (int i = 0; i < items.length; i++)
+            urls[i] = new File(items[i]).toURI().toURL();
+
+        return new URLClassLoader(urls);
+    }
+
+    /**
+     * Calls the visitor with each class in 'cp' that directly
+     * implements an interface, loading only those classes.
+     *
+     * @param iface the interface's binary name
+     */
+    public static void findClassesImplementing(String cp, String iface, ClassVisitor visitor)
+    {
+        ClassLoader cldr = getClassLoader(cp);
+        for (ClassInfo info : scanClasses(cp)) {
+            if (!info.implementsInterface(iface))
+                continue;
+            try {
+                visitor.classFound(null, cldr.loadClass(info.name));
+            } catch (Throwable ex) {
+                System.out.println("ClassDiscoverer: "+ex);
+            }
+        }
+    }
+
+    public static List<ClassInfo> scanClasses()
+    {
+        return scanClasses(getClassPath());
+    }
+
+    /**
+     * Reads every class file in 'cp' without loading any classes, and
+     * returns what it learns about the LCM types and the classes that
+     * implement interfaces, in classpath order. Jars are read in
+     * parallel, and the result for each jar is cached on disk until
+     * the jar changes. The result for the whole classpath is also
+     * remembered for the life of the process.
+     **/
+    public static List<ClassInfo> scanClasses(String cp)
+    {
+        synchronized (scanned) {
+            List<ClassInfo> infos = scanned.get(cp);
+            if (infos != null)
+                return infos;
+        }
+
+        final File cacheDir = getCacheDir();
+        String items[] = cp.split(System.getProperty("path.separator"));
+        int nthreads = Math.max(1, Math.min(items.length, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ClassDiscoverer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        ArrayList<Future<List<ClassInfo>>> futures = new ArrayList<Future<List<ClassInfo>>>();
+        HashSet<String> seen = new HashSet<String>();
+        for (final String item : items) {
+            if (!seen.add(item))
+                continue;
+            futures.add(pool.submit(new Callable<List<ClassInfo>>() {
+                public List<ClassInfo> call() {
+                    File f = new File(item);
+                    if (item.endsWith(".jar") && f.isFile())
+                        return scanJar(f, cacheDir);
+                    if (f.isDirectory())
+                        return scanDirectory(f, new ArrayList<ClassInfo>());
+                    return Collections.<ClassInfo>emptyList();
+                }
+            }));
+        }
+        pool.shutdown();
+
+        ArrayList<ClassInfo> infos = new ArrayList<ClassInfo>();
+        for (Future<List<ClassInfo>> future : futures) {
+            try {
+                infos.addAll(future.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                System.out.println("ClassDiscoverer: "+ex.getCause());
+            }
+        }
+
+        List<ClassInfo> result = Collections.unmodifiableList(infos);
+        synchronized (scanned) {
+            scanned.put(cp, result);
+        }
+        return result;
+    }
+
+    static File getCacheDir()
+    {
+        String dir = System.getenv("LCM_CLASS_CACHE_DIR");
+        if (dir != null)
+            return dir.isEmpty() ? null : new File(dir);
+
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        if (xdg != null && !xdg.isEmpty())
+            return new File(xdg, "lcm/classes");
+        return new File(System.getProperty("user.home"), ".cache/lcm/classes");
+    }
+
+    static List<ClassInfo> scanDirectory(File dir, List<ClassInfo> infos)
+    {
+        File files[] = dir.listFiles();
+        if (files == null)
+            return infos;
+
+        for (File f : files) {
+            if (f.isDirectory()) {
+                scanDirectory(f, infos);
+            } else if (f.getName().endsWith(".class")) {
+                try {
+                    ClassInfo info = ClassInfo.parse(Files.readAllBytes(f.toPath()));
+                    if (info != null)
+                        infos.add(info);
+                } catch (IOException ex) {
+                }
+            }
+        }
+        return infos;
+    }
+
+    static List<ClassInfo> scanJar(File jar, File cacheDir)
+    {
+        String path = jar.getAbsolutePath();
+        long mtime = jar.lastModified();
+        long length = jar.length();
+
+        File cacheFile = null;
+        if (cacheDir != null) {
+            long hash = 1125899906842597L;
+            for (int i = 0; i < path.length(); i++)
+                hash = 31*hash + path.charAt(i);
+            cacheFile = new File(cacheDir, String.format("%016x", hash));
+
+            List<ClassInfo> cached = readCache(cacheFile, path, mtime, length);
+            if (cached != null)
+                return cached;
+        }
+
+        ArrayList<ClassInfo> infos = new ArrayList<ClassInfo>();
+        try {
+            JarFile jf = new JarFile(jar);
+            try {
+                byte buf[] = new byte[65536];
+                for (Enumeration<JarEntry> e = jf.entries(); e.hasMoreElements(); ) {
+                    JarEntry je = e.nextElement();
+                    String n = je.getName();
+
+                    // skip multi-release variants and module descriptors
+                    if (!n.endsWith(".class") || n.startsWith("META-INF/") || n.endsWith("module-info.class"))
+                        continue;
+
+                    ByteArrayOutputStream bouts = new ByteArrayOutputStream(Math.max(32, (int) je.getSize()));
+                    InputStream ins = jf.getInputStream(je);
+                    try {
+                        int len;
+                        while ((len = ins.read(buf)) > 0)
+                            bouts.write(buf, 0, len);
+                    } finally {
+                        ins.close();
+                    }
+
+                    try {
+                        ClassInfo info = ClassInfo.parse(bouts.toByteArray());
+                        if (info != null)
+                            infos.add(info);
+                    } catch (IOException ex) {
+                    }
+                }
+            } finally {
+                jf.close();
+            }
+        } catch (IOException ex) {
+            System.out.println("Error extracting "+path);
+            return infos;
+        }
+
+        if (cacheFile != null)
+            writeCache(cacheFile, path, mtime, length, infos);
+        return infos;
+    }
+
+    static List<ClassInfo> readCache(File cacheFile, String path, long mtime, long length)
+    {
+        if (!cacheFile.isFile())
+            return null;
+
+        try {
+            DataInputStream ins = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if (ins.readInt() != CACHE_VERSION || !ins.readUTF().equals(path) ||
+                    ins.readLong() != mtime || ins.readLong() != length)
+                    return null;
+
+                int n = ins.readInt();
+                ArrayList<ClassInfo> infos = new ArrayList<ClassInfo>();
+                for (int i = 0; i < n; i++)
+                    infos.add(ClassInfo.read(ins));
+                return infos;
+            } finally {
+                ins.close();
+            }
+        } catch (Exception ex) {
+            // a corrupt cache can fail in ClassInfo.read() with more
+            // than an IOException (e.g. a negative array length); any
+            // failure just means we scan the classes again.
+            return null;
+        }
+    }
+
+    static void writeCache(File cacheFile, String path, long mtime, long length, List<ClassInfo> infos)
+    {
+        // write to a temporary file and rename it, so that concurrent
+        // processes never see a partial cache file.
+        File tmp = null;
+        try {
+            cacheFile.getParentFile().mkdirs();
+            tmp = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+
+            DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                outs.writeInt(CACHE_VERSION);
+                outs.writeUTF(path);
+                outs.writeLong(mtime);
+                outs.writeLong(length);
+                outs.writeInt(infos.size());
+                for (ClassInfo info : infos)
+                    info.write(outs);
+            } finally {
+                outs.close();
+            }
+
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            // the cache is only an optimization.
+            if (tmp != null)
+                tmp.delete();
+        }
     }
 
     private static void visitDirectory(ClassVisitor visitor, URLClassLoader cldr, 
@@ -61,14 +360,9 @@ public class ClassDiscoverer
         String ps = System.getProperty("path.separator");
         String[] items = cp.split(ps);
 
-        // Create a class loader that has access to the whole class path.
         URLClassLoader cldr;
         try {
-            URL[] urls = new URL[items.length];
-            for (int i = 0; i < items.length; i++)
-                urls[i] = new File(items[i]).toURI().toURL();
-
-            cldr = new URLClassLoader(urls);
+            cldr = createClassLoader(items);
         } catch (IOException ex) {
             System.out.println("ClassDiscoverer ERR: "+ex);
             return;
@@ -0,0 +1,423 @@
+package lcm.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * What {@link ClassDiscoverer} learns about a class by reading its
+ * class file, without loading it: its name, the interfaces it
+ * implements, and, for LCM types generated by lcm-gen, enough to
+ * compute its fingerprint.
+ *
+ * lcm-gen makes the LCM_FINGERPRINT of an enum a constant, but a
+ * struct computes its fingerprint in a static initializer, from its
+ * LCM_FINGERPRINT_BASE constant and the _hashRecursive() of each
+ * struct it contains. Both are visible in the class file, so
+ * {@link #computeFingerprints} can repeat that computation.
+ **/
+public class ClassInfo
+{
+    /** The binary name, e.g., "exlcm.example_t". **/
+    public String name;
+
+    /** The interfaces that the class implements directly. **/
+    public String interfaces[];
+
+    /** True if the class has a public static LCM_FINGERPRINT field. **/
+    public boolean lcmType;
+
+    /** LCM_FINGERPRINT, if it is a constant; null otherwise. **/
+    public Long fingerprint;
+
+    /** LCM_FINGERPRINT_BASE, if there is one. **/
+    public Long fingerprintBase;
+
+    /** The classes whose _hashRecursive() the class's _hashRecursive()
+     * calls, once per call. **/
+    public String hashDependencies[];
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+
+    /**
+     * Reads a class file. Returns null for classes that are neither
+     * LCM types nor implement any interface, which are of no use to
+     * {@link ClassDiscoverer}'s callers.
+     *
+     * @throws IOException if 'b' is not a valid class file.
+     */
+    public static ClassInfo parse(byte b[]) throws IOException
+    {
+        try {
+            return new Parser(b).parse();
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Truncated class file");
+        }
+    }
+
+    static class Parser
+    {
+        byte b[];
+        int cp[];    // offset of each constant pool entry
+
+        Parser(byte b[])
+        {
+            this.b = b;
+        }
+
+        int u1(int pos)
+        {
+            return b[pos] & 0xff;
+        }
+
+        int u2(int pos)
+        {
+            return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+        }
+
+        int u4(int pos)
+        {
+            return (u2(pos) << 16) | u2(pos + 2);
+        }
+
+        long u8(int pos)
+        {
+            return (((long) u4(pos)) << 32) | (u4(pos + 4) & 0xffffffffL);
+        }
+
+        /** Compares a CONSTANT_Utf8 entry with an ASCII string, without
+         * decoding it. **/
+        boolean utf8Equals(int index, String s)
+        {
+            int pos = cp[index];
+            int len = u2(pos + 1);
+            if (len != s.length())
+                return false;
+            for (int i = 0; i < len; i++) {
+                if (b[pos + 3 + i] != s.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        String utf8(int index) throws IOException
+        {
+            int pos = cp[index];
+            if (u1(pos) != 1)
+                throw new IOException("Bad constant pool reference");
+            return new DataInputStream(new ByteArrayInputStream(b, pos + 1, u2(pos + 1) + 2)).readUTF();
+        }
+
+        /** The binary name of a CONSTANT_Class entry. **/
+        String className(int index) throws IOException
+        {
+            return utf8(u2(cp[index] + 1)).replace('/', '.');
+        }
+
+        ClassInfo parse() throws IOException
+        {
+            if (u4(0) != 0xcafebabe)
+                throw new IOException("Not a class file");
+
+            int count = u2(8);
+            cp = new int[count];
+            int pos = 10;
+            for (int i = 1; i < count; i++) {
+                cp[i] = pos;
+                switch (u1(pos)) {
+                    case 1: // Utf8
+                        pos += 3 + u2(pos + 1);
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        pos += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        pos += 9;
+                        i++;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        pos += 3;
+                        break;
+                    case 15: // MethodHandle
+                        pos += 4;
+                        break;
+                    default:
+                        throw new IOException("Bad constant pool tag "+u1(pos));
+                }
+            }
+
+            ClassInfo info = new ClassInfo();
+            int thisClass = u2(pos + 2);
+            info.interfaces = new String[u2(pos + 6)];
+            pos += 8;
+            for (int i = 0; i < info.interfaces.length; i++, pos += 2)
+                info.interfaces[i] = className(u2(pos));
+
+            int nfields = u2(pos);
+            pos += 2;
+            for (int i = 0; i < nfields; i++) {
+                int access = u2(pos);
+                int nameIndex = u2(pos + 2);
+                int nattrs = u2(pos + 6);
+                pos += 8;
+
+                boolean isFingerprint = utf8Equals(nameIndex, "LCM_FINGERPRINT");
+                boolean isBase = utf8Equals(nameIndex, "LCM_FINGERPRINT_BASE");
+                if (isFingerprint && (access & (ACC_PUBLIC | ACC_STATIC)) == (ACC_PUBLIC | ACC_STATIC))
+                    info.lcmType = true;
+
+                for (int j = 0; j < nattrs; j++) {
+                    if ((isFingerprint || isBase) && utf8Equals(u2(pos), "ConstantValue")) {
+                        int value = cp[u2(pos + 6)];
+                        if (u1(value) == 5) {
+                            if (isFingerprint)
+                                info.fingerprint = u8(value + 1);
+                            else
+                                info.fingerprintBase = u8(value + 1);
+                        }
+                    }
+                    pos += 6 + u4(pos + 2);
+                }
+            }
+
+            if (!info.lcmType && info.interfaces.length == 0)
+                return null;
+
+            int nmethods = u2(pos);
+            pos += 2;
+            for (int i = 0; i < nmethods; i++) {
+                boolean isHash = info.lcmType && utf8Equals(u2(pos + 2), "_hashRecursive");
+                int nattrs = u2(pos + 6);
+                pos += 8;
+
+                for (int j = 0; j < nattrs; j++) {
+                    if (isHash && utf8Equals(u2(pos), "Code"))
+                        info.hashDependencies = findHashCalls(pos + 14, u4(pos + 10));
+                    pos += 6 + u4(pos + 2);
+                }
+            }
+
+            info.name = className(thisClass);
+            return info;
+        }
+
+        /** Returns the classes of the static _hashRecursive() methods
+         * called by some bytecode, in order. **/
+        String[] findHashCalls(int start, int length) throws IOException
+        {
+            ArrayList<String> calls = new ArrayList<String>();
+            int pc = 0;
+
+            while (pc < length) {
+                int op = u1(start + pc);
+
+                if (op == 0xb8) { // invokestatic
+                    int methodref = cp[u2(start + pc + 1)];
+                    int nameAndType = cp[u2(methodref + 3)];
+                    if (utf8Equals(u2(nameAndType + 1), "_hashRecursive"))
+                        calls.add(className(u2(methodref + 1)));
+                }
+
+                pc += instructionLength(start, pc, op);
+            }
+
+            return calls.toArray(new String[0]);
+        }
+
+        int instructionLength(int start, int pc, int op)
+        {
+            switch (op) {
+                case 0x10: // bipush
+                case 0x12: // ldc
+                case 0xa9: // ret
+                case 0xbc: // newarray
+                    return 2;
+
+                case 0x11: // sipush
+                case 0x13: // ldc_w
+                case 0x14: // ldc2_w
+                case 0x84: // iinc
+                case 0xbb: // new
+                case 0xbd: // anewarray
+                case 0xc0: // checkcast
+                case 0xc1: // instanceof
+                case 0xc6: // ifnull
+                case 0xc7: // ifnonnull
+                    return 3;
+
+                case 0xc5: // multianewarray
+                    return 4;
+
+                case 0xb9: // invokeinterface
+                case 0xba: // invokedynamic
+                case 0xc8: // goto_w
+                case 0xc9: // jsr_w
+                    return 5;
+
+                case 0xc4: // wide
+                    return u1(start + pc + 1) == 0x84 ? 6 : 4;
+
+                case 0xaa: { // tableswitch
+                    int pos = start + ((pc + 4) & ~3);
+                    int low = u4(pos + 4), high = u4(pos + 8);
+                    return pos + 12 + 4*(high - low + 1) - (start + pc);
+                }
+
+                case 0xab: { // lookupswitch
+                    int pos = start + ((pc + 4) & ~3);
+                    return pos + 8 + 8*u4(pos + 4) - (start + pc);
+                }
+            }
+
+            if (op >= 0x15 && op <= 0x19) // iload .. aload
+                return 2;
+            if (op >= 0x36 && op <= 0x3a) // istore .. astore
+                return 2;
+            if (op >= 0x99 && op <= 0xa8) // if*, goto, jsr
+                return 3;
+            if (op >= 0xb2 && op <= 0xb8) // get/put field/static, invoke*
+                return 3;
+            return 1;
+        }
+    }
+
+    void write(DataOutputStream outs) throws IOException
+    {
+        outs.writeUTF(name);
+        outs.writeInt(interfaces.length);
+        for (String iface : interfaces)
+            outs.writeUTF(iface);
+
+        outs.writeBoolean(lcmType);
+        if (!lcmType)
+            return;
+
+        outs.writeBoolean(fingerprint != null);
+        if (fingerprint != null)
+            outs.writeLong(fingerprint);
+        outs.writeBoolean(fingerprintBase != null);
+        if (fingerprintBase != null)
+            outs.writeLong(fingerprintBase);
+        outs.writeInt(hashDependencies == null ? -1 : hashDependencies.length);
+        if (hashDependencies != null) {
+            for (String dep : hashDependencies)
+                outs.writeUTF(dep);
+        }
+    }
+
+    static ClassInfo read(DataInputStream ins) throws IOException
+    {
+        ClassInfo info = new ClassInfo();
+        info.name = ins.readUTF();
+        info.interfaces = new String[readCount(ins)];
+        for (int i = 0; i < info.interfaces.length; i++)
+            info.interfaces[i] = ins.readUTF();
+
+        info.lcmType = ins.readBoolean();
+        if (!info.lcmType)
+            return info;
+
+        if (ins.readBoolean())
+            info.fingerprint = ins.readLong();
+        if (ins.readBoolean())
+            info.fingerprintBase = ins.readLong();
+        int ndeps = ins.readInt();
+        if (ndeps > 0xffff)
+            throw new IOException("Bad count in class cache: "+ndeps);
+        if (ndeps >= 0) {
+            info.hashDependencies = new String[ndeps];
+            for (int i = 0; i < ndeps; i++)
+                info.hashDependencies[i] = ins.readUTF();
+        }
+        return info;
+    }
+
+    /** Reads an array length from a cache file. The counts come from u2
+     * fields of the class file, so anything larger means the cache is
+     * corrupt; don't try to allocate it. **/
+    static int readCount(DataInputStream ins) throws IOException
+    {
+        int n = ins.readInt();
+        if (n < 0 || n > 0xffff)
+            throw new IOException("Bad count in class cache: "+n);
+        return n;
+    }
+
+    public boolean implementsInterface(String iface)
+    {
+        for (String s : interfaces) {
+            if (s.equals(iface))
+                return true;
+        }
+        return false;
+    }
+
+    /** Thrown when a fingerprint depends on a class that cannot be
+     * analyzed. **/
+    static class UnresolvedException extends Exception
+    {
+    }
+
+    /**
+     * Computes the LCM_FINGERPRINT of each LCM type, as its static
+     * initializer would. Types whose fingerprint cannot be computed
+     * this way, e.g., because they contain a type that is not among
+     * 'infos', are left out; their classes must be loaded to find out.
+     *
+     * @return fingerprints by class name
+     */
+    public static Map<String, Long> computeFingerprints(Collection<ClassInfo> infos)
+    {
+        HashMap<String, ClassInfo> types = new HashMap<String, ClassInfo>();
+        for (ClassInfo info : infos) {
+            if (info.lcmType && !types.containsKey(info.name))
+                types.put(info.name, info);
+        }
+
+        HashMap<String, Long> fingerprints = new HashMap<String, Long>();
+        for (ClassInfo info : types.values()) {
+            try {
+                fingerprints.put(info.name, hashRecursive(types, info.name, new ArrayList<String>()));
+            } catch (UnresolvedException ex) {
+            }
+        }
+        return fingerprints;
+    }
+
+    // mirrors the _hashRecursive() that lcm-gen writes for each type.
+    static long hashRecursive(Map<String, ClassInfo> types, String name, ArrayList<String> classes)
+        throws UnresolvedException
+    {
+        ClassInfo info = types.get(name);
+        if (info == null)
+            throw new UnresolvedException();
+
+        if (info.fingerprint != null)
+            return info.fingerprint;
+        if (info.fingerprintBase == null || info.hashDependencies == null)
+            throw new UnresolvedException();
+
+        if (classes.contains(name))
+            return 0L;
+
+        classes.add(name);
+        long hash = info.fingerprintBase;
+        for (String dep : info.hashDependencies)
+            hash += hashRecursive(types, dep, classes);
+        classes.remove(classes.size() - 1);
+
+        return (hash<<1) + ((hash>>63)&1);
+    }
+}
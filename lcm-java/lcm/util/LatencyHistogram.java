@@ -0,0 +1,184 @@
+package lcm.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of non-negative long values (typically nanoseconds)
+ * with a bounded relative error, in the style of HdrHistogram. Values
+ * below 128 are counted exactly; larger values are counted in buckets
+ * that split each power of two into 64 parts, so any reported value
+ * is within 1/64 (about 1.6%) of the recorded one. The whole range of
+ * a long is covered.
+ *
+ * A LatencyHistogram is thread-safe. Its counters are striped with
+ * LongAdder, so recording from many threads neither contends nor,
+ * once a bucket has been used, allocates. Buckets are allocated when
+ * they are first used, so a histogram whose values span a few powers
+ * of two stays small. Reads are not atomic with respect to concurrent
+ * records.
+ **/
+public class LatencyHistogram
+{
+    static final int SUB_BITS = 7;
+    static final int SUB_COUNT = 1<<SUB_BITS;    // values counted exactly
+    static final int HALF_COUNT = SUB_COUNT/2;   // buckets per power of two
+    static final int NBUCKETS = SUB_COUNT + (63 - SUB_BITS + 1)*HALF_COUNT;
+
+    AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<LongAdder>(NBUCKETS);
+    LongAdder count = new LongAdder();
+    LongAdder total = new LongAdder();
+    LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_COUNT)
+            return (int) value;
+
+        // shift 'value' so that it lies in [HALF_COUNT, SUB_COUNT).
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1)*HALF_COUNT + (int) ((value>>shift) - HALF_COUNT);
+    }
+
+    /** The largest value that is counted in bucket 'index'. **/
+    static long bucketHighestValue(int index)
+    {
+        if (index < SUB_COUNT)
+            return index;
+
+        int j = index - SUB_COUNT;
+        int shift = j/HALF_COUNT + 1;
+        long sub = j%HALF_COUNT + HALF_COUNT;
+        return ((sub + 1)<<shift) - 1;
+    }
+
+    LongAdder bucket(int index)
+    {
+        LongAdder a = counts.get(index);
+        if (a == null) {
+            counts.compareAndSet(index, null, new LongAdder());
+            a = counts.get(index);
+        }
+        return a;
+    }
+
+    long bucketCount(int index)
+    {
+        LongAdder a = counts.get(index);
+        return a == null ? 0 : a.sum();
+    }
+
+    /** Records a value; negative values are recorded as zero. **/
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        bucket(bucketIndex(value)).increment();
+        count.increment();
+        total.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+    }
+
+    /** Adds the values recorded in 'h' to this histogram. **/
+    public void add(LatencyHistogram h)
+    {
+        for (int i = 0; i < NBUCKETS; i++) {
+            long n = h.bucketCount(i);
+            if (n != 0)
+                bucket(i).add(n);
+        }
+        count.add(h.count.sum());
+        total.add(h.total.sum());
+        min.accumulate(h.min.get());
+        max.accumulate(h.max.get());
+    }
+
+    /** Clears all recorded values. **/
+    public void reset()
+    {
+        for (int i = 0; i < NBUCKETS; i++) {
+            LongAdder a = counts.get(i);
+            if (a != null)
+                a.reset();
+        }
+        count.reset();
+        total.reset();
+        min.reset();
+        max.reset();
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /** The sum of the values recorded. **/
+    public long getTotal()
+    {
+        return total.sum();
+    }
+
+    /** The smallest value recorded, or 0 if none. **/
+    public long getMin()
+    {
+        return getCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = getCount();
+        return n == 0 ? 0 : getTotal()/((double) n);
+    }
+
+    /**
+     * Returns the p'th quantile (e.g., p = 0.99) of the recorded
+     * values, rounded up to the resolution of the histogram and never
+     * more than the largest value recorded.
+     */
+    public long getValueAtPercentile(double p)
+    {
+        // count the buckets rather than use 'count', which a
+        // concurrent record() may not have updated yet.
+        long bucketCounts[] = new long[NBUCKETS];
+        long n = 0;
+        for (int i = 0; i < NBUCKETS; i++) {
+            bucketCounts[i] = bucketCount(i);
+            n += bucketCounts[i];
+        }
+        if (n == 0)
+            return 0;
+
+        long max = getMax();
+        long target = Math.max(1, (long) Math.ceil(p*n));
+        long seen = 0;
+        for (int i = 0; i < NBUCKETS; i++) {
+            seen += bucketCounts[i];
+            if (seen >= target)
+                return Math.min(max, bucketHighestValue(i));
+        }
+        return max;
+    }
+
+    /**
+     * A one-line summary of the distribution.
+     *
+     * @param unit the value of one displayed unit, e.g., 1000 to
+     * display nanoseconds as microseconds
+     * @param unitName the name of the displayed unit
+     */
+    public String getSummary(double unit, String unitName)
+    {
+        return String.format("n = %d, mean = %.1f %s, p50 = %.1f, p90 = %.1f, p99 = %.1f, p99.9 = %.1f, max = %.1f %s",
+                             getCount(), getMean()/unit, unitName,
+                             getValueAtPercentile(0.5)/unit,
+                             getValueAtPercentile(0.9)/unit,
+                             getValueAtPercentile(0.99)/unit,
+                             getValueAtPercentile(0.999)/unit,
+                             getMax()/unit, unitName);
+    }
+}
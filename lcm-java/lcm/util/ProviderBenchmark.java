@@ -0,0 +1,545 @@
+package lcm.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import lcm.lcm.*;
+
+/**
+ * Measures the end-to-end latency, loss and sustained message rate of
+ * the LCM providers on the local host, sweeping message sizes and the
+ * number of concurrent publishers.
+ *
+ * By default every provider is tested within one JVM: each publisher
+ * thread has its own LCM instance (memq:// shares one, since it
+ * cannot cross instances), a separate instance subscribes, and the
+ * latency is measured one way from the send time carried in each
+ * message. With --remote, the subscriber is instead a second process
+ * running with --echo, which republishes every message, and the
+ * latency reported is the round trip.
+ *
+ * A file:// provider cannot deliver messages while they are being
+ * written, so for it the latency reported is the time spent in
+ * publish(), and the log is then replayed as fast as possible to
+ * count what was lost.
+ *
+ * <pre>
+ *   java -cp lcm.jar lcm.util.ProviderBenchmark
+ *   java -cp lcm.jar lcm.util.ProviderBenchmark --url tcpq://127.0.0.1:7700 --hub --sizes 16,65536
+ *
+ *   java -cp lcm.jar lcm.util.ProviderBenchmark --echo --url udpm://239.255.76.67:7667?ttl=0
+ *   java -cp lcm.jar lcm.util.ProviderBenchmark --remote --url udpm://239.255.76.67:7667?ttl=0
+ * </pre>
+ **/
+public class ProviderBenchmark
+{
+    static final String PING_CHANNEL = "LCM_BENCH_PING";
+    static final String PONG_CHANNEL = "LCM_BENCH_PONG";
+
+    /** Every message starts with its send time, run and publisher. **/
+    static final int HEADER_SIZE = 16;
+
+    static final String DEFAULT_URLS[] = {
+        "memq://", "udpm://239.255.76.67:7667?ttl=0", "tcpq://127.0.0.1:7700", "file://"
+    };
+
+    // udpm sends messages of up to 64000 bytes unfragmented.
+    static final int DEFAULT_SIZES[] = { 16, 256, 4096, 64000, 65536, 1<<20, 4<<20 };
+    static final int DEFAULT_PUBLISHERS[] = { 1, 4 };
+
+    ArrayList<String> urls = new ArrayList<String>();
+    int sizes[] = DEFAULT_SIZES;
+    int publishers[] = DEFAULT_PUBLISHERS;
+    int count;               // messages per publisher per run; 0: by size
+    double rate;             // per publisher, in Hz; 0: as fast as possible
+    double drainSeconds = 1.0;
+    boolean remote;
+    boolean hub;
+
+    int nextRun = 1;
+    HashSet<Integer> hubPorts = new HashSet<Integer>();
+
+    /** Collects the messages of one run. **/
+    static class Receiver
+    {
+        int run, size;
+        boolean recordLatency;
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long received;
+        long lastNanos;
+
+        Receiver(int run, int size, boolean recordLatency)
+        {
+            this.run = run;
+            this.size = size;
+            this.recordLatency = recordLatency;
+        }
+
+        synchronized void receive(LCMDataInputStream ins) throws IOException
+        {
+            // messages of an earlier run can still be in flight.
+            if (ins.available() != size)
+                return;
+            long sentNanos = ins.readLong();
+            if (ins.readInt() != run)
+                return;
+
+            long now = System.nanoTime();
+            if (recordLatency)
+                latency.record(now - sentNanos);
+            received++;
+            lastNanos = now;
+            notifyAll();
+        }
+
+        /** Waits until 'expected' messages have arrived, or none has
+         * arrived for 'quietNanos'. **/
+        synchronized void waitFor(long expected, long quietNanos) throws InterruptedException
+        {
+            long lastCount = received;
+            long lastProgress = System.nanoTime();
+
+            while (received < expected) {
+                long now = System.nanoTime();
+                if (received != lastCount) {
+                    lastCount = received;
+                    lastProgress = now;
+                }
+                long remaining = lastProgress + quietNanos - now;
+                if (remaining <= 0)
+                    break;
+                wait(Math.max(1, remaining/1000000));
+            }
+        }
+    }
+
+    /** Passes messages to the current run's receiver, so that the
+     * subscription outlives the runs. **/
+    static class Dispatcher implements LCMSubscriber
+    {
+        volatile Receiver receiver;
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+        {
+            Receiver r = receiver;
+            try {
+                if (r != null)
+                    r.receive(ins);
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    static class Publisher extends Thread
+    {
+        LCM lcm;
+        String channel;
+        int run, id, size, count;
+        long periodNanos;
+
+        LatencyHistogram publishTimes = new LatencyHistogram();
+        IOException error;
+
+        Publisher(LCM lcm, String channel, int run, int id, int size, int count, long periodNanos)
+        {
+            super("ProviderBenchmark publisher "+id);
+            this.lcm = lcm;
+            this.channel = channel;
+            this.run = run;
+            this.id = id;
+            this.size = size;
+            this.count = count;
+            this.periodNanos = periodNanos;
+        }
+
+        public void run()
+        {
+            byte buf[] = new byte[size];
+            long next = System.nanoTime();
+
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (periodNanos > 0) {
+                        long now;
+                        while ((now = System.nanoTime()) < next)
+                            LockSupport.parkNanos(next - now);
+                        next += periodNanos;
+                    }
+
+                    long sentNanos = System.nanoTime();
+                    putLong(buf, 0, sentNanos);
+                    putInt(buf, 8, run);
+                    putInt(buf, 12, id);
+                    lcm.publish(channel, buf, 0, size);
+                    publishTimes.record(System.nanoTime() - sentNanos);
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+    }
+
+    static void putLong(byte buf[], int offset, long v)
+    {
+        putInt(buf, offset, (int) (v>>>32));
+        putInt(buf, offset + 4, (int) v);
+    }
+
+    static void putInt(byte buf[], int offset, int v)
+    {
+        buf[offset + 0] = (byte) (v>>>24);
+        buf[offset + 1] = (byte) (v>>>16);
+        buf[offset + 2] = (byte) (v>>>8);
+        buf[offset + 3] = (byte) v;
+    }
+
+    /** Messages per publisher for a run, unless set with --count. **/
+    int messagesPerPublisher(int size)
+    {
+        if (count > 0)
+            return count;
+        return Math.max(20, Math.min(20000, (64<<20)/size));
+    }
+
+    static int max(int v[])
+    {
+        int m = 0;
+        for (int x : v)
+            m = Math.max(m, x);
+        return m;
+    }
+
+    static String pathOf(String url)
+    {
+        String s = url.substring(url.indexOf("://") + 3);
+        int q = s.indexOf('?');
+        return q < 0 ? s : s.substring(0, q);
+    }
+
+    /** Starts a TCPService in this process on the port of a tcpq:// URL. **/
+    void startHub(String url) throws InterruptedException
+    {
+        String addrport[] = pathOf(url).split(":");
+        final int port = addrport.length > 1 ? Integer.parseInt(addrport[1]) : 7700;
+        if (!hubPorts.add(port))
+            return;
+
+        Thread t = new Thread("ProviderBenchmark hub") {
+            public void run() {
+                try {
+                    new TCPService(port, false);
+                } catch (IOException ex) {
+                    System.err.println("TCPService: "+ex);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        // give it a moment to bind.
+        Thread.sleep(200);
+    }
+
+    void benchmark(String url) throws IOException, InterruptedException
+    {
+        if (remote && (url.startsWith("memq:") || url.startsWith("file:"))) {
+            System.err.println(url+": "+url.substring(0, 4)+":// cannot be tested across processes");
+            return;
+        }
+        if (url.startsWith("file:")) {
+            benchmarkFile(url);
+            return;
+        }
+        if (hub && url.startsWith("tcpq:"))
+            startHub(url);
+
+        boolean memq = url.startsWith("memq:");
+        LCM receiver = new LCM(url);
+        LCM senders[] = new LCM[max(publishers)];
+        for (int i = 0; i < senders.length; i++)
+            senders[i] = memq ? receiver : new LCM(url);
+
+        Dispatcher dispatcher = new Dispatcher();
+        receiver.subscribe(remote ? PONG_CHANNEL : PING_CHANNEL, dispatcher);
+
+        // lets the subscriptions propagate and the JIT compile the
+        // hot paths; not reported.
+        run(url, dispatcher, senders, 1, 64, 2000, false);
+
+        for (int size : sizes) {
+            for (int npublishers : publishers)
+                run(url, dispatcher, senders, npublishers, size, messagesPerPublisher(size), true);
+        }
+
+        receiver.close();
+        if (!memq) {
+            for (LCM lcm : senders)
+                lcm.close();
+        }
+    }
+
+    void run(String url, Dispatcher dispatcher, LCM senders[], int npublishers, int size, int count,
+             boolean report) throws InterruptedException
+    {
+        Receiver r = new Receiver(nextRun++, size, true);
+        dispatcher.receiver = r;
+
+        Publisher pubs[] = new Publisher[npublishers];
+        for (int i = 0; i < npublishers; i++)
+            pubs[i] = new Publisher(senders[i], PING_CHANNEL, r.run, i, size, count, periodNanos());
+
+        long startNanos = System.nanoTime();
+        for (Publisher p : pubs)
+            p.start();
+        long sent = join(pubs);
+
+        r.waitFor(sent, (long) (drainSeconds*1.0E9));
+        dispatcher.receiver = null;
+
+        if (report) {
+            synchronized (r) {
+                print(url, size, npublishers, sent, r.received, r.lastNanos - startNanos, r.latency);
+            }
+        }
+    }
+
+    /** Writes each run to a log with file://, then replays it. **/
+    void benchmarkFile(String url) throws IOException, InterruptedException
+    {
+        String path = pathOf(url);
+
+        for (int size : sizes) {
+            for (int npublishers : publishers) {
+                File f = path.length() > 0 ? new File(path) : File.createTempFile("lcm-bench", ".lcm");
+                f.deleteOnExit();
+
+                // the publishers share one writer, as they would share
+                // a logger.
+                LCM writer = new LCM("file://"+f.getPath()+"?mode=w");
+                int run = nextRun++;
+                int count = messagesPerPublisher(size);
+
+                Publisher pubs[] = new Publisher[npublishers];
+                for (int i = 0; i < npublishers; i++)
+                    pubs[i] = new Publisher(writer, PING_CHANNEL, run, i, size, count, periodNanos());
+
+                long startNanos = System.nanoTime();
+                for (Publisher p : pubs)
+                    p.start();
+                long sent = join(pubs);
+                writer.close();
+                long writeNanos = System.nanoTime() - startNanos;
+
+                LatencyHistogram publishTimes = new LatencyHistogram();
+                for (Publisher p : pubs)
+                    publishTimes.add(p.publishTimes);
+
+                Receiver r = new Receiver(run, size, false);
+                Dispatcher dispatcher = new Dispatcher();
+                dispatcher.receiver = r;
+                LCM reader = new LCM("file://"+f.getPath()+"?speed=0&delay=0");
+                reader.subscribe(PING_CHANNEL, dispatcher);
+                r.waitFor(sent, (long) (Math.max(drainSeconds, 2)*1.0E9));
+                reader.close();
+                f.delete();
+
+                synchronized (r) {
+                    print(url, size, npublishers, sent, r.received, writeNanos, publishTimes);
+                }
+            }
+        }
+    }
+
+    long periodNanos()
+    {
+        return rate > 0 ? (long) (1.0E9/rate) : 0;
+    }
+
+    /** Waits for the publishers, and returns the number of messages
+     * they sent. **/
+    static long join(Publisher pubs[]) throws InterruptedException
+    {
+        long sent = 0;
+        for (Publisher p : pubs) {
+            p.join();
+            if (p.error != null)
+                System.err.println(p.getName()+": "+p.error);
+            sent += p.publishTimes.getCount();
+        }
+        return sent;
+    }
+
+    static void printHeader()
+    {
+        System.out.printf("%-34s %8s %4s %8s %8s %7s %10s %9s %9s %9s %9s %9s %9s\n",
+                          "url", "size", "pubs", "sent", "received", "lost", "msg/s", "MB/s",
+                          "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+    }
+
+    static void print(String url, int size, int npublishers, long sent, long received, long nanos,
+                      LatencyHistogram latency)
+    {
+        double seconds = Math.max(nanos, 1)/1.0E9;
+        System.out.printf("%-34s %8d %4d %8d %8d %7d %10.0f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f\n",
+                          url, size, npublishers, sent, received, sent - received,
+                          received/seconds, received*(double) size/seconds/(1<<20),
+                          latency.getValueAtPercentile(0.5)/1000.0,
+                          latency.getValueAtPercentile(0.9)/1000.0,
+                          latency.getValueAtPercentile(0.99)/1000.0,
+                          latency.getValueAtPercentile(0.999)/1000.0,
+                          latency.getMax()/1000.0);
+    }
+
+    /** Republishes every message on the ping channel on the pong
+     * channel, for a --remote benchmark in another process. **/
+    void echo() throws IOException, InterruptedException
+    {
+        for (String url : urls) {
+            if (hub && url.startsWith("tcpq:"))
+                startHub(url);
+
+            LCM lcm = new LCM(url);
+            lcm.subscribe(PING_CHANNEL, new LCMSubscriber() {
+                byte buf[] = new byte[0];
+
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    try {
+                        int len = ins.available();
+                        if (buf.length < len)
+                            buf = new byte[len];
+                        ins.readFully(buf, 0, len);
+                        lcm.publish(PONG_CHANNEL, buf, 0, len);
+                    } catch (IOException ex) {
+                        System.err.println("echo: "+ex);
+                    }
+                }
+            });
+            System.out.println("Echoing "+PING_CHANNEL+" to "+PONG_CHANNEL+" on "+url);
+        }
+
+        while (true)
+            Thread.sleep(1000);
+    }
+
+    static int[] parseInts(String s)
+    {
+        String parts[] = s.split(",");
+        int v[] = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            v[i] = Integer.parseInt(parts[i].trim());
+        return v;
+    }
+
+    static void usage()
+    {
+        System.err.println("usage: lcm.util.ProviderBenchmark [options]");
+        System.err.println("");
+        System.err.println("Measures the latency, loss and message rate of LCM providers on this host.");
+        System.err.println("");
+        System.err.println("Options:");
+        System.err.println("  --url URL              Provider to test; may be repeated. Defaults to memq://,");
+        System.err.println("                         udpm://239.255.76.67:7667?ttl=0, tcpq://127.0.0.1:7700");
+        System.err.println("                         (with --hub) and file:// (a temporary log).");
+        System.err.println("  --sizes N,N,...        Message sizes in bytes, at least "+HEADER_SIZE+".");
+        System.err.println("  --publishers N,N,...   Numbers of concurrent publishers.");
+        System.err.println("  --count N              Messages per publisher in each run.");
+        System.err.println("  --rate HZ              Messages per second per publisher; 0 for no limit.");
+        System.err.println("  --drain SECONDS        How long to wait for late messages.");
+        System.err.println("  --hub                  Run a TCPService hub for each tcpq:// URL.");
+        System.err.println("  --echo                 Echo messages for a --remote benchmark.");
+        System.err.println("  --remote               Measure round trips through an --echo process.");
+        System.err.println("                         Not possible with memq:// or file://.");
+        System.err.println("  -h, --help             Shows this help text and exits");
+        System.exit(1);
+    }
+
+    public static void main(String args[])
+    {
+        ProviderBenchmark bench = new ProviderBenchmark();
+        boolean echo = false;
+
+        try {
+            for (int optind = 0; optind < args.length; optind++) {
+                String c = args[optind];
+                boolean hasParam = optind + 1 < args.length;
+
+                if (c.equals("-h") || c.equals("--help")) {
+                    usage();
+                } else if (c.equals("--hub")) {
+                    bench.hub = true;
+                } else if (c.equals("--echo")) {
+                    echo = true;
+                } else if (c.equals("--remote")) {
+                    bench.remote = true;
+                } else if (!hasParam) {
+                    usage();
+                } else if (c.equals("--url")) {
+                    bench.urls.add(args[++optind]);
+                } else if (c.equals("--sizes")) {
+                    bench.sizes = parseInts(args[++optind]);
+                } else if (c.equals("--publishers")) {
+                    bench.publishers = parseInts(args[++optind]);
+                } else if (c.equals("--count")) {
+                    bench.count = Integer.parseInt(args[++optind]);
+                } else if (c.equals("--rate")) {
+                    bench.rate = Double.parseDouble(args[++optind]);
+                } else if (c.equals("--drain")) {
+                    bench.drainSeconds = Double.parseDouble(args[++optind]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (NumberFormatException ex) {
+            usage();
+        }
+
+        for (int size : bench.sizes) {
+            if (size < HEADER_SIZE)
+                usage();
+        }
+
+        // a file:// benchmark is local; don't silently run it instead.
+        for (String url : bench.urls) {
+            if (bench.remote && url.startsWith("file:")) {
+                System.err.println(url+": file:// cannot be tested across processes");
+                usage();
+            }
+        }
+
+        if (bench.urls.isEmpty()) {
+            bench.urls.addAll(Arrays.asList(DEFAULT_URLS));
+            bench.hub = true;
+        }
+
+        try {
+            if (echo) {
+                bench.echo();
+                return;
+            }
+
+            if (bench.remote)
+                System.out.println("Latencies are round trips through an --echo process.");
+            for (String url : bench.urls) {
+                if (url.startsWith("file:") && !bench.remote)
+                    System.out.println("For file://, latencies are publish() times and msg/s is the write rate.");
+            }
+            printHeader();
+
+            for (String url : bench.urls) {
+                try {
+                    bench.benchmark(url);
+                } catch (IOException ex) {
+                    System.err.println(url+": "+ex);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("ProviderBenchmark: "+ex);
+        } catch (InterruptedException ex) {
+        }
+
+        // stop the providers' and hubs' threads.
+        System.exit(0);
+    }
+}
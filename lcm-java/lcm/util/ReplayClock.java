@@ -0,0 +1,183 @@
+package lcm.util;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * Paces the replay of timestamped events against the local monotonic
+ * clock. Each event is released at an absolute deadline: its
+ * timestamp's offset from an anchor event, divided by the playback
+ * speed, after the local time at which the anchor was released. Since
+ * deadlines are absolute, rounding errors and oversleeping do not
+ * accumulate over a long replay.
+ *
+ * Waiting parks the thread until shortly before the deadline and then
+ * spins, which releases events within a few microseconds of their
+ * deadline at the cost of some CPU time. The lateness of every event
+ * is recorded in a LatencyHistogram.
+ *
+ * A ReplayClock is not thread-safe; it is meant to be driven by a
+ * single replay thread.
+ **/
+public class ReplayClock
+{
+    /** Default length of the final busy-wait before a deadline. **/
+    public static final long DEFAULT_SPIN_NANOS = 100000;
+
+    double  speed;
+    long    spinNanos;
+
+    boolean anchored;
+    long    anchorUtime;  // log time of the anchor event
+    long    anchorNanos;  // local time at which the anchor was due
+    long    lastUtime;
+    long    lastDeadline;
+
+    // how many nanoseconds after its deadline each event was released
+    LatencyHistogram lateness = new LatencyHistogram();
+
+    /**
+     * @param speed playback speed; values less than or equal to zero
+     * release events as fast as possible
+     */
+    public ReplayClock(double speed)
+    {
+        this(speed, DEFAULT_SPIN_NANOS);
+    }
+
+    /**
+     * @param speed playback speed; values less than or equal to zero
+     * release events as fast as possible
+     * @param spinNanos how long before each deadline to stop parking
+     * and start spinning
+     */
+    public ReplayClock(double speed, long spinNanos)
+    {
+        this.speed = speed;
+        this.spinNanos = Math.max(0, spinNanos);
+    }
+
+    /** Changes the playback speed. The next event becomes the new
+     * anchor, so the change takes effect without a jump. **/
+    public void setSpeed(double speed)
+    {
+        if (speed == this.speed)
+            return;
+
+        this.speed = speed;
+        reset();
+    }
+
+    public double getSpeed()
+    {
+        return speed;
+    }
+
+    /** Makes the next event the anchor, e.g., after a seek or a
+     * pause. **/
+    public void reset()
+    {
+        anchored = false;
+    }
+
+    /**
+     * Waits until the event with timestamp 'utime' is due.
+     *
+     * @param utime the event's timestamp in microseconds
+     * @return how many nanoseconds after its deadline the event was
+     * released
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting
+     */
+    public long waitFor(long utime) throws InterruptedException
+    {
+        if (speed <= 0)
+            return 0;
+
+        long now = System.nanoTime();
+
+        // The first event, and any event whose timestamp goes
+        // backwards, starts a new schedule rather than being released
+        // immediately and making every later event late.
+        if (!anchored || utime < lastUtime) {
+            anchorUtime = utime;
+            anchorNanos = anchored ? Math.max(lastDeadline, now) : now;
+            anchored = true;
+        }
+
+        long deadline = anchorNanos + (long) ((utime - anchorUtime)*1000.0/speed);
+        lastUtime = utime;
+        lastDeadline = deadline;
+
+        while (true) {
+            long remaining = deadline - now;
+            if (remaining <= spinNanos)
+                break;
+
+            LockSupport.parkNanos(remaining - spinNanos);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            now = System.nanoTime();
+        }
+
+        while (now < deadline)
+            now = System.nanoTime();
+
+        long latenessNanos = now - deadline;
+        lateness.record(latenessNanos);
+        return latenessNanos;
+    }
+
+    /** Number of events released at real-time pacing so far. **/
+    public long getCount()
+    {
+        return lateness.getCount();
+    }
+
+    public long getMaxLatenessNanos()
+    {
+        return lateness.getMax();
+    }
+
+    public double getMeanLatenessNanos()
+    {
+        return lateness.getMean();
+    }
+
+    /** Returns the p'th quantile of lateness (e.g., p = 0.99) in
+     * nanoseconds, at the resolution of the histogram. **/
+    public long getLatenessPercentileNanos(double p)
+    {
+        return lateness.getValueAtPercentile(p);
+    }
+
+    /** Returns the lateness histogram, in nanoseconds. **/
+    public LatencyHistogram getLatenessHistogram()
+    {
+        return lateness;
+    }
+
+    /** Clears the lateness statistics. **/
+    public void clearStatistics()
+    {
+        lateness.reset();
+    }
+
+    /** A one-line summary of the lateness statistics. **/
+    public String getLatenessSummary()
+    {
+        return "lateness: "+lateness.getSummary(1000.0, "us");
+    }
+
+    static final double PERCENTILES[] = { 0.5, 0.9, 0.99, 0.999, 0.9999, 1.0 };
+    static final String PERCENTILE_NAMES[] = { "p50", "p90", "p99", "p99.9", "p99.99", "max" };
+
+    /** A multi-line listing of the lateness percentiles. **/
+    public String getLatenessPercentileString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < PERCENTILES.length; i++)
+            sb.append(String.format("  %-7s %12.1f us\n", PERCENTILE_NAMES[i],
+                                    lateness.getValueAtPercentile(PERCENTILES[i])/1000.0));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package lcmbench;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import lcm.lcm.*;
+
+/**
+ * Encode, decode and copy() throughput of generated types.
+ *
+ * Run with the GC profiler to also report allocation rates:
+ *
+ * <pre>
+ *   bazel run //test/java:benchmarks -- -prof gc CodecBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({ "primitives_t", "primitives_list_t", "multidim_array_t", "node_t", "large_array_t" })
+    public String type;
+
+    /** Scales the arrays in the message (see Messages.make). **/
+    @Param({ "16", "4096", "262144" })
+    public int size;
+
+    Messages messages;
+    LCMEncodable msg;
+    byte encoded[];
+    LCMDataOutputStream outs;
+
+    @Setup
+    public void setup() throws IOException {
+        messages = Messages.forType(type);
+        msg = messages.make(size);
+        encoded = Messages.encode(msg);
+        outs = new LCMDataOutputStream(encoded.length);
+    }
+
+    /** Encodes into a reused buffer, as LCM.publish does. **/
+    @Benchmark
+    public int encode() throws IOException {
+        outs.reset();
+        msg.encode(outs);
+        return outs.size();
+    }
+
+    @Benchmark
+    public LCMEncodable decode() throws IOException {
+        return messages.decode(encoded);
+    }
+
+    @Benchmark
+    public LCMEncodable copy() {
+        return messages.copy(msg);
+    }
+}
@@ -0,0 +1,77 @@
+package lcmbench;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import lcm.lcm.*;
+
+/**
+ * Cost of LCM.receiveMessage dispatching one message to a number of
+ * subscribers, with and without each subscriber decoding it, and with
+ * and without timing each subscriber (the lcm.dispatch_timing
+ * property).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({ "1", "4", "16" })
+    public int subscribers;
+
+    /** Whether each subscriber decodes a primitives_list_t. **/
+    @Param({ "false", "true" })
+    public boolean decode;
+
+    /** Whether LCM records each subscriber's dispatch time. **/
+    @Param({ "false", "true" })
+    public boolean timed;
+
+    LCM lcm;
+    byte data[];
+
+    // written by the subscribers, so their work cannot be optimized away.
+    long sink;
+
+    @Setup
+    public void setup() throws IOException {
+        // memq starts no network threads; receiveMessage is called
+        // directly below.
+        System.setProperty("lcm.dispatch_timing", Boolean.toString(timed));
+        lcm = new LCM("memq://");
+        data = Messages.encode(Messages.forType("primitives_list_t").make(16));
+
+        for (int i = 0; i < subscribers; i++) {
+            lcm.subscribe("BENCH_.*", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    try {
+                        if (decode)
+                            sink += new lcmtest.primitives_list_t(ins).num_items;
+                        else
+                            sink += ins.available();
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+        }
+
+        // let LCM build its per-channel subscriber list.
+        lcm.receiveMessage("BENCH_CHANNEL", data, 0, data.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        lcm.close();
+    }
+
+    @Benchmark
+    public long receiveMessage() {
+        lcm.receiveMessage("BENCH_CHANNEL", data, 0, data.length);
+        return sink;
+    }
+}
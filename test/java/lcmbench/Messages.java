@@ -0,0 +1,159 @@
+package lcmbench;
+
+import java.io.*;
+
+import lcm.lcm.*;
+import lcmtest.*;
+
+/** Builds, decodes and copies the message types used by the
+ * benchmarks, without reflection. **/
+abstract class Messages {
+    static final String TYPES[] = {
+        "primitives_t", "primitives_list_t", "multidim_array_t", "node_t", "large_array_t"
+    };
+
+    /** Returns a message of the given type; 'size' scales its arrays. **/
+    abstract LCMEncodable make(int size);
+
+    abstract LCMEncodable decode(byte data[]) throws IOException;
+
+    abstract LCMEncodable copy(LCMEncodable msg);
+
+    static Messages forType(String type) {
+        if (type.equals("primitives_t")) {
+            return new Messages() {
+                LCMEncodable make(int size) {
+                    return makePrimitives(size);
+                }
+                LCMEncodable decode(byte data[]) throws IOException {
+                    return new primitives_t(data);
+                }
+                LCMEncodable copy(LCMEncodable msg) {
+                    return ((primitives_t) msg).copy();
+                }
+            };
+        }
+        if (type.equals("primitives_list_t")) {
+            return new Messages() {
+                LCMEncodable make(int size) {
+                    primitives_list_t msg = new primitives_list_t();
+                    msg.num_items = size;
+                    msg.items = new primitives_t[size];
+                    for (int i = 0; i < size; i++)
+                        msg.items[i] = makePrimitives(i % 16);
+                    return msg;
+                }
+                LCMEncodable decode(byte data[]) throws IOException {
+                    return new primitives_list_t(data);
+                }
+                LCMEncodable copy(LCMEncodable msg) {
+                    return ((primitives_list_t) msg).copy();
+                }
+            };
+        }
+        if (type.equals("multidim_array_t")) {
+            return new Messages() {
+                LCMEncodable make(int size) {
+                    multidim_array_t msg = new multidim_array_t();
+                    msg.size_a = 4;
+                    msg.size_b = 4;
+                    msg.size_c = Math.max(1, size / 16);
+                    msg.data = new int[msg.size_a][msg.size_b][msg.size_c];
+                    for (int a = 0; a < msg.size_a; a++)
+                        for (int b = 0; b < msg.size_b; b++)
+                            for (int c = 0; c < msg.size_c; c++)
+                                msg.data[a][b][c] = a * b * c;
+                    msg.strarray = new String[2][msg.size_c];
+                    for (int i = 0; i < 2; i++)
+                        for (int c = 0; c < msg.size_c; c++)
+                            msg.strarray[i][c] = "str" + c;
+                    return msg;
+                }
+                LCMEncodable decode(byte data[]) throws IOException {
+                    return new multidim_array_t(data);
+                }
+                LCMEncodable copy(LCMEncodable msg) {
+                    return ((multidim_array_t) msg).copy();
+                }
+            };
+        }
+        if (type.equals("node_t")) {
+            return new Messages() {
+                LCMEncodable make(int size) {
+                    return makeTree(Math.max(1, size));
+                }
+                LCMEncodable decode(byte data[]) throws IOException {
+                    return new node_t(data);
+                }
+                LCMEncodable copy(LCMEncodable msg) {
+                    return ((node_t) msg).copy();
+                }
+            };
+        }
+        if (type.equals("large_array_t")) {
+            return new Messages() {
+                LCMEncodable make(int size) {
+                    lcmbench.large_array_t msg = new lcmbench.large_array_t();
+                    msg.utime = 1234567890L;
+                    msg.num_doubles = size;
+                    msg.doubles = new double[size];
+                    msg.num_bytes = size * 8;
+                    msg.bytes = new byte[size * 8];
+                    msg.num_points = size;
+                    msg.points = new float[size][3];
+                    for (int i = 0; i < size; i++) {
+                        msg.doubles[i] = i * 0.5;
+                        msg.points[i][0] = i;
+                        msg.points[i][1] = -i;
+                        msg.points[i][2] = i * 0.25f;
+                    }
+                    for (int i = 0; i < msg.num_bytes; i++)
+                        msg.bytes[i] = (byte) i;
+                    return msg;
+                }
+                LCMEncodable decode(byte data[]) throws IOException {
+                    return new lcmbench.large_array_t(data);
+                }
+                LCMEncodable copy(LCMEncodable msg) {
+                    return ((lcmbench.large_array_t) msg).copy();
+                }
+            };
+        }
+        throw new IllegalArgumentException("unknown type " + type);
+    }
+
+    static primitives_t makePrimitives(int nranges) {
+        primitives_t msg = new primitives_t();
+        msg.i8 = 1;
+        msg.i16 = 2;
+        msg.i64 = 3;
+        msg.num_ranges = nranges;
+        msg.ranges = new short[nranges];
+        for (int i = 0; i < nranges; i++)
+            msg.ranges[i] = (short) i;
+        msg.position = new float[] { 1, 2, 3 };
+        msg.orientation = new double[] { 1, 0, 0, 0 };
+        msg.name = "primitives";
+        msg.enabled = true;
+        return msg;
+    }
+
+    /** A tree of about 'n' nodes with a branching factor of 4. **/
+    static node_t makeTree(int n) {
+        node_t node = new node_t();
+        int remaining = n - 1;
+        node.num_children = Math.min(4, remaining);
+        node.children = new node_t[node.num_children];
+        for (int i = 0; i < node.num_children; i++) {
+            int share = remaining / node.num_children + (i < remaining % node.num_children ? 1 : 0);
+            node.children[i] = makeTree(share);
+        }
+        return node;
+    }
+
+    static byte[] encode(LCMEncodable msg) throws IOException {
+        LCMDataOutputStream outs = new LCMDataOutputStream();
+        msg.encode(outs);
+        return outs.toByteArray();
+    }
+}
@@ -0,0 +1,81 @@
+package lcmbench;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import lcm.lcm.*;
+
+/**
+ * Cost to the caller of LCM.publish with each provider. Nobody
+ * subscribes, so this measures the sending side only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark {
+    static final int TCP_PORT = 7799;
+
+    @Param({ "memq", "udpm", "tcpq", "file" })
+    public String provider;
+
+    /** Payload size in bytes; the largest is fragmented by udpm. **/
+    @Param({ "64", "4096", "100000" })
+    public int size;
+
+    LCM lcm;
+    byte data[];
+    Thread hub;
+    File logFile;
+
+    @Setup
+    public void setup() throws Exception {
+        data = new byte[size];
+        String url;
+
+        if (provider.equals("memq")) {
+            url = "memq://";
+        } else if (provider.equals("udpm")) {
+            url = "udpm://239.255.76.67:7667?ttl=0";
+        } else if (provider.equals("tcpq")) {
+            // TCPService runs its hub loop in its constructor.
+            hub = new Thread() {
+                public void run() {
+                    try {
+                        new TCPService(TCP_PORT, false);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            };
+            hub.setDaemon(true);
+            hub.start();
+            Thread.sleep(200);
+            url = "tcpq://127.0.0.1:" + TCP_PORT;
+        } else {
+            logFile = File.createTempFile("lcm-publish-bench", ".lcm");
+            logFile.deleteOnExit();
+            url = "file://" + logFile.getPath() + "?mode=w";
+        }
+
+        lcm = new LCM(url);
+    }
+
+    @TearDown
+    public void tearDown() {
+        lcm.close();
+        if (hub != null)
+            hub.interrupt();
+        if (logFile != null)
+            logFile.delete();
+    }
+
+    @Benchmark
+    public void publish() throws IOException {
+        lcm.publish("BENCH_CHANNEL", data, 0, data.length);
+    }
+}
@@ -0,0 +1,57 @@
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import lcm.spy.*;
+
+public class TestChannelStatsEngine {
+    @Test
+    public void testRollingWindow() {
+        ChannelStatsEngine engine = new ChannelStatsEngine(1.0, 10);
+
+        // 100 messages of 50 bytes at 100 Hz, from t = 1 s.
+        for (int i = 0; i < 100; i++)
+            engine.messageReceived("POSE", 0x1234, 50, 1000000 + i * 10000);
+        engine.messageReceived("STATUS", -1, 4, 1500000);
+        engine.decodeError("STATUS", 1500000);
+
+        List<ChannelStatsEngine.Stats> snapshot = engine.snapshot(2000000);
+        assertEquals(2, snapshot.size());
+
+        ChannelStatsEngine.Stats pose = snapshot.get(0);
+        assertEquals("POSE", pose.channel);
+        assertEquals(0x1234, pose.fingerprint);
+        assertEquals(100, pose.received);
+        assertEquals(100.0, pose.hz, 1e-6);
+        assertEquals(5000.0, pose.bandwidth, 1e-6);
+        assertEquals(10000, pose.minInterval);
+        assertEquals(10000, pose.maxInterval);
+        assertEquals(10000, pose.p50Interval);
+        assertEquals(10000, pose.p99Interval);
+        assertEquals(0, pose.getJitter());
+        assertEquals(0, pose.errors);
+
+        ChannelStatsEngine.Stats status = snapshot.get(1);
+        assertEquals("STATUS", status.channel);
+        assertEquals(1, status.errors);
+        assertEquals(1, status.windowErrors);
+        assertEquals(-1, status.minInterval);
+
+        // once the messages fall out of the window, only the totals remain.
+        pose = engine.getStats("POSE", 5000000);
+        assertEquals(100, pose.received);
+        assertEquals(0.0, pose.hz, 0);
+        assertEquals(-1, pose.minInterval);
+
+        // a late message gives one long interval.
+        engine.messageReceived("POSE", 0x1234, 50, 5000000);
+        pose = engine.getStats("POSE", 5000000);
+        assertEquals(3010000, pose.maxInterval);
+
+        engine.clear();
+        assertNull(engine.getStats("POSE", 5000000));
+        assertTrue(engine.snapshot(5000000).isEmpty());
+    }
+}
@@ -0,0 +1,177 @@
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+import lcm.lcm.*;
+import lcm.spy.*;
+import lcm.util.*;
+
+public class TestLCMTypeDatabase {
+    /** A minimal LCM type, written the way lcm-gen writes them. **/
+    public static final class point_t implements LCMEncodable {
+        public static final long LCM_FINGERPRINT = 0x0123456789abcdefL;
+
+        public int x;
+        public int num_values;
+        public double values[];
+
+        public point_t() {
+        }
+
+        public point_t(DataInput ins) throws IOException {
+            if (ins.readLong() != LCM_FINGERPRINT)
+                throw new IOException("LCM Decode error: bad fingerprint");
+            _decodeRecursive(ins);
+        }
+
+        public void _decodeRecursive(DataInput ins) throws IOException {
+            x = ins.readInt();
+            num_values = ins.readInt();
+            values = new double[num_values];
+            for (int i = 0; i < num_values; i++)
+                values[i] = ins.readDouble();
+        }
+
+        public void encode(DataOutput outs) throws IOException {
+            outs.writeLong(LCM_FINGERPRINT);
+            _encodeRecursive(outs);
+        }
+
+        public void _encodeRecursive(DataOutput outs) throws IOException {
+            outs.writeInt(x);
+            outs.writeInt(num_values);
+            for (int i = 0; i < num_values; i++)
+                outs.writeDouble(values[i]);
+        }
+    }
+
+    // Types whose fingerprints are computed the way lcm-gen's are.
+    public static final class mode_t {
+        public static final long LCM_FINGERPRINT = 0x0badc0ffee000001L;
+
+        public static final long _hashRecursive(ArrayList<Class<?>> clss) {
+            return LCM_FINGERPRINT;
+        }
+    }
+
+    public static final class pose_t {
+        public static final long LCM_FINGERPRINT;
+        public static final long LCM_FINGERPRINT_BASE = 0x8000000000001234L;
+
+        static {
+            LCM_FINGERPRINT = _hashRecursive(new ArrayList<Class<?>>());
+        }
+
+        public static long _hashRecursive(ArrayList<Class<?>> classes) {
+            if (classes.contains(pose_t.class))
+                return 0L;
+
+            classes.add(pose_t.class);
+            long hash = LCM_FINGERPRINT_BASE
+                ;
+            classes.remove(classes.size() - 1);
+            return (hash<<1) + ((hash>>63)&1);
+        }
+    }
+
+    public static final class tree_t {
+        public pose_t a, b;
+        public mode_t mode;
+        public tree_t children[];
+
+        public static final long LCM_FINGERPRINT;
+        public static final long LCM_FINGERPRINT_BASE = 0x1122334455667788L;
+
+        static {
+            LCM_FINGERPRINT = _hashRecursive(new ArrayList<Class<?>>());
+        }
+
+        public static long _hashRecursive(ArrayList<Class<?>> classes) {
+            if (classes.contains(tree_t.class))
+                return 0L;
+
+            classes.add(tree_t.class);
+            long hash = LCM_FINGERPRINT_BASE
+                + pose_t._hashRecursive(classes)
+                + pose_t._hashRecursive(classes)
+                + mode_t._hashRecursive(classes)
+                + tree_t._hashRecursive(classes)
+                ;
+            classes.remove(classes.size() - 1);
+            return (hash<<1) + ((hash>>63)&1);
+        }
+    }
+
+    static byte[] encode(LCMEncodable msg) throws IOException {
+        LCMDataOutputStream outs = new LCMDataOutputStream();
+        msg.encode(outs);
+        return outs.toByteArray();
+    }
+
+    @Test
+    public void testDecoder() throws Exception {
+        LCMTypeDatabase.Decoder decoder = LCMTypeDatabase.createDecoder(point_t.class);
+
+        point_t msg = new point_t();
+        msg.x = 7;
+        msg.num_values = 2;
+        msg.values = new double[] { 1.5, -2.5 };
+
+        point_t decoded = (point_t) decoder.decode(new LCMDataInputStream(encode(msg)));
+        assertEquals(7, decoded.x);
+        assertArrayEquals(msg.values, decoded.values, 0);
+
+        // both the type's own errors and runtime exceptions from corrupt
+        // messages are reported as IOExceptions.
+        byte data[] = encode(msg);
+        data[0] ^= 1;
+        try {
+            decoder.decode(new LCMDataInputStream(data));
+            fail();
+        } catch (IOException ex) {
+        }
+
+        msg.num_values = -1;
+        msg.values = new double[0];
+        try {
+            decoder.decode(new LCMDataInputStream(encode(msg)));
+            fail();
+        } catch (IOException ex) {
+        }
+    }
+
+    @Test
+    public void testScannedFingerprints() throws Exception {
+        // scan the jar or directory holding this test, without loading
+        // any more classes from it.
+        String cp = new File(TestLCMTypeDatabase.class.getProtectionDomain()
+                             .getCodeSource().getLocation().toURI()).getPath();
+        List<ClassInfo> infos = ClassDiscoverer.scanClasses(cp);
+        Map<String, Long> fingerprints = ClassInfo.computeFingerprints(infos);
+
+        assertEquals(Long.valueOf(point_t.LCM_FINGERPRINT), fingerprints.get(point_t.class.getName()));
+        assertEquals(Long.valueOf(mode_t.LCM_FINGERPRINT), fingerprints.get(mode_t.class.getName()));
+        assertEquals(Long.valueOf(pose_t.LCM_FINGERPRINT), fingerprints.get(pose_t.class.getName()));
+        assertEquals(Long.valueOf(tree_t.LCM_FINGERPRINT), fingerprints.get(tree_t.class.getName()));
+    }
+
+    @Test
+    public void testGeneratedFingerprints() throws Exception {
+        // the imitations above only cover what lcm-gen was known to emit
+        // when they were written; check the scanner against the real thing.
+        String cp = new File(lcmtest.node_t.class.getProtectionDomain()
+                             .getCodeSource().getLocation().toURI()).getPath();
+        List<ClassInfo> infos = ClassDiscoverer.scanClasses(cp);
+        Map<String, Long> fingerprints = ClassInfo.computeFingerprints(infos);
+
+        assertEquals(Long.valueOf(lcmtest.node_t.LCM_FINGERPRINT),
+                     fingerprints.get(lcmtest.node_t.class.getName()));
+        assertEquals(Long.valueOf(lcmtest.multidim_array_t.LCM_FINGERPRINT),
+                     fingerprints.get(lcmtest.multidim_array_t.class.getName()));
+        assertEquals(Long.valueOf(lcmtest.primitives_list_t.LCM_FINGERPRINT),
+                     fingerprints.get(lcmtest.primitives_list_t.class.getName()));
+    }
+}
@@ -0,0 +1,578 @@
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.Test;
+
+import lcm.logging.Log;
+import lcm.logging.LogExporter;
+import lcm.logging.LogScanner;
+import lcm.logging.MergedLog;
+import lcm.util.BufferedRandomAccessFile;
+
+public class TestLog {
+    static final int NUM_EVENTS = 2000;
+
+    static Log.Event makeEvent(long i) {
+        Log.Event e = new Log.Event();
+        e.eventNumber = i;
+        e.utime = 1000000 + i * 1000;
+        e.channel = "CHANNEL_" + (i % 7);
+        e.data = new byte[(int) (1 + (i * 37) % 1500)];
+        for (int j = 0; j < e.data.length; j++)
+            e.data[j] = (byte) (i + j);
+
+        // plant a fake sync word in some payloads
+        if (e.data.length > 64 && i % 3 == 0) {
+            e.data[20] = (byte) 0xED;
+            e.data[21] = (byte) 0xA1;
+            e.data[22] = (byte) 0xDA;
+            e.data[23] = (byte) 0x01;
+        }
+        return e;
+    }
+
+    static void assertEventEquals(Log.Event expected, Log.Event actual) {
+        assertEquals(expected.eventNumber, actual.eventNumber);
+        assertEquals(expected.utime, actual.utime);
+        assertEquals(expected.channel, actual.channel);
+        assertArrayEquals(expected.data, actual.data);
+    }
+
+    static File writeLog(int blockSize) throws IOException {
+        File f = File.createTempFile("lcm-test-log", ".lcm");
+        f.deleteOnExit();
+        Log log = new Log(f.getPath(), "rw", blockSize);
+        for (int i = 0; i < NUM_EVENTS; i++)
+            log.write(makeEvent(i));
+        log.close();
+        return f;
+    }
+
+    static void checkReadAll(File f) throws IOException {
+        checkReadAll(f, 0);
+    }
+
+    static void checkReadAll(File f, int readAhead) throws IOException {
+        Log log = new Log(f.getPath(), "r");
+        if (readAhead > 0)
+            log.enableReadAhead(readAhead);
+        for (int i = 0; i < NUM_EVENTS; i++)
+            assertEventEquals(makeEvent(i), log.readNext());
+        try {
+            log.readNext();
+            fail("expected EOF");
+        } catch (EOFException ex) {
+        }
+        log.close();
+    }
+
+    static void checkSeek(File f) throws IOException {
+        Log log = new Log(f.getPath(), "r");
+        long last = -1;
+        for (double frac = 0; frac < 0.95; frac += 0.1) {
+            log.seekPositionFraction(frac);
+            Log.Event e = log.readNext();
+            assertEventEquals(makeEvent(e.eventNumber), e);
+            assertTrue(e.eventNumber >= last);
+            assertEquals(frac, log.getPositionFraction(), 0.05);
+            last = e.eventNumber;
+        }
+        log.close();
+    }
+
+    @Test
+    public void testPlainLog() throws Exception {
+        File f = writeLog(0);
+        Log log = new Log(f.getPath(), "r");
+        assertFalse(log.isBlockCompressed());
+        log.close();
+        checkReadAll(f);
+        checkSeek(f);
+    }
+
+    @Test
+    public void testBlockCompressedLog() throws Exception {
+        File f = writeLog(64 * 1024);
+        Log log = new Log(f.getPath(), "r");
+        assertTrue(log.isBlockCompressed());
+        log.close();
+        checkReadAll(f);
+        checkSeek(f);
+    }
+
+    @Test
+    public void testBlockCompressedLogWithoutIndex() throws Exception {
+        File f = writeLog(64 * 1024);
+
+        // drop the trailing index, as if the writer had crashed.
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        checkReadAll(f);
+        checkSeek(f);
+    }
+
+    /** Overwrites the int at 'offset' in 'f'. **/
+    static void patchInt(File f, long offset, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(offset);
+        raf.writeInt(value);
+        raf.close();
+    }
+
+    /** Returns the file offset of entry 'i' of the trailing index. **/
+    static long indexEntryOffset(File f, int i) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.seek(raf.length() - 12);
+        long indexOffset = raf.readLong();
+        raf.close();
+        return indexOffset + 8 + 44 * i;
+    }
+
+    @Test
+    public void testBlockCompressedLogBadIndex() throws Exception {
+        // a huge or negative uncompressed length, or blocks out of
+        // order, make the reader walk the block headers instead.
+        File f = writeLog(16 * 1024);
+        patchInt(f, indexEntryOffset(f, 1) + 36, Integer.MAX_VALUE);
+        checkReadAll(f);
+
+        f = writeLog(16 * 1024);
+        patchInt(f, indexEntryOffset(f, 1) + 36, -1);
+        checkReadAll(f);
+
+        f = writeLog(16 * 1024);
+        patchInt(f, indexEntryOffset(f, 2) + 4, 0);
+        checkReadAll(f);
+        checkSeek(f);
+    }
+
+    @Test
+    public void testBlockCompressedLogBadHeader() throws Exception {
+        File f = writeLog(16 * 1024);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(indexEntryOffset(f, 1));
+        long block1Offset = raf.readLong();
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        // without an index, a damaged header ends the usable data.
+        patchInt(f, block1Offset + 32, Integer.MAX_VALUE);
+        Log log = new Log(f.getPath(), "r");
+        int n = 0;
+        try {
+            while (true) {
+                assertEventEquals(makeEvent(n), log.readNext());
+                n++;
+            }
+        } catch (EOFException ex) {
+        }
+        log.close();
+        assertTrue(n > 0 && n < NUM_EVENTS);
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        checkReadAll(writeLog(0), 64 * 1024);
+        checkReadAll(writeLog(16 * 1024), 64 * 1024);
+    }
+
+    static void checkReadReuse(File f) throws IOException {
+        Log log = new Log(f.getPath(), "r");
+        Log.Event e = null;
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            e = log.readNext(e);
+            Log.Event expected = makeEvent(i);
+            assertEquals(expected.eventNumber, e.eventNumber);
+            assertEquals(expected.channel, e.channel);
+            assertEquals(expected.data.length, e.dataLength);
+            assertArrayEquals(expected.data, Arrays.copyOf(e.data, e.dataLength));
+        }
+        log.close();
+    }
+
+    @Test
+    public void testReadNextReuse() throws Exception {
+        checkReadReuse(writeLog(0));
+        checkReadReuse(writeLog(16 * 1024));
+    }
+
+    static void checkScanner(File f) throws IOException {
+        LogScanner scanner = new LogScanner(f.getPath(), 4096);
+        List<Log.Event> events = scanner.stream(true).collect(Collectors.toList());
+        scanner.close();
+
+        assertEquals(NUM_EVENTS, events.size());
+        for (int i = 0; i < NUM_EVENTS; i++)
+            assertEventEquals(makeEvent(i), events.get(i));
+    }
+
+    static void checkRanges(File f, int n) throws IOException {
+        LogScanner scanner = new LogScanner(f.getPath(), 4096);
+        List<Spliterator<Log.Event>> ranges = scanner.ranges(n);
+        assertTrue(ranges.size() > 1);
+        assertTrue(ranges.size() <= n);
+
+        // read the later ranges first; together, in order, they hold
+        // every event once.
+        List<List<Log.Event>> events = new ArrayList<List<Log.Event>>();
+        for (int i = ranges.size() - 1; i >= 0; i--)
+            events.add(0, StreamSupport.stream(ranges.get(i), false).collect(Collectors.toList()));
+        scanner.close();
+
+        int i = 0;
+        for (List<Log.Event> range : events) {
+            for (Log.Event e : range)
+                assertEventEquals(makeEvent(i++), e);
+        }
+        assertEquals(NUM_EVENTS, i);
+    }
+
+    @Test
+    public void testScanner() throws Exception {
+        checkScanner(writeLog(0));
+        checkScanner(writeLog(16 * 1024));
+    }
+
+    @Test
+    public void testScannerRanges() throws Exception {
+        checkRanges(writeLog(0), 7);
+        checkRanges(writeLog(16 * 1024), 7);
+    }
+
+    @Test
+    public void testMergedLog() throws Exception {
+        File a = writeLog(0);
+        File b = writeLog(16 * 1024);
+
+        // shift the second log by half an event period, so that the
+        // merge must interleave the two.
+        MergedLog logs = new MergedLog(new String[] { a.getPath(), b.getPath() },
+                                       new long[] { 0, 500 }, 0);
+        for (int i = 0; i < 2 * NUM_EVENTS; i++) {
+            Log.Event e = logs.readNext(true);
+            Log.Event expected = makeEvent(i / 2);
+            assertEquals(expected.eventNumber, e.eventNumber);
+            assertEquals(expected.utime + (i % 2) * 500, e.utime);
+            assertArrayEquals(expected.data, Arrays.copyOf(e.data, e.dataLength));
+        }
+        try {
+            logs.readNext();
+            fail("expected EOF");
+        } catch (EOFException ex) {
+        }
+        logs.close();
+    }
+
+    @Test
+    public void testMergedLogSeek() throws Exception {
+        File a = writeLog(0);
+
+        // a log a quarter as long, which ends at a's first quarter
+        File b = File.createTempFile("lcm-test-log", ".lcm");
+        b.deleteOnExit();
+        Log log = new Log(b.getPath(), "rw");
+        for (int i = 0; i < NUM_EVENTS / 4; i++)
+            log.write(makeEvent(i));
+        log.close();
+
+        // seeking by fraction follows the larger log, and moves the
+        // other to the same time rather than to its own middle.
+        MergedLog logs = new MergedLog(new String[] { b.getPath(), a.getPath() }, null, 0);
+        logs.seekPositionFraction(0.5);
+        Log.Event e = logs.readNext();
+        assertTrue(e.utime > makeEvent(NUM_EVENTS / 4).utime);
+        for (long last = e.utime; ; last = e.utime) {
+            try {
+                e = logs.readNext();
+            } catch (EOFException ex) {
+                break;
+            }
+            assertTrue(e.utime >= last);
+        }
+
+        // the start is the start of every log
+        logs.seekPositionFraction(0);
+        assertEquals(0, logs.readNext().eventNumber);
+        assertEquals(0, logs.readNext().eventNumber);
+        logs.close();
+    }
+
+    static void checkChannelFilter(File f) throws IOException {
+        Log log = new Log(f.getPath(), "r");
+        Log.ChannelFilter filter = new Log.ChannelFilter() {
+            public String filter(String channel) {
+                if (channel.equals("CHANNEL_3"))
+                    return "RENAMED";
+                return null;
+            }
+        };
+
+        Log.Event e = null;
+        for (int i = 3; i < NUM_EVENTS; i += 7) {
+            e = log.readNext(e, filter);
+            Log.Event expected = makeEvent(i);
+            assertEquals(expected.eventNumber, e.eventNumber);
+            assertEquals("RENAMED", e.channel);
+            assertArrayEquals(expected.data, Arrays.copyOf(e.data, e.dataLength));
+        }
+        try {
+            log.readNext(e, filter);
+            fail("expected EOF");
+        } catch (EOFException ex) {
+        }
+        log.close();
+    }
+
+    @Test
+    public void testChannelFilter() throws Exception {
+        checkChannelFilter(writeLog(0));
+        checkChannelFilter(writeLog(16 * 1024));
+    }
+
+    @Test
+    public void testExporter() throws Exception {
+        File in = writeLog(16 * 1024);
+        File all = File.createTempFile("lcm-test-export", ".lcm");
+        File renamed = File.createTempFile("lcm-test-export", ".lcm");
+        all.deleteOnExit();
+        renamed.deleteOnExit();
+
+        // export everything, and CHANNEL_3 renamed, in one pass.
+        List<LogExporter.Region> regions = new ArrayList<LogExporter.Region>();
+        regions.add(new LogExporter.Region(0, 1, all.getPath(), null));
+        regions.add(new LogExporter.Region(0, 1, renamed.getPath(), new Log.ChannelFilter() {
+            public String filter(String channel) {
+                return channel.equals("CHANNEL_3") ? "RENAMED" : null;
+            }
+        }));
+        LogExporter exporter = new LogExporter(in.getPath(), regions, null);
+        exporter.start();
+        assertTrue(exporter.waitFor());
+
+        checkReadAll(all);
+
+        Log log = new Log(renamed.getPath(), "r");
+        for (int i = 3; i < NUM_EVENTS; i += 7) {
+            Log.Event e = log.readNext();
+            assertEquals("RENAMED", e.channel);
+            assertArrayEquals(makeEvent(i).data, e.data);
+        }
+        try {
+            log.readNext();
+            fail("expected EOF");
+        } catch (EOFException ex) {
+        }
+        log.close();
+    }
+
+    @Test
+    public void testExporterFilterThrows() throws Exception {
+        File in = writeLog(0);
+        File out = File.createTempFile("lcm-test-export", ".lcm");
+        out.deleteOnExit();
+
+        List<LogExporter.Region> regions = new ArrayList<LogExporter.Region>();
+        regions.add(new LogExporter.Region(0, 1, out.getPath(), new Log.ChannelFilter() {
+            public String filter(String channel) {
+                if (channel.equals("CHANNEL_5"))
+                    throw new IllegalStateException("bad filter");
+                return channel;
+            }
+        }));
+        LogExporter exporter = new LogExporter(in.getPath(), regions, null);
+        exporter.start();
+
+        // the export fails, rather than hang, and its output is deleted.
+        try {
+            exporter.waitFor();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(exporter.isDone());
+        assertFalse(out.exists());
+    }
+
+    static final int LOG_MAGIC = 0xEDA1DA01;
+
+    /** The first occurrence of 'value' in b[from, to), byte by byte. **/
+    static int naiveIndexOfInt(byte b[], int from, int to, int value) {
+        for (int i = from; i + 4 <= to; i++) {
+            int v = ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) |
+                    ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+            if (v == value)
+                return i;
+        }
+        return -1;
+    }
+
+    static void putInt(byte b[], int offset, int value) {
+        for (int i = 0; i < 4; i++)
+            b[offset + i] = (byte) (value >>> (24 - 8 * i));
+    }
+
+    /** Bytes drawn from those of LOG_MAGIC, so that partial matches
+     * (and so false candidates for the word-wise scan) are common. **/
+    static byte[] magicNoise(int length, long seed) {
+        byte alphabet[] = { (byte) 0xED, (byte) 0xA1, (byte) 0xDA, (byte) 0x01 };
+        Random r = new Random(seed);
+        byte b[] = new byte[length];
+        for (int i = 0; i < length; i++)
+            b[i] = alphabet[r.nextInt(alphabet.length)];
+        return b;
+    }
+
+    @Test
+    public void testIndexOfInt() throws Exception {
+        // the magic at every offset, searched from every alignment
+        for (int pos = 0; pos < 40; pos++) {
+            byte b[] = new byte[48];
+            putInt(b, pos, LOG_MAGIC);
+            for (int from = 0; from < 8; from++) {
+                int expected = (from <= pos) ? pos : -1;
+                assertEquals(expected, BufferedRandomAccessFile.indexOfInt(b, from, b.length, LOG_MAGIC));
+                // ...and only if it lies entirely within [from, to)
+                assertEquals(-1, BufferedRandomAccessFile.indexOfInt(b, from, pos + 3, LOG_MAGIC));
+                assertEquals(expected, BufferedRandomAccessFile.indexOfInt(b, from, pos + 4, LOG_MAGIC));
+            }
+        }
+
+        // a false candidate just before the real one, at every alignment
+        for (int pos = 3; pos < 40; pos++) {
+            byte b[] = new byte[48];
+            putInt(b, pos, LOG_MAGIC);
+            b[pos - 3] = (byte) 0xED;
+            b[pos - 2] = (byte) 0xA1;
+            b[pos - 1] = (byte) 0xDA;
+            for (int from = 0; from < 8; from++)
+                assertEquals(from <= pos ? pos : -1,
+                             BufferedRandomAccessFile.indexOfInt(b, from, b.length, LOG_MAGIC));
+        }
+
+        for (long seed = 0; seed < 20; seed++) {
+            byte b[] = magicNoise(300, seed);
+            for (int from = 0; from < 16; from++) {
+                for (int to = from; to <= b.length; to += 7)
+                    assertEquals(naiveIndexOfInt(b, from, to, LOG_MAGIC),
+                                 BufferedRandomAccessFile.indexOfInt(b, from, to, LOG_MAGIC));
+            }
+        }
+    }
+
+    static File writeBytes(byte b[]) throws IOException {
+        File f = File.createTempFile("lcm-test-bytes", ".bin");
+        f.deleteOnExit();
+        FileOutputStream outs = new FileOutputStream(f);
+        outs.write(b);
+        outs.close();
+        return f;
+    }
+
+    /** Checks skipToInt() from 'start' against a byte-by-byte search. **/
+    static void checkSkipToInt(BufferedRandomAccessFile raf, byte b[], long start) throws IOException {
+        raf.seek(start);
+        int expected = naiveIndexOfInt(b, (int) start, b.length, LOG_MAGIC);
+        if (expected < 0) {
+            try {
+                raf.skipToInt(LOG_MAGIC);
+                fail("expected EOF");
+            } catch (EOFException ex) {
+            }
+            assertEquals(b.length, raf.getFilePointer());
+            return;
+        }
+        assertEquals(expected - start, raf.skipToInt(LOG_MAGIC));
+        assertEquals(expected, raf.getFilePointer());
+        assertEquals(LOG_MAGIC, raf.readInt());
+    }
+
+    @Test
+    public void testSkipToInt() throws Exception {
+        // the default buffer size
+        final int BUFFER = 32768;
+
+        // the magic straddling a buffer boundary by each possible amount,
+        // and at each alignment within a word around it
+        for (int pos = BUFFER - 8; pos <= BUFFER + 4; pos++) {
+            byte b[] = new byte[3 * BUFFER];
+            putInt(b, pos, LOG_MAGIC);
+            File f = writeBytes(b);
+            BufferedRandomAccessFile raf = new BufferedRandomAccessFile(f, "r");
+            for (long start = BUFFER - 12; start <= pos + 1; start++)
+                checkSkipToInt(raf, b, start);
+            checkSkipToInt(raf, b, 0);
+            raf.close();
+        }
+
+        // a false candidate (the magic's first three bytes) ending the
+        // buffer, with the real magic starting at the next one
+        {
+            byte b[] = new byte[2 * BUFFER];
+            b[BUFFER - 3] = (byte) 0xED;
+            b[BUFFER - 2] = (byte) 0xA1;
+            b[BUFFER - 1] = (byte) 0xDA;
+            putInt(b, BUFFER, LOG_MAGIC);
+            File f = writeBytes(b);
+            BufferedRandomAccessFile raf = new BufferedRandomAccessFile(f, "r");
+            checkSkipToInt(raf, b, 0);
+            raf.close();
+        }
+
+        // partial matches everywhere, including across each boundary
+        byte b[] = magicNoise(3 * BUFFER + 5, 1);
+        File f = writeBytes(b);
+        BufferedRandomAccessFile raf = new BufferedRandomAccessFile(f, "r");
+        for (int boundary = 0; boundary <= b.length; boundary += BUFFER) {
+            for (long start = Math.max(0, boundary - 16); start < Math.min(b.length, boundary + 16); start++)
+                checkSkipToInt(raf, b, start);
+        }
+        checkSkipToInt(raf, b, b.length);
+        raf.close();
+    }
+
+    @Test
+    public void testSkippedBytes() throws Exception {
+        File f = File.createTempFile("lcm-test-log", ".lcm");
+        f.deleteOnExit();
+
+        // a large event, spanning several buffers, whose payload holds a
+        // false candidate: the magic followed by an impossible header.
+        Log.Event large = new Log.Event();
+        large.eventNumber = 1;
+        large.utime = 2000;
+        large.channel = "LARGE";
+        large.data = new byte[200000];
+        final int FAKE = 100000;
+        putInt(large.data, FAKE, LOG_MAGIC);
+
+        Log log = new Log(f.getPath(), "rw");
+        log.write(makeEvent(0));
+        log.write(large);
+        log.write(makeEvent(2));
+        log.close();
+
+        // each event's header is the magic, event number, utime, and
+        // channel and data lengths
+        Log.Event first = makeEvent(0);
+        long largeOffset = 28 + first.channel.length() + first.data.length;
+        long dataOffset = largeOffset + 28 + large.channel.length();
+        long nextOffset = dataOffset + large.data.length;
+
+        log = new Log(f.getPath(), "r");
+        long length = f.length();
+        double frac = (dataOffset + 1000.0) / length;
+        long seekOffset = (long) (length * frac);
+        assertTrue(seekOffset < dataOffset + FAKE);
+
+        log.seekPositionFraction(frac);
+        assertEventEquals(makeEvent(2), log.readNext());
+        // every byte up to the next event, the false candidate included
+        assertEquals(nextOffset - seekOffset, log.getSkippedBytes());
+        log.close();
+    }
+}
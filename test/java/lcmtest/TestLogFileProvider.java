@@ -0,0 +1,104 @@
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.Test;
+
+import lcm.lcm.*;
+import lcm.logging.Log;
+
+public class TestLogFileProvider {
+    static final int NUM_EVENTS = 50;
+
+    static File writeLog() throws IOException {
+        File f = File.createTempFile("lcm-test-replay", ".lcm");
+        f.deleteOnExit();
+        Log log = new Log(f.getPath(), "rw");
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            Log.Event e = new Log.Event();
+            e.eventNumber = i;
+            e.utime = 1000000 + i * 1000;
+            e.channel = "CHANNEL_" + (i % 2);
+            e.data = new byte[] { (byte) i };
+            log.write(e);
+        }
+        log.close();
+        return f;
+    }
+
+    static void waitFor(AtomicInteger n, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && n.get() < count; i++)
+            Thread.sleep(10);
+        assertEquals(count, n.get());
+    }
+
+    @Test
+    public void testLockstepSynchronous() throws Exception {
+        // returning from messageReceived() is the acknowledgement
+        LCM lcm = new LCM("file://" + writeLog().getPath() + "?speed=0&lockstep=true&delay=0");
+        final AtomicInteger received = new AtomicInteger();
+        lcm.subscribe(".*", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                received.incrementAndGet();
+            }
+        });
+
+        waitFor(received, NUM_EVENTS);
+        lcm.close();
+    }
+
+    @Test
+    public void testLockstepAcknowledged() throws Throwable {
+        final LCM lcm = new LCM("file://" + writeLog().getPath() +
+                                "?speed=0&lockstep=true&delay=0.2&pipeline=2");
+        final BlockingQueue<LCMDataInputStream> queue = new LinkedBlockingQueue<LCMDataInputStream>();
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger handedOff = new AtomicInteger();
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        // only CHANNEL_1 is handed off, and so acknowledged; its
+        // payload is read only on the consumer thread.
+        lcm.subscribe("CHANNEL_1", new LCMAcknowledgingSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                handedOff.incrementAndGet();
+                queue.add(ins);
+            }
+        });
+        lcm.subscribe(".*", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                received.incrementAndGet();
+                maxInProgress.set(Math.max(maxInProgress.get(), handedOff.get() - handled.get()));
+            }
+        });
+
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 1; i < NUM_EVENTS; i += 2) {
+                        LCMDataInputStream ins = queue.take();
+                        // give the replay time to read ahead
+                        Thread.sleep(1);
+                        assertEquals(i, ins.readUnsignedByte());
+                        handled.incrementAndGet();
+                        lcm.publish("LCM_REPLAY_ACK", new byte[0], 0, 0);
+                    }
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                }
+            }
+        };
+        consumer.start();
+
+        consumer.join(5000);
+        if (failure.get() != null)
+            throw failure.get();
+        assertEquals(NUM_EVENTS / 2, handled.get());
+        waitFor(received, NUM_EVENTS);
+        assertTrue(maxInProgress.get() <= 2);
+        lcm.close();
+    }
+}
@@ -0,0 +1,286 @@
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.Test;
+
+import lcm.lcm.*;
+import lcm.logging.Log;
+import lcm.logging.LogPlaybackControl;
+import lcm.logging.LogPlaybackEngine;
+
+public class TestLogPlaybackEngine {
+    static final int NUM_EVENTS = 500;
+
+    static File writeLog() throws IOException {
+        File f = File.createTempFile("lcm-test-playback", ".lcm");
+        f.deleteOnExit();
+        Log log = new Log(f.getPath(), "rw");
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            Log.Event e = new Log.Event();
+            e.eventNumber = i;
+            e.utime = 1000000 + i * 1000;
+            e.channel = "CHANNEL_" + (i % 5);
+            e.data = new byte[] { (byte) i };
+            log.write(e);
+        }
+        log.close();
+        return f;
+    }
+
+    static class Recorder implements LogPlaybackEngine.Listener {
+        AtomicInteger played = new AtomicInteger();
+        volatile String lastChannel;
+        volatile Log.Event next;
+
+        public void eventPlayed(LogPlaybackEngine engine, Log.Event e, String outchannel) {
+            played.incrementAndGet();
+            lastChannel = e.channel;
+        }
+
+        public void playingChanged(LogPlaybackEngine engine, boolean playing) {
+        }
+
+        public void seeked(LogPlaybackEngine engine, Log.Event next) {
+            this.next = next;
+        }
+
+        public void speedChanged(LogPlaybackEngine engine, double speed) {
+        }
+    }
+
+    static void waitForStop(LogPlaybackEngine engine) throws InterruptedException {
+        for (int i = 0; i < 500 && engine.isPlaying(); i++)
+            Thread.sleep(10);
+        assertFalse(engine.isPlaying());
+    }
+
+    @Test
+    public void testPlayback() throws Exception {
+        LCM lcm = new LCM("memq://");
+        final AtomicInteger received = new AtomicInteger();
+        lcm.subscribe("RENAMED_.*", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                received.incrementAndGet();
+            }
+        });
+
+        LogPlaybackEngine engine = new LogPlaybackEngine(lcm);
+        Recorder rec = new Recorder();
+        engine.addListener(rec);
+        engine.setChannelFilter(new Log.ChannelFilter() {
+            public String filter(String channel) {
+                return channel.equals("CHANNEL_0") ? null : "RENAMED_" + channel;
+            }
+        });
+        engine.open(writeLog().getPath());
+        assertEquals(1000000, engine.getStartUtime());
+
+        // step to the next event on a given channel.
+        engine.step("CHANNEL_3");
+        waitForStop(engine);
+        assertEquals(4, rec.played.get());
+        assertEquals("CHANNEL_3", rec.lastChannel);
+        assertEquals(3, engine.getLastEventNumber());
+
+        // seek to an exact timestamp.
+        engine.seekToUtime(1000000 + 250 * 1000);
+        assertEquals(250, rec.next.eventNumber);
+        engine.step("");
+        waitForStop(engine);
+        assertEquals(250, engine.getLastEventNumber());
+
+        // play the rest as fast as possible.
+        engine.setSpeed(0);
+        engine.play();
+        waitForStop(engine);
+        assertEquals(4 + 1 + NUM_EVENTS - 251, rec.played.get());
+
+        // every event except those on CHANNEL_0 is published.
+        int expected = 0;
+        for (int i = 0; i < 4; i++)
+            expected += (i % 5 != 0) ? 1 : 0;
+        for (int i = 250; i < NUM_EVENTS; i++)
+            expected += (i % 5 != 0) ? 1 : 0;
+        for (int i = 0; i < 500 && received.get() < expected; i++)
+            Thread.sleep(10);
+        assertEquals(expected, received.get());
+
+        engine.close();
+        lcm.close();
+    }
+
+    @Test
+    public void testSeekBlockCompressed() throws Exception {
+        // small blocks, with runs of equal timestamps across their
+        // boundaries
+        File f = File.createTempFile("lcm-test-playback", ".lcm");
+        f.deleteOnExit();
+        Log log = new Log(f.getPath(), "rw", 200);
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            Log.Event e = new Log.Event();
+            e.eventNumber = i;
+            e.utime = 1000000 + (i / 7) * 1000;
+            e.channel = "CHANNEL";
+            e.data = new byte[] { (byte) i };
+            log.write(e);
+        }
+        log.close();
+
+        LCM lcm = new LCM("memq://");
+        LogPlaybackEngine engine = new LogPlaybackEngine(lcm);
+        Recorder rec = new Recorder();
+        engine.addListener(rec);
+        engine.open(f.getPath());
+
+        for (int i = 0; i < NUM_EVENTS; i += 13) {
+            engine.seekToUtime(1000000 + (i / 7) * 1000);
+            assertEquals(i - i % 7, rec.next.eventNumber);
+        }
+        engine.seekToUtime(0);
+        assertEquals(0, rec.next.eventNumber);
+        engine.seekToUtime(Long.MAX_VALUE);
+        assertNull(rec.next);
+
+        engine.close();
+        lcm.close();
+    }
+
+    @Test
+    public void testPause() throws Exception {
+        LCM lcm = new LCM("memq://");
+        LogPlaybackEngine engine = new LogPlaybackEngine(lcm);
+        Recorder rec = new Recorder();
+        engine.addListener(rec);
+        engine.open(writeLog().getPath());
+
+        // at real-time speed, the log takes half a second.
+        engine.play();
+        Thread.sleep(100);
+        engine.pause();
+        assertFalse(engine.isPlaying());
+
+        // no event is lost or repeated across the pause.
+        int played = rec.played.get();
+        assertTrue(played > 0 && played < NUM_EVENTS);
+        assertEquals(played - 1, engine.getLastEventNumber());
+
+        engine.step("");
+        waitForStop(engine);
+        assertEquals(played, engine.getLastEventNumber());
+
+        engine.close();
+        lcm.close();
+    }
+
+    @Test
+    public void testControl() throws Exception {
+        LCM lcm = new LCM("memq://");
+        LogPlaybackEngine engine = new LogPlaybackEngine(lcm);
+        engine.open(writeLog().getPath());
+        LogPlaybackControl control = new LogPlaybackControl(engine);
+
+        final BlockingQueue<LogPlaybackControl.Status> statuses =
+            new LinkedBlockingQueue<LogPlaybackControl.Status>();
+        lcm.subscribe(LogPlaybackControl.DEFAULT_STATUS_CHANNEL, new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                try {
+                    statuses.add(LogPlaybackControl.Status.decode(ins));
+                } catch (IOException ex) {
+                }
+            }
+        });
+
+        // nothing is published until a controller sends a command
+        assertNull(statuses.poll(300, TimeUnit.MILLISECONDS));
+
+        send(lcm, LogPlaybackControl.encodeCommand(1, LogPlaybackControl.OP_SEEK_UTIME, 1000000L + 100 * 1000));
+        waitForSequence(statuses, 1);
+
+        // the status after the step ends reports the exact position.
+        send(lcm, LogPlaybackControl.encodeCommand(2, LogPlaybackControl.OP_STEP, 10L));
+        LogPlaybackControl.Status s;
+        do {
+            s = waitForSequence(statuses, 2);
+        } while (s.playing);
+        assertEquals(109, s.eventNumber);
+        assertEquals(1000000 + 109 * 1000, s.utime);
+
+        send(lcm, LogPlaybackControl.encodeCommand(3, LogPlaybackControl.OP_SET_SPEED, 4.0));
+        s = waitForSequence(statuses, 3);
+        assertEquals(4.0, s.speed, 0);
+
+        control.close();
+        engine.close();
+        lcm.close();
+    }
+
+    @Test
+    public void testRecordedControlNotPlayed() throws Exception {
+        // a log that recorded another player's remote control session
+        File f = File.createTempFile("lcm-test-playback", ".lcm");
+        f.deleteOnExit();
+        Log log = new Log(f.getPath(), "rw");
+        for (int i = 0; i < 10; i++) {
+            Log.Event e = new Log.Event();
+            e.eventNumber = i;
+            e.utime = 1000000 + i * 1000;
+            e.channel = (i == 3) ? LogPlaybackControl.DEFAULT_CONTROL_CHANNEL : "CHANNEL";
+            e.data = (i == 3) ? LogPlaybackControl.encodeCommand(7, LogPlaybackControl.OP_PAUSE, 0L)
+                              : new byte[] { (byte) i };
+            log.write(e);
+        }
+        log.close();
+
+        LCM lcm = new LCM("memq://");
+        final AtomicInteger commands = new AtomicInteger();
+        lcm.subscribe(LogPlaybackControl.DEFAULT_CONTROL_CHANNEL, new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                commands.incrementAndGet();
+            }
+        });
+
+        LogPlaybackEngine engine = new LogPlaybackEngine(lcm);
+        Recorder rec = new Recorder();
+        engine.addListener(rec);
+        engine.open(f.getPath());
+        LogPlaybackControl control = new LogPlaybackControl(engine);
+
+        // the recorded pause neither reaches the player nor is
+        // published.
+        engine.setSpeed(0);
+        engine.play();
+        waitForStop(engine);
+        assertEquals(10, rec.played.get());
+        assertEquals(9, engine.getLastEventNumber());
+        assertEquals(0, commands.get());
+
+        // once the control is closed, the channel is played again.
+        control.close();
+        engine.seekToUtime(1000000);
+        engine.play();
+        waitForStop(engine);
+        for (int i = 0; i < 500 && commands.get() < 1; i++)
+            Thread.sleep(10);
+        assertEquals(1, commands.get());
+
+        engine.close();
+        lcm.close();
+    }
+
+    static void send(LCM lcm, byte[] command) throws IOException {
+        lcm.publish(LogPlaybackControl.DEFAULT_CONTROL_CHANNEL, command, 0, command.length);
+    }
+
+    static LogPlaybackControl.Status waitForSequence(BlockingQueue<LogPlaybackControl.Status> statuses,
+                                                     int sequence) throws InterruptedException {
+        while (true) {
+            LogPlaybackControl.Status s = statuses.poll(5, TimeUnit.SECONDS);
+            assertNotNull(s);
+            if (s.sequence == sequence)
+                return s;
+        }
+    }
+}
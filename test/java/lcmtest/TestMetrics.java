@@ -0,0 +1,191 @@
+import static org.junit.Assert.*;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+import org.junit.Test;
+
+import lcm.lcm.*;
+import lcm.util.LatencyHistogram;
+
+public class TestMetrics {
+    static LCM newTimedLCM() throws Exception {
+        System.setProperty("lcm.dispatch_timing", "true");
+        try {
+            return new LCM("memq://");
+        } finally {
+            System.clearProperty("lcm.dispatch_timing");
+        }
+    }
+
+    @Test
+    public void testChannelAndDispatchMetrics() throws Exception {
+        LCM lcm = newTimedLCM();
+        final CountDownLatch received = new CountDownLatch(10);
+        lcm.subscribe("METRICS_TEST", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                received.countDown();
+            }
+        });
+
+        byte data[] = new byte[100];
+        for (int i = 0; i < 10; i++)
+            lcm.publish("METRICS_TEST", data, 0, data.length);
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        Metrics.ChannelMetrics cm = lcm.getMetrics().channel("METRICS_TEST");
+        assertEquals(10, cm.publishCount.get());
+        assertEquals(1000, cm.publishBytes.get());
+        assertEquals(10, cm.receiveCount.get());
+        assertEquals(1000, cm.receiveBytes.get());
+
+        // the dispatch histogram is updated after the handler returns.
+        Thread.sleep(100);
+        long dispatched = 0;
+        for (java.util.Map.Entry<String,Long> e : lcm.getMetrics().snapshot().entrySet()) {
+            if (e.getKey().endsWith(".dispatch_nanos.count"))
+                dispatched += e.getValue();
+        }
+        assertEquals(10, dispatched);
+        assertEquals(Long.valueOf(1), lcm.getMetrics().snapshot().get("lcm.subscriptions"));
+
+        lcm.close();
+    }
+
+    static LCMSubscriber newSubscriber() {
+        return new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            }
+        };
+    }
+
+    static int countDispatchHistograms(LCM lcm) {
+        int n = 0;
+        for (String name : lcm.getMetrics().snapshotNames()) {
+            if (name.endsWith(".dispatch_nanos.count"))
+                n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testDispatchHistogramRemoved() throws Exception {
+        LCM lcm = newTimedLCM();
+
+        // subscribers of one class to "A" share one histogram
+        LCMSubscriber a1 = newSubscriber(), a2 = newSubscriber(), b = newSubscriber();
+        lcm.subscribe("A", a1);
+        lcm.subscribe("A", a2);
+        lcm.subscribe("B", b);
+        assertEquals(2, countDispatchHistograms(lcm));
+
+        lcm.unsubscribe("B", b);
+        assertEquals(1, countDispatchHistograms(lcm));
+        lcm.unsubscribe("A", a1);
+        assertEquals(1, countDispatchHistograms(lcm));
+        lcm.unsubscribe("A", a2);
+        assertEquals(0, countDispatchHistograms(lcm));
+
+        lcm.subscribe("A", a1);
+        assertEquals(1, countDispatchHistograms(lcm));
+        lcm.close();
+    }
+
+    @Test
+    public void testDispatchNotTimed() throws Exception {
+        LCM lcm = new LCM("memq://");
+        lcm.subscribe("METRICS_TEST", new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            }
+        });
+        for (String name : lcm.getMetrics().snapshotNames())
+            assertFalse(name, name.startsWith("subscriber."));
+        lcm.close();
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram h = new Metrics().histogram("h");
+        for (int i = 1; i <= 1000; i++)
+            h.record(i);
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500.5, h.getMean(), 1e-9);
+        // 500 is in the bucket [500, 504).
+        assertEquals(503, h.getValueAtPercentile(0.5));
+        assertEquals(1000, h.getValueAtPercentile(1.0));
+    }
+
+    @Test
+    public void testHistogramThreads() throws Exception {
+        final LatencyHistogram h = new LatencyHistogram();
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        h.record(i);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(40000, h.getCount());
+        assertEquals(0, h.getMin());
+        assertEquals(9999, h.getMax());
+        assertEquals(9999 / 2.0, h.getMean(), 1e-9);
+    }
+
+    @Test
+    public void testRead() {
+        Metrics m = new Metrics();
+        m.counter("c").add(3);
+        m.histogram("h").record(7);
+
+        // one entry at a time, as JMX reads them, matches the snapshot.
+        SortedMap<String,Long> snapshot = m.snapshot();
+        assertEquals(snapshot.keySet(), m.snapshotNames());
+        for (Map.Entry<String,Long> e : snapshot.entrySet())
+            assertEquals(e.getValue(), m.read(e.getKey()));
+        assertNull(m.read("h"));
+        assertNull(m.read("h.p42"));
+        assertNull(m.read("missing"));
+    }
+
+    @Test
+    public void testExporters() throws Exception {
+        LCM lcm = new LCM("memq://");
+        Metrics m = lcm.getMetrics();
+        m.counter("test.counter").add(42);
+
+        MetricsJMXExporter jmx = MetricsJMXExporter.register(m, "lcm:type=LCM,name=TestMetrics");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(42L, server.getAttribute(new ObjectName("lcm:type=LCM,name=TestMetrics"), "test.counter"));
+        jmx.unregister();
+
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+        lcm.subscribe(MetricsPublisher.DEFAULT_CHANNEL, new LCMSubscriber() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                byte data[] = new byte[ins.available()];
+                try {
+                    ins.readFully(data);
+                    messages.add(new String(data, "UTF-8"));
+                } catch (java.io.IOException ex) {
+                }
+            }
+        });
+
+        MetricsPublisher publisher = new MetricsPublisher(m, lcm, MetricsPublisher.DEFAULT_CHANNEL, 20);
+        String text = messages.poll(5, TimeUnit.SECONDS);
+        publisher.close();
+        assertNotNull(text);
+        assertTrue(text.startsWith("utime "));
+        assertTrue(text.contains("\ntest.counter 42\n"));
+
+        lcm.close();
+    }
+}
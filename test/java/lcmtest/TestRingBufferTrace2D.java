@@ -0,0 +1,185 @@
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+
+import info.monitorenter.gui.chart.Chart2D;
+import info.monitorenter.gui.chart.ITracePoint2D;
+
+import lcm.spy.*;
+
+public class TestRingBufferTrace2D {
+    static RingBufferTrace2D newTrace(int maxSize) {
+        RingBufferTrace2D trace = new RingBufferTrace2D(maxSize, "test");
+        new Chart2D().addTrace(trace);
+        return trace;
+    }
+
+    // the trace must be used on the event dispatch thread
+    static void onEdt(Runnable r) throws Throwable {
+        try {
+            SwingUtilities.invokeAndWait(r);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    @Test
+    public void testWrongThread() throws Throwable {
+        final RingBufferTrace2D trace[] = new RingBufferTrace2D[1];
+        onEdt(new Runnable() {
+            public void run() {
+                trace[0] = newTrace(4);
+                trace[0].append(0, 0);
+            }
+        });
+
+        try {
+            trace[0].append(1, 1);
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        assertEquals(1, trace[0].getSize());
+    }
+
+    @Test
+    public void testWrap() throws Throwable {
+        onEdt(new Runnable() {
+            public void run() {
+                wrap();
+            }
+        });
+    }
+
+    void wrap() {
+        RingBufferTrace2D trace = newTrace(4);
+        double ys[] = { 5, 1, 9, 3, 7, 2, 8, 4, 6, 0 };
+
+        for (int i = 0; i < 5; i++)
+            trace.append(i, ys[i]);
+        assertEquals(4, trace.getSize());
+        assertEquals(1, trace.getMinX(), 0);
+        assertEquals(4, trace.getMaxX(), 0);
+        assertEquals(1, trace.getMinY(), 0);
+        assertEquals(9, trace.getMaxY(), 0);
+
+        for (int i = 5; i < ys.length; i++)
+            trace.append(i, ys[i]);
+        assertEquals(0, trace.getMinY(), 0);
+        assertEquals(8, trace.getMaxY(), 0);
+
+        double px[] = new double[10], py[] = new double[10];
+        assertEquals(4, trace.getPoints(px, py));
+        assertArrayEquals(new double[] { 6, 7, 8, 9 }, Arrays.copyOf(px, 4), 0);
+        assertArrayEquals(new double[] { 8, 4, 6, 0 }, Arrays.copyOf(py, 4), 0);
+
+        Iterator<ITracePoint2D> it = trace.iterator();
+        for (int i = 6; i < 10; i++) {
+            ITracePoint2D p = it.next();
+            assertEquals(i, p.getX(), 0);
+            assertEquals(ys[i], p.getY(), 0);
+        }
+        assertFalse(it.hasNext());
+
+        trace.setMaxSize(2);
+        assertEquals(2, trace.getSize());
+        assertEquals(8, trace.getMinX(), 0);
+        assertEquals(0, trace.getMinY(), 0);
+        assertEquals(6, trace.getMaxY(), 0);
+
+        trace.setMaxSize(8);
+        trace.append(10, 3);
+        assertEquals(3, trace.getSize());
+        assertEquals(3, trace.getPoints(px, py));
+        assertArrayEquals(new double[] { 8, 9, 10 }, Arrays.copyOf(px, 3), 0);
+    }
+
+    @Test
+    public void testBoundsMatchSearch() throws Throwable {
+        onEdt(new Runnable() {
+            public void run() {
+                boundsMatchSearch();
+            }
+        });
+    }
+
+    void boundsMatchSearch() {
+        RingBufferTrace2D trace = newTrace(50);
+        Random r = new Random(1);
+        double px[] = new double[50], py[] = new double[50];
+
+        for (int i = 0; i < 1000; i++) {
+            trace.append(r.nextGaussian(), r.nextInt(20));
+
+            int n = trace.getPoints(px, py);
+            double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+            double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int j = 0; j < n; j++) {
+                minX = Math.min(minX, px[j]);
+                maxX = Math.max(maxX, px[j]);
+                minY = Math.min(minY, py[j]);
+                maxY = Math.max(maxY, py[j]);
+            }
+            assertEquals(minX, trace.getMinX(), 0);
+            assertEquals(maxX, trace.getMaxX(), 0);
+            assertEquals(minY, trace.getMinY(), 0);
+            assertEquals(maxY, trace.getMaxY(), 0);
+        }
+    }
+
+    @Test
+    public void testDecimation() throws Throwable {
+        onEdt(new Runnable() {
+            public void run() {
+                decimation();
+            }
+        });
+    }
+
+    void decimation() {
+        RingBufferTrace2D trace = newTrace(100000);
+        Random r = new Random(2);
+        double ys[] = new double[150000];
+        for (int i = 0; i < ys.length; i++) {
+            ys[i] = r.nextGaussian();
+            trace.append(i, ys[i]);
+        }
+
+        // x in [60000, 140000] in 100 columns of 800 points
+        int columns = 100;
+        double px[] = new double[4 * columns], py[] = new double[4 * columns];
+        int n = trace.getPoints(px, py, 60000, 140000, columns);
+        assertTrue(n <= 4 * columns);
+        assertEquals(60000, px[0], 0);
+        assertEquals(140001, px[n - 1], 0);
+
+        for (int c = 1; c < columns - 1; c++) {
+            double from = 60000 + 800 * c, to = from + 800;
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int x = (int) from + 1; x <= to; x++) {
+                min = Math.min(min, ys[x]);
+                max = Math.max(max, ys[x]);
+            }
+
+            double dmin = Double.MAX_VALUE, dmax = -Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (i > 0)
+                    assertTrue(px[i] > px[i - 1]);
+                if (px[i] > from && px[i] <= to) {
+                    assertEquals(ys[(int) px[i]], py[i], 0);
+                    dmin = Math.min(dmin, py[i]);
+                    dmax = Math.max(dmax, py[i]);
+                }
+            }
+            assertEquals(min, dmin, 0);
+            assertEquals(max, dmax, 0);
+        }
+
+        // few enough points are copied as they are
+        assertEquals(10, trace.getPoints(px, py, 149990, 150000, columns));
+    }
+}
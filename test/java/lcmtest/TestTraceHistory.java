@@ -0,0 +1,72 @@
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import lcm.spy.TraceHistory;
+
+public class TestTraceHistory {
+    @Test
+    public void testColumns() {
+        TraceHistory history = new TraceHistory();
+        Random r = new Random(3);
+        double ys[] = new double[200000];
+        for (int i = 0; i < ys.length; i++) {
+            ys[i] = r.nextGaussian();
+            history.add(i, ys[i]);
+        }
+
+        // the coarser level still has every point; the finer one goes
+        // back to 118090.
+        assertEquals(0, history.getOldestX(), 0);
+
+        // x in [100000, 180000) in 100 columns of 800 points, from
+        // buckets of 100 points before 118090, and of 10 after.
+        int columns = 100;
+        double px[] = new double[2 * columns], py[] = new double[2 * columns];
+        int n = history.getPoints(100000, 180000, columns, 180000, px, py, 0);
+        assertEquals(2 * columns, n);
+
+        for (int c = 0; c < columns; c++) {
+            int from = 100000 + 800 * c;
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int x = from; x < from + 800; x++) {
+                min = Math.min(min, ys[x]);
+                max = Math.max(max, ys[x]);
+            }
+
+            assertTrue(px[2 * c] < px[2 * c + 1]);
+            assertEquals(min, Math.min(py[2 * c], py[2 * c + 1]), 0);
+            assertEquals(max, Math.max(py[2 * c], py[2 * c + 1]), 0);
+            for (int i = 2 * c; i < 2 * c + 2; i++)
+                assertEquals(ys[(int) px[i]], py[i], 0);
+        }
+
+        // nothing is returned from 'beforeX' on
+        assertEquals(2 * 50, history.getPoints(100000, 180000, columns, 140000, px, py, 0));
+
+        // buckets that cross columns, or 'beforeX', are not drawn twice
+        // or out of order.
+        n = history.getPoints(100000, 180000, 97, 170050, px, py, 0);
+        for (int i = 1; i < n; i++)
+            assertTrue(px[i] > px[i - 1]);
+        assertTrue(px[n - 1] < 170050);
+    }
+
+    @Test
+    public void testStartsAgain() {
+        TraceHistory history = new TraceHistory();
+        for (int i = 0; i < 1000; i++)
+            history.add(1000 + i, i);
+        assertEquals(1000, history.getOldestX(), 0);
+
+        // x goes back, e.g., as a log is replayed
+        for (int i = 0; i < 100; i++)
+            history.add(i, Double.NaN);
+        assertEquals(0, history.getOldestX(), 0);
+
+        double px[] = new double[2], py[] = new double[2];
+        assertEquals(0, history.getPoints(0, 100, 1, 100, px, py, 0));
+    }
+}